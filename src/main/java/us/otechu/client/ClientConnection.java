@@ -2,16 +2,26 @@ package us.otechu.client;
 
 import java.io.*;
 import java.net.*;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.function.Consumer;
+import java.util.function.LongPredicate;
+
+import us.otechu.common.BinaryProtocol;
+import us.otechu.common.MessageReader;
+import us.otechu.common.StreamCompression;
+import us.otechu.common.WireMessage;
+
 /**
  * Handles sending messages to the server and receiving messages from the server
  */
 public class ClientConnection {
-    private static final String SERVER_ADDRESS = "localhost";
-    private static final int PORT = 5000;
+    /** Server connected to unless another one is given */
+    public static final String SERVER_ADDRESS = "localhost";
+    public static final int PORT = 5000;
     private final Socket socket;
-    private final BufferedReader in;
-    private final PrintWriter out;
+    private final MessageReader in;
+    private final OutputStream out;
 
     /** Thread that listens for incoming server messages */
     private Thread serverListener;
@@ -19,19 +29,67 @@ public class ClientConnection {
     /** Function that handles server messages */
     private Consumer<String> messageHandler; // handles incoming messages
 
+    /** Function that handles drawing actions, strokes and tiles received as binary frames */
+    private Consumer<WireMessage> drawingHandler;
+
+    /** Whether to ask the server for the binary protocol when joining */
+    private final boolean requestBinary;
+
+    /** Whether to join as a read-only spectator */
+    private boolean spectate = false;
+
+    /** Whether to ask the server to compress the connection */
+    private boolean compress = false;
+
+    /** Set once the server agreed to compress the connection */
+    private volatile StreamCompression.Compressor compressor;
+    private volatile StreamCompression.Decompressor decompressor;
+
+    /** True once the server agreed to binary frames */
+    private volatile boolean binary = false;
 
+    /** True once the server agreed to images uploaded in chunks */
+    private volatile boolean chunkedUploads = false;
+
+    /** Chunks of an image sent ahead of the server's acknowledgements */
+    private static final int UPLOAD_WINDOW = 4;
+
+    // the server's answers to the image being uploaded, guarded by uploadLock
+    private final Object uploadLock = new Object();
+    private long uploadAcked;
+    private boolean uploadDone;
+    private String uploadError;
 
     /**
      * Creates connection to the server and listens for messages.
      * @param messageHandler A function to handle messages from the server
+     * @param drawingHandler A function to handle drawing actions and strokes sent as binary frames
+     * @param requestBinary  true to ask for the binary protocol when joining
+     * @throws IOException if the connection fails
+     */
+    public ClientConnection(Consumer<String> messageHandler, Consumer<WireMessage> drawingHandler, boolean requestBinary) throws IOException {
+        this(messageHandler, drawingHandler, requestBinary, SERVER_ADDRESS, PORT);
+    }
+
+    /**
+     * Creates connection to a server, e.g. a relay, and listens for messages.
+     * @param messageHandler A function to handle messages from the server
+     * @param drawingHandler A function to handle drawing actions and strokes sent as binary frames
+     * @param requestBinary  true to ask for the binary protocol when joining
+     * @param host           the server's host
+     * @param port           the server's port
      * @throws IOException if the connection fails
      */
-    public ClientConnection(Consumer<String> messageHandler) throws IOException {
+    public ClientConnection(Consumer<String> messageHandler, Consumer<WireMessage> drawingHandler, boolean requestBinary,
+            String host, int port) throws IOException {
         this.messageHandler = messageHandler;
-        this.socket = new Socket(SERVER_ADDRESS, PORT);
+        this.drawingHandler = drawingHandler;
+        this.requestBinary = requestBinary;
+        this.socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
 
-        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        this.out = new PrintWriter(socket.getOutputStream(), true);
+        this.in = new MessageReader(socket.getInputStream());
+        this.out = new BufferedOutputStream(socket.getOutputStream());
 
         startListener();
     }
@@ -41,13 +99,37 @@ public class ClientConnection {
     private void startListener() {
         serverListener = new Thread(() -> {
             try {
-                String line;
-                while ((line = in.readLine()) != null) {
-                    messageHandler.accept(line);
+                WireMessage message;
+                while ((message = in.read()) != null) {
+                    if (message.isDraw() || message.isStroke() || message.isTile()) {
+                        drawingHandler.accept(message);
+                    } else if (message.text.startsWith("PROTO")) {
+                        // the server agreed on the protocol, everything after this line uses it
+                        binary = BinaryProtocol.hasCapability(message.text.substring(5), BinaryProtocol.CAPABILITY);
+                        in.setBinary(binary);
+                        chunkedUploads = BinaryProtocol.hasCapability(message.text.substring(5),
+                                BinaryProtocol.UPLOAD_CAPABILITY);
+                        if (BinaryProtocol.hasCapability(message.text.substring(5), BinaryProtocol.DEFLATE_CAPABILITY)) {
+                            decompressor = new StreamCompression.Decompressor();
+                            in.startInflating(decompressor);
+                            compressor = new StreamCompression.Compressor();
+                        }
+                    } else if (message.text.startsWith("IMGACK ") || message.text.equals("IMGDONE")
+                            || message.text.startsWith("IMGFAIL ")) {
+                        uploadReply(message.text);
+                    } else {
+                        messageHandler.accept(message.text);
+                    }
                 }
             } catch (IOException e) {
                 System.out.println("Disconnected from server.");
             } finally {
+                uploadReply("IMGFAIL Disconnected from server");
+                if (compressor != null) {
+                    System.out.println("Compression: " + StreamCompression.describe(compressor, decompressor));
+                    compressor.close();
+                    decompressor.close();
+                }
                 if (socket != null && !socket.isClosed()) {
                     disconnect();
                 }
@@ -56,13 +138,151 @@ public class ClientConnection {
         serverListener.start();
     }
 
+    /**
+     * Joins as a read-only spectator from the next {@link #join} on, which works even when the room is full of players.
+     */
+    public void setSpectate(boolean spectate) {
+        this.spectate = spectate;
+    }
+
+    /**
+     * Asks the server to deflate the connection from the next {@link #join} on, for thin links.
+     */
+    public void setCompress(boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * Asks to join a room with the given username.
+     * Also offers tile based canvas sync, chunked image uploads, local clears, compression if asked for and, unless disabled, the binary protocol
+     * with tiles as raw frames, which the server switches to if it accepts the name.
+     * @param room the room to join, or null for the server's default room
+     * @param username the username to join with
+     */
+    public void join(String room, String username) {
+        String capabilities = BinaryProtocol.TILES_CAPABILITY + "," + BinaryProtocol.UPLOAD_CAPABILITY + ","
+                + BinaryProtocol.CLEAR_CAPABILITY;
+        if (requestBinary) {
+            capabilities = BinaryProtocol.CAPABILITY + "," + capabilities + "," + BinaryProtocol.RAW_TILES_CAPABILITY;
+        }
+        if (spectate) {
+            capabilities += "," + BinaryProtocol.SPECTATE_CAPABILITY;
+        }
+        if (compress) {
+            capabilities += "," + BinaryProtocol.DEFLATE_CAPABILITY;
+        }
+        send("JOINV " + capabilities + " " + (room != null ? "#" + room + " " : "") + username);
+    }
 
     /**
      * Sends a message to the server.
      * @param message The message to send
      */
     public void send(String message) {
-        out.println(message);
+        write(binary ? BinaryProtocol.encodeTextFrame(message) : BinaryProtocol.encodeLine(message));
+    }
+
+    /**
+     * Sends a drawing action to the server.
+     * @param data The drawing action to send
+     */
+    public void sendDraw(DrawData data) {
+        write(binary ? BinaryProtocol.encodeDrawFrame(data) : BinaryProtocol.encodeDrawLine(data));
+    }
+
+    /**
+     * Sends part of a pencil stroke to the server.
+     * @param data The stroke message to send
+     */
+    public void sendStroke(StrokeData data) {
+        write(binary ? BinaryProtocol.encodeStrokeFrame(data) : BinaryProtocol.encodeStrokeLine(data));
+    }
+
+    /**
+     * Loads an image file onto everyone's canvas. Servers that agreed to it get the file in IMGDATA chunks,
+     * with only a few of them in flight at once, others get it as one LOADIMG line.
+     * Blocks until the server has the whole image, so call it off the UI thread.
+     *
+     * @param in       the image file
+     * @param size     the file's size in bytes
+     * @param progress told how many bytes the server has so far; returning false cancels the upload
+     * @throws IOException if the file can't be read or the server turned the image down
+     */
+    public void uploadImage(InputStream in, long size, LongPredicate progress) throws IOException {
+        if (!chunkedUploads) {
+            send("LOADIMG " + Base64.getEncoder().encodeToString(in.readAllBytes()));
+            progress.test(size);
+            return;
+        }
+        synchronized (uploadLock) {
+            uploadAcked = 0;
+            uploadDone = false;
+            uploadError = null;
+        }
+        send("IMGSTART " + size);
+        byte[] chunk = new byte[BinaryProtocol.UPLOAD_CHUNK_SIZE];
+        long sent = 0;
+        int n;
+        while ((n = in.readNBytes(chunk, 0, chunk.length)) > 0) {
+            // wait for the server to catch up before sending more
+            if (!progress.test(awaitUpload(sent - (long) UPLOAD_WINDOW * chunk.length, false))) {
+                send("IMGABORT");
+                return;
+            }
+            send("IMGDATA " + Base64.getEncoder().encodeToString(n == chunk.length ? chunk : Arrays.copyOf(chunk, n)));
+            sent += n;
+        }
+        send("IMGEND");
+        progress.test(awaitUpload(sent, true));
+    }
+
+    /**
+     * Waits until the server acknowledged the given number of bytes, or also accepted the whole image.
+     *
+     * @return the bytes acknowledged so far
+     * @throws IOException if the server turned the image down
+     */
+    private long awaitUpload(long bytes, boolean done) throws IOException {
+        synchronized (uploadLock) {
+            while (uploadError == null && (uploadAcked < bytes || (done && !uploadDone))) {
+                try {
+                    uploadLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (uploadError != null) {
+                throw new IOException(uploadError);
+            }
+            return uploadAcked;
+        }
+    }
+
+    /**
+     * Records the server's IMGACK, IMGDONE or IMGFAIL reply to the image being uploaded.
+     */
+    private void uploadReply(String reply) {
+        synchronized (uploadLock) {
+            if (reply.startsWith("IMGACK ")) {
+                uploadAcked = Long.parseLong(reply.substring("IMGACK ".length()));
+            } else if (reply.equals("IMGDONE")) {
+                uploadDone = true;
+            } else if (uploadError == null) {
+                uploadError = reply.substring("IMGFAIL ".length());
+            }
+            uploadLock.notifyAll();
+        }
+    }
+
+    private synchronized void write(byte[] bytes) {
+        try {
+            StreamCompression.Compressor deflate = compressor;
+            out.write(deflate != null ? deflate.compress(bytes) : bytes);
+            out.flush();
+        } catch (IOException e) {
+            System.out.println("Failed to send to server: " + e.getMessage());
+        }
     }
 
     /**
@@ -73,4 +293,4 @@ public class ClientConnection {
             socket.close();
         } catch (IOException ignored) {}
     }
-}
\ No newline at end of file
+}
@@ -3,10 +3,21 @@ package us.otechu.client;
 import com.formdev.flatlaf.FlatIntelliJLaf;
 import com.google.gson.Gson;
 import us.otechu.client.ui.DrawingAppFrame;
+import us.otechu.common.BinaryProtocol;
+import us.otechu.common.TileData;
+import us.otechu.common.WireMessage;
+import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
 
 /**
  * DrawWithFriends
@@ -19,11 +30,50 @@ public class DrawWithFriends extends JFrame {
 
     private static volatile String nameResult = ""; // used to check if name is taken
     private static String localUsername = "";
+    // the room's canvas size, 0 until the server sends it
+    private static int canvasWidth, canvasHeight;
+
+    // the last tile being decoded, everything the server sent after it waits for it so it lands on top
+    private static CompletableFuture<Void> decoding = CompletableFuture.completedFuture(null);
+
+    /**
+     * Runs an update to the window on the UI thread, after the tiles the server sent before it.
+     * Only called from the connection's listener thread.
+     */
+    private static void inOrder(Runnable update) {
+        if (decoding.isDone()) {
+            SwingUtilities.invokeLater(update);
+        } else {
+            decoding = decoding.thenRun(() -> SwingUtilities.invokeLater(update));
+        }
+    }
+
+    /**
+     * Decodes a tile on the shared pool, so the tiles of a sync are decoded on every core at once,
+     * and draws it in the order it was sent.
+     *
+     * @param decode decodes the tile, off the UI thread, and returns what draws it
+     */
+    private static void decodeTile(Supplier<Runnable> decode) {
+        CompletableFuture<Runnable> decoded = CompletableFuture.supplyAsync(decode, ForkJoinPool.commonPool())
+                .exceptionally(e -> {
+                    System.out.println("Bad tile from server: " + e.getMessage());
+                    return () -> {};
+                });
+        decoding = decoding.thenCombine(decoded, (done, draw) -> draw).thenAccept(SwingUtilities::invokeLater);
+    }
 
     private static void handleServerMessage(String msg) {
         // Notifies player server is full, and closes.
         if (msg.equals("FULL")) {
-            JOptionPane.showMessageDialog(null, "Server is currently full. Try again later.");
+            JOptionPane.showMessageDialog(null, "Server is currently full. Try again later, or start with --spectate to watch.");
+            System.exit(0);
+        }
+
+        // room name the server won't accept
+        if (msg.equals("BADROOM")) {
+            JOptionPane.showMessageDialog(null,
+                    "Room names can only use letters, numbers, - and _ (up to 32 characters).");
             System.exit(0);
         }
 
@@ -33,6 +83,17 @@ public class DrawWithFriends extends JFrame {
             return;
         }
 
+        // the size of the room's canvas, sent just before JOINED
+        if (msg.startsWith("CANVAS ")) {
+            String[] parts = msg.split(" ");
+            canvasWidth = Integer.parseInt(parts[1]);
+            canvasHeight = Integer.parseInt(parts[2]);
+            if (frame != null) {
+                inOrder(() -> frame.setCanvasSize(canvasWidth, canvasHeight));
+            }
+            return;
+        }
+
         // if server accepts username, notify client
         if (msg.startsWith("JOINED ")) {
             nameResult = "JOINED";
@@ -44,37 +105,118 @@ public class DrawWithFriends extends JFrame {
         if (msg.startsWith("USERLIST ")) {
             String data = msg.substring("USERLIST ".length());
             if (frame != null) {
-                SwingUtilities.invokeLater(() -> frame.updateUserList(data, localUsername));
+                inOrder(() -> frame.updateUserList(data, localUsername));
             }
         } else if (msg.startsWith("DRAW ")) {
             String json = msg.substring(5);
-            DrawData drawData = new Gson().fromJson(json, DrawData.class);
-            if (frame != null) {
-                SwingUtilities.invokeLater(() -> frame.drawFromData(drawData));
-            }
+            handleDrawing(WireMessage.draw(new Gson().fromJson(json, DrawData.class)));
+        } else if (msg.startsWith("STROKE ")) {
+            String json = msg.substring(7);
+            handleDrawing(WireMessage.stroke(BinaryProtocol.parseStrokeJson(json)));
         } else if (msg.startsWith("LOADIMG ")) {
             // base64 image
             String base64 = msg.substring(8);
             if (frame != null) {
-                SwingUtilities.invokeLater(() -> frame.loadImageFromBase64(base64));
+                inOrder(() -> frame.loadImageFromBase64(base64));
+            }
+        } else if (msg.startsWith("TILE ")) {
+            // TILE x y version base64, one changed part of the canvas
+            String[] parts = msg.split(" ", 5);
+            if (parts.length == 5 && frame != null) {
+                int x = Integer.parseInt(parts[1]);
+                int y = Integer.parseInt(parts[2]);
+                if (parts[4].isEmpty()) {
+                    // back to blank, which the canvas keeps as no tile at all
+                    inOrder(() -> frame.clearTile(x, y));
+                } else {
+                    decodeTile(() -> {
+                        try {
+                            BufferedImage tile = ImageIO.read(new ByteArrayInputStream(Base64.getDecoder().decode(parts[4])));
+                            return () -> frame.drawTile(x, y, tile);
+                        } catch (IOException e) {
+                            System.out.println("Bad tile from server: " + e.getMessage());
+                            return () -> {};
+                        }
+                    });
+                }
+            }
+        } else if (msg.equals("CLEAR")) {
+            // someone cleared the canvas, there's nothing to download
+            if (frame != null) {
+                inOrder(() -> frame.clearCanvas());
             }
         } else if (msg.equals("TURN")) {
             if (frame != null) {
-                SwingUtilities.invokeLater(() -> frame.setTurn(true));
+                inOrder(() -> frame.setTurn(true));
             }
         } else if (msg.startsWith("LOG ")) {
             String logMsg = msg.substring(4);
             if (frame != null) {
-                SwingUtilities.invokeLater(() -> frame.updateLog(logMsg));
+                inOrder(() -> frame.updateLog(logMsg));
             }
         }
     }
 
+    /**
+     * Draws a drawing action, part of a stroke or a tile received from the server,
+     * as a text line or a binary frame.
+     */
+    private static void handleDrawing(WireMessage message) {
+        if (frame != null) {
+            if (message.isTile()) {
+                TileData tile = message.tile;
+                decodeTile(() -> {
+                    try {
+                        BufferedImage image = tile.toImage();
+                        return () -> frame.setTile(tile.x, tile.y, image);
+                    } catch (IOException e) {
+                        System.out.println("Bad tile from server: " + e.getMessage());
+                        return () -> {};
+                    }
+                });
+            } else if (message.isStroke()) {
+                inOrder(() -> frame.drawStroke(message.stroke));
+            } else {
+                inOrder(() -> frame.drawFromData(message.draw));
+            }
+        }
+    }
+
+    /**
+     * Starts the client. Pass --text to stay on the text protocol instead of
+     * asking the server for binary frames, --room=NAME to join a room other than the default one,
+     * --spectate to watch without taking turns, --server=HOST:PORT to connect to another server, such as a relay,
+     * and --compress to have the connection deflated on a slow link.
+     */
     public static void main(String[] args) {
+        boolean requestBinary = !Arrays.asList(args).contains("--text");
+        boolean spectate = Arrays.asList(args).contains("--spectate");
+        boolean compress = Arrays.asList(args).contains("--compress");
+        String room = null;
+        String host = ClientConnection.SERVER_ADDRESS;
+        int port = ClientConnection.PORT;
+        for (String arg : args) {
+            if (arg.startsWith("--room=")) {
+                room = arg.substring("--room=".length());
+            } else if (arg.startsWith("--server=")) {
+                String server = arg.substring("--server=".length());
+                int colon = server.lastIndexOf(':');
+                host = colon < 0 ? server : server.substring(0, colon);
+                if (colon >= 0) {
+                    port = Integer.parseInt(server.substring(colon + 1));
+                }
+            }
+        }
+        String roomName = room;
+        String serverHost = host;
+        int serverPort = port;
         SwingUtilities.invokeLater(() -> {
 
             try {
-                connection = new ClientConnection(DrawWithFriends::handleServerMessage);
+                connection = new ClientConnection(DrawWithFriends::handleServerMessage,
+                        DrawWithFriends::handleDrawing, requestBinary, serverHost, serverPort);
+                connection.setSpectate(spectate);
+                connection.setCompress(compress);
                 try {
                     UIManager.setLookAndFeel(new FlatIntelliJLaf());
                 } catch (Exception e) {
@@ -89,7 +231,7 @@ public class DrawWithFriends extends JFrame {
                     if (username == null || username.trim().isEmpty()) {
                         System.exit(0);
                     }
-                    connection.send("JOIN " + username.trim());
+                    connection.join(roomName, username.trim());
 
                     // wait up to 5 seconds for either NAMEINUSE or JOINED
                     boolean done = false;
@@ -116,10 +258,18 @@ public class DrawWithFriends extends JFrame {
 
                 // Create a new instance
                 frame = new DrawingAppFrame(connection, localUsername);
+                if (spectate) {
+                    frame.setSpectating();
+                }
+                if (canvasWidth > 0) {
+                    frame.setCanvasSize(canvasWidth, canvasHeight);
+                }
                 frame.setVisible(true);
 
                 // Set ready to true when GUI is set up and visible
                 isReady = true;
+                // the viewport first, so the sync only sends what's in view
+                frame.sendViewport();
                 connection.send("READY");
 
                 // Handle disconnect when window closes
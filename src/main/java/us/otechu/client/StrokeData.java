@@ -0,0 +1,85 @@
+package us.otechu.client;
+
+import java.awt.Color;
+
+/**
+ * One message of a freehand pencil stroke.
+ * A stroke is sent as BEGIN (style and first point), any number of POINTS batches,
+ * then END, instead of one DRAW message per mouse movement.
+ */
+public class StrokeData {
+    /** Which part of the stroke this message is */
+    public enum Phase { BEGIN, POINTS, END }
+
+    /** Identifies the stroke, chosen by the drawing client */
+    public int id;
+    public Phase phase;
+    /** Only set on BEGIN */
+    public String colourHex;
+    /** Only set on BEGIN */
+    public int thickness;
+    /** Flattened x, y pairs. The first point on BEGIN, the new points on POINTS */
+    public int[] points;
+
+    private StrokeData(int id, Phase phase, String colourHex, int thickness, int[] points) {
+        this.id = id;
+        this.phase = phase;
+        this.colourHex = colourHex;
+        this.thickness = thickness;
+        this.points = points;
+    }
+
+    /**
+     * Starts a stroke at a point.
+     *
+     * @param id        the stroke id
+     * @param x         starting x coordinate
+     * @param y         starting y coordinate
+     * @param colour    the colour of the stroke
+     * @param thickness the stroke thickness
+     */
+    public static StrokeData begin(int id, int x, int y, Color colour, int thickness) {
+        return new StrokeData(id, Phase.BEGIN, DrawData.colorToHex(colour), thickness, new int[] { x, y });
+    }
+
+    /**
+     * Continues a stroke through more points.
+     *
+     * @param id     the stroke id
+     * @param points flattened x, y pairs
+     */
+    public static StrokeData points(int id, int[] points) {
+        return new StrokeData(id, Phase.POINTS, null, 0, points);
+    }
+
+    /**
+     * Ends a stroke.
+     *
+     * @param id the stroke id
+     */
+    public static StrokeData end(int id) {
+        return new StrokeData(id, Phase.END, null, 0, new int[0]);
+    }
+
+    /**
+     * Checks a stroke message that was received has everything its phase needs,
+     * since the JSON form can leave out any field.
+     *
+     * @return true if it can be drawn
+     */
+    public boolean isValid() {
+        // even END has its empty points
+        if (phase == null || points == null) {
+            return false;
+        }
+        switch (phase) {
+            case BEGIN:
+                return points.length >= 2 && thickness > 0
+                        && colourHex != null && colourHex.matches("#[0-9a-fA-F]{6}");
+            case POINTS:
+                return points.length % 2 == 0;
+            default:
+                return true;
+        }
+    }
+}
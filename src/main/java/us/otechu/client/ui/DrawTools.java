@@ -1,33 +1,53 @@
 package us.otechu.client.ui;
 
-import com.google.gson.Gson;
 import us.otechu.client.ClientConnection;
 import us.otechu.client.DrawData;
+import us.otechu.client.StrokeData;
+import us.otechu.common.StrokeTracker;
+import us.otechu.common.TiledCanvas;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.MouseEvent;
+import java.util.Arrays;
 import java.util.function.Supplier;
 
 /**
  * Interface for drawing tools.
- * Methods to handle mouse events
+ * Methods to handle mouse events, drawing finished shapes onto the canvas and previews onto the panel
  */
 public interface DrawTools {
-    void onMousePressed(MouseEvent e, Graphics2D g2);
-    void onMouseDragged(MouseEvent e, Graphics2D g2);
-    void onMouseReleased(MouseEvent e, Graphics2D g2);
+    void onMousePressed(MouseEvent e, TiledCanvas canvas);
+    void onMouseDragged(MouseEvent e, TiledCanvas canvas);
+    void onMouseReleased(MouseEvent e, TiledCanvas canvas);
     void preview(Graphics2D g2);
 }
 /**
  * Tool for freehand drawing when dragging mouse.
+ * The stroke is sent as a BEGIN, then the dragged points in batches, then an END,
+ * rather than one message per mouse movement.
  */
 class Pencil implements DrawTools {
-    private int prevX, prevY;
+    /** How often pending points are sent while dragging */
+    private static final int FLUSH_INTERVAL_MS = 16;
+    /** Points are sent early if this many are waiting */
+    private static final int MAX_BATCH_POINTS = 64;
+
+    private static int nextStrokeId = 1;
+
     private final Supplier<Color> colorSupplier;
     private final Supplier<Integer> thicknessSupplier;
     private final ClientConnection connection;
 
+    private int strokeId;
+    private boolean stroking = false;
+    // draws the stroke locally the same way the other players draw it
+    private final StrokeTracker localStroke = new StrokeTracker();
+    // x, y pairs dragged through since the last batch was sent
+    private int[] pending = new int[MAX_BATCH_POINTS * 2];
+    private int pendingLength = 0;
+    private final Timer flushTimer = new Timer(FLUSH_INTERVAL_MS, e -> flushPoints());
+
     public Pencil(Supplier<Color> colorSupplier, Supplier<Integer> thicknessSupplier, ClientConnection connection) {
         this.colorSupplier = colorSupplier;
         this.thicknessSupplier = thicknessSupplier;
@@ -35,37 +55,46 @@ class Pencil implements DrawTools {
     }
 
     @Override
-    public void onMousePressed(MouseEvent e, Graphics2D g2) {
-        prevX = e.getX();
-        prevY = e.getY();
-        // Draws a dot when only clicked
-        drawDot(prevX, prevY, g2);
+    public void onMousePressed(MouseEvent e, TiledCanvas canvas) {
+        // Start the stroke, which draws a dot when only clicked
+        strokeId = nextStrokeId++;
+        stroking = true;
+        pendingLength = 0;
+        StrokeData begin = StrokeData.begin(strokeId, e.getX(), e.getY(), colorSupplier.get(), thicknessSupplier.get());
+        localStroke.apply(canvas, begin);
+        connection.sendStroke(begin);
+        flushTimer.start();
     }
 
     @Override
-    public void onMouseDragged(MouseEvent e, Graphics2D g2) {
+    public void onMouseDragged(MouseEvent e, TiledCanvas canvas) {
+        if (!stroking) {
+            return;
+        }
         int x = e.getX();
         int y = e.getY();
-        // Set brush settings
-        g2.setColor(colorSupplier.get());
-        g2.setStroke(new BasicStroke(thicknessSupplier.get()));
-
-        // Draws small line segement
-        g2.drawLine(prevX, prevY, x, y);
-
-
-        // Send data for new line to the server to update other players
-        DrawData data = new DrawData(prevX, prevY, x, y, colorSupplier.get(), thicknessSupplier.get(), "pencil", false);
-        String json = new Gson().toJson(data);
-        connection.send("DRAW " + json);
-
-        prevX = x;
-        prevY = y;
+        // Draws small line segement, only onto the tiles it crosses
+        localStroke.apply(canvas, StrokeData.points(strokeId, new int[] { x, y }));
+
+        // Queue the point, sent with the next batch
+        pending[pendingLength++] = x;
+        pending[pendingLength++] = y;
+        if (pendingLength == pending.length) {
+            flushPoints();
+        }
     }
 
     @Override
-    public void onMouseReleased(MouseEvent e, Graphics2D g) {
-        // Nothing to override
+    public void onMouseReleased(MouseEvent e, TiledCanvas canvas) {
+        if (!stroking) {
+            return;
+        }
+        flushTimer.stop();
+        flushPoints();
+        StrokeData end = StrokeData.end(strokeId);
+        localStroke.apply(canvas, end);
+        connection.sendStroke(end);
+        stroking = false;
     }
 
     @Override
@@ -74,12 +103,14 @@ class Pencil implements DrawTools {
     }
 
     /**
-     * Draws a dot at the location clicked
+     * Sends the points dragged through since the last batch
      */
-    private void drawDot(int x, int y, Graphics2D g) {
-        g.setColor(colorSupplier.get());
-        int size = thicknessSupplier.get();
-        g.fillOval(x - size / 2, y - size / 2, size, size);
+    private void flushPoints() {
+        if (pendingLength == 0) {
+            return;
+        }
+        connection.sendStroke(StrokeData.points(strokeId, Arrays.copyOf(pending, pendingLength)));
+        pendingLength = 0;
     }
 }
 /**
@@ -99,7 +130,7 @@ class Line implements  DrawTools {
     }
 
     @Override
-    public void onMousePressed(MouseEvent e, Graphics2D g2) {
+    public void onMousePressed(MouseEvent e, TiledCanvas canvas) {
         // Set all coords when first clicked
         x1 = e.getX();
         y1 = e.getY();
@@ -109,24 +140,20 @@ class Line implements  DrawTools {
     }
 
     @Override
-    public void onMouseDragged(MouseEvent e, Graphics2D g2) {
+    public void onMouseDragged(MouseEvent e, TiledCanvas canvas) {
         // Update final coords during draggin
         x2 = e.getX();
         y2 = e.getY();
     }
 
     @Override
-    public void onMouseReleased(MouseEvent e, Graphics2D g2) {
-        g2.setStroke(new BasicStroke(thicknessSupplier.get()));
-        g2.setColor(colorSupplier.get());
-        // Draw the final line when released
-        g2.drawLine(x1, y1, x2, y2);
+    public void onMouseReleased(MouseEvent e, TiledCanvas canvas) {
         isDragging = false;
 
-        // Send data for new line to the server to update other players
+        // Draw the final line when released, and send it to the server to update other players
         DrawData data = new DrawData(x1, y1, x2, y2, colorSupplier.get(), thicknessSupplier.get(), "line", false);
-        String json = new Gson().toJson(data);
-        connection.send("DRAW " + json);
+        canvas.draw(data);
+        connection.sendDraw(data);
     }
     /**
      * Draws a preview of the line while dragging.
@@ -158,7 +185,7 @@ class Rectangle implements DrawTools {
     }
 
     @Override
-    public void onMousePressed(MouseEvent e, Graphics2D g2) {
+    public void onMousePressed(MouseEvent e, TiledCanvas canvas) {
         x1 = e.getX();
         y1 = e.getY();
         x2 = e.getX();
@@ -167,16 +194,14 @@ class Rectangle implements DrawTools {
     }
 
     @Override
-    public void onMouseDragged(MouseEvent e, Graphics2D g2) {
+    public void onMouseDragged(MouseEvent e, TiledCanvas canvas) {
         x2 = e.getX();
         y2 = e.getY();
     }
 
     @Override
-    public void onMouseReleased(MouseEvent e, Graphics2D g2) {
+    public void onMouseReleased(MouseEvent e, TiledCanvas canvas) {
         isDragging = false;
-        g2.setStroke(new BasicStroke(thicknessSupplier.get()));
-        g2.setColor(colorSupplier.get());
 
         // Get the top left corner (x,y)
         int x = Math.min(x1, x2);
@@ -186,15 +211,9 @@ class Rectangle implements DrawTools {
         int width = Math.abs(x2 - x1);
         int height = Math.abs(y2 - y1);
 
-        if (filled.get()) {
-            g2.fillRect(x, y, width, height);
-        } else {
-            g2.drawRect(x, y, width, height);
-        }
-
         DrawData data = new DrawData(x, y, x + width, y + height, colorSupplier.get(), thicknessSupplier.get(), "rect", filled.get());
-        String json = new Gson().toJson(data);
-        connection.send("DRAW " + json);
+        canvas.draw(data);
+        connection.sendDraw(data);
     }
 
     @Override
@@ -237,7 +256,7 @@ class Circle implements DrawTools {
     }
 
     @Override
-    public void onMousePressed(MouseEvent e, Graphics2D g2) {
+    public void onMousePressed(MouseEvent e, TiledCanvas canvas) {
         x1 = e.getX();
         y1 = e.getY();
         x2 = x1;
@@ -246,16 +265,14 @@ class Circle implements DrawTools {
     }
 
     @Override
-    public void onMouseDragged(MouseEvent e, Graphics2D g2) {
+    public void onMouseDragged(MouseEvent e, TiledCanvas canvas) {
         x2 = e.getX();
         y2 = e.getY();
     }
 
     @Override
-    public void onMouseReleased(MouseEvent e, Graphics2D g2) {
+    public void onMouseReleased(MouseEvent e, TiledCanvas canvas) {
         isDragging = false;
-        g2.setStroke(new BasicStroke(thicknessSupplier.get()));
-        g2.setColor(colorSupplier.get());
 
         // Get top left of the coordinates
         int x = Math.min(x1, x2);
@@ -265,16 +282,9 @@ class Circle implements DrawTools {
         int width = Math.abs(x2 - x1);
         int height = Math.abs(y2 - y1);
 
-
-        if (filled.get()) {
-            g2.fillOval(x, y, width, height);
-        } else {
-            g2.drawOval(x, y, width, height);
-        }
-
         DrawData data = new DrawData(x, y, x + width, y + height, colorSupplier.get(), thicknessSupplier.get(), "circle", filled.get());
-        String json = new Gson().toJson(data);
-        connection.send("DRAW " + json);
+        canvas.draw(data);
+        connection.sendDraw(data);
     }
 
     @Override
@@ -314,26 +324,22 @@ class TextTool implements DrawTools {
     }
 
     @Override
-    public void onMousePressed(MouseEvent e, Graphics2D g2) {
+    public void onMousePressed(MouseEvent e, TiledCanvas canvas) {
         // Pop up to get user input
         String input = JOptionPane.showInputDialog(parent, "Enter text:");
         if (input != null && !input.isEmpty()) {
-            g2.setColor(colorSupplier.get());
-            // Text size based on thickness supplier
-            g2.setFont(new Font("Arial", Font.PLAIN, thicknessSupplier.get() * 5));
-            g2.drawString(input, e.getX(), e.getY());
-
+            // Text size is based on thickness supplier
             DrawData data = new DrawData(e.getX(), e.getY(), 0, 0, colorSupplier.get(), thicknessSupplier.get(), "text:" + input, false);
-            String json = new Gson().toJson(data);
-            connection.send("DRAW " + json);
+            canvas.draw(data);
+            connection.sendDraw(data);
         }
     }
 
     @Override
-    public void onMouseDragged(MouseEvent e, Graphics2D g2) {}
+    public void onMouseDragged(MouseEvent e, TiledCanvas canvas) {}
 
     @Override
-    public void onMouseReleased(MouseEvent e, Graphics2D g2) {}
+    public void onMouseReleased(MouseEvent e, TiledCanvas canvas) {}
 
     @Override
     public void preview(Graphics2D g2) {}
@@ -4,6 +4,9 @@ import com.formdev.flatlaf.FlatDarculaLaf;
 import com.formdev.flatlaf.FlatIntelliJLaf;
 import us.otechu.client.ClientConnection;
 import us.otechu.client.DrawData;
+import us.otechu.client.StrokeData;
+import us.otechu.common.StrokeTracker;
+import us.otechu.common.TiledCanvas;
 import us.otechu.common.Utils;
 
 import javax.imageio.ImageIO;
@@ -12,9 +15,11 @@ import javax.swing.border.TitledBorder;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.util.Base64;
 import java.util.Objects;
@@ -36,6 +41,15 @@ public class DrawingAppFrame extends JFrame {
 
     private boolean isTurn = false;
 
+    /** How long the viewport has to stay still before it's reported to the server */
+    private static final int VIEW_REPORT_DELAY_MS = 100;
+    // reports the viewport once panning or zooming pauses, rather than on every mouse event
+    private Timer viewReportTimer;
+    private String lastViewReport;
+
+    // strokes other players are in the middle of drawing
+    private final StrokeTracker remoteStrokes = new StrokeTracker();
+
     private JButton endTurnButton;
     private JButton clearButton;
     private JMenuItem openItem;
@@ -268,6 +282,9 @@ public class DrawingAppFrame extends JFrame {
         drawingPanel.setBackground(Color.WHITE);
         drawingPanel.setDrawingAttributes(() -> currentColor, () -> brushSize);
         drawingPanel.setCurrentTool(new Pencil(() -> currentColor, () -> brushSize, connection));
+        viewReportTimer = new Timer(VIEW_REPORT_DELAY_MS, e -> sendViewport());
+        viewReportTimer.setRepeats(false);
+        drawingPanel.setViewportListener(view -> viewReportTimer.restart());
 
         // add some margin around it
         JPanel canvasContainer = new JPanel(new BorderLayout());
@@ -470,13 +487,12 @@ public class DrawingAppFrame extends JFrame {
         if (userChoice == JFileChooser.APPROVE_OPTION) {
             File file = fileChooser.getSelectedFile();
             try {
-                BufferedImage img = ImageIO.read(file);
+                // only the part that lands on the canvas is decoded
+                TiledCanvas canvas = drawingPanel.getCanvas();
+                BufferedImage img = Utils.readImage(file, canvas.getWidth(), canvas.getHeight());
                 if (img != null) {
                     drawingPanel.setCanvasImage(img); // set local canvas
-
-                    String base64 = encodeToBase64(img);
-//                    String base64 = encodeToBase64(drawingPanel.getCanvasImage());
-                    connection.send("LOADIMG " + base64); // send to server
+                    uploadImage(file); // send to server
                 }
             } catch (IOException e) {
                 e.printStackTrace();
@@ -487,24 +503,35 @@ public class DrawingAppFrame extends JFrame {
     }
 
     /**
-     * Encodes a BufferedImage to a Base64 string
-     * 
-     * @param image the image to encode
-     * @return the Base64 encoded string
-     * @throws IOException
+     * Sends an image file to the server as it is, on a background thread, with a progress dialog that can cancel it.
+     *
+     * @param file the image file
      */
-    private String encodeToBase64(BufferedImage image) throws IOException {
-        // easteregg: first thing imma load is a trackhawk... source Big30
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        ImageIO.write(image, "png", baos);
-        return Base64.getEncoder().encodeToString(baos.toByteArray());
+    private void uploadImage(File file) {
+        long size = file.length();
+        ProgressMonitor monitor = new ProgressMonitor(this, "Sending " + file.getName(), null, 0, 100);
+        monitor.setMillisToDecideToPopup(250);
+        new Thread(() -> {
+            try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+                connection.uploadImage(in, size, received -> {
+                    int percent = (int) (received * 100 / Math.max(1, size));
+                    SwingUtilities.invokeLater(() -> monitor.setProgress(percent));
+                    return !monitor.isCanceled();
+                });
+            } catch (IOException e) {
+                SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(this,
+                        "Error sending image: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE));
+            } finally {
+                SwingUtilities.invokeLater(monitor::close);
+            }
+        }, "Image Upload Thread").start();
     }
 
     public void loadImageFromBase64(String base64) {
         try {
             byte[] bytes = Base64.getDecoder().decode(base64);
-            ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
-            BufferedImage img = ImageIO.read(bais);
+            TiledCanvas canvas = drawingPanel.getCanvas();
+            BufferedImage img = Utils.readImage(new ByteArrayInputStream(bytes), canvas.getWidth(), canvas.getHeight());
             if (img != null) {
                 drawingPanel.setCanvasImage(img);
             }
@@ -514,15 +541,102 @@ public class DrawingAppFrame extends JFrame {
 
     }
 
+    /**
+     * Tells the server which part of the canvas is in view, so it only streams the ops that land there.
+     * Does nothing if the viewport hasn't changed since it was last sent.
+     */
+    public void sendViewport() {
+        java.awt.Rectangle view = drawingPanel.getViewport();
+        if (view.isEmpty()) {
+            return;
+        }
+        String report = "VIEW " + view.x + " " + view.y + " " + view.width + " " + view.height;
+        if (!report.equals(lastViewReport)) {
+            lastViewReport = report;
+            connection.send(report);
+        }
+    }
+
+    /**
+     * Draws one canvas tile sent by the server as a PNG, already decoded
+     *
+     * @param x    x position of the tile
+     * @param y    y position of the tile
+     * @param tile the tile image, or null if it couldn't be decoded
+     */
+    public void drawTile(int x, int y, BufferedImage tile) {
+        if (tile != null) {
+            drawingPanel.drawTile(tile, x, y);
+        }
+    }
+
     /**
      * Takes the data from a drawing action and displays it on the canvas
      * 
      * @param data the drawing data to display
      */
     public void drawFromData(DrawData data) {
-        Graphics2D g2 = drawingPanel.getCanvasImage().createGraphics();
-        Utils.drawFromData(g2, data);
-        drawingPanel.repaint();
+        drawingPanel.getCanvas().draw(data);
+    }
+
+    /**
+     * Draws part of another player's pencil stroke on the canvas
+     *
+     * @param data the stroke message
+     */
+    public void drawStroke(StrokeData data) {
+        remoteStrokes.apply(drawingPanel.getCanvas(), data);
+    }
+
+    /**
+     * Gives the canvas the size of the room's canvas
+     *
+     * @param width  canvas width
+     * @param height canvas height
+     */
+    public void setCanvasSize(int width, int height) {
+        drawingPanel.setCanvasSize(width, height);
+    }
+
+    /**
+     * Replaces one canvas tile with pixels sent by the server as a tile frame
+     *
+     * @param x     x position of the tile
+     * @param y     y position of the tile
+     * @param image the tile's pixels, or null if it's blank again
+     */
+    public void setTile(int x, int y, BufferedImage image) {
+        if (image == null) {
+            drawingPanel.clearTile(x, y);
+        } else {
+            drawingPanel.setTile(image, x, y);
+        }
+    }
+
+    /**
+     * Makes the whole canvas blank again, as told by the server
+     */
+    public void clearCanvas() {
+        drawingPanel.getCanvas().clear();
+    }
+
+    /**
+     * Makes a canvas tile blank again, as told by the server
+     *
+     * @param x x position of the tile
+     * @param y y position of the tile
+     */
+    public void clearTile(int x, int y) {
+        drawingPanel.clearTile(x, y);
+    }
+
+    /**
+     * Shows that the user is only watching. Spectators never get a turn, and can't chat.
+     */
+    public void setSpectating() {
+        setTitle(getTitle() + " (watching)");
+        chatInput.setEnabled(false);
+        updateLog("You're watching. Start without --spectate to play.");
     }
 
     /**
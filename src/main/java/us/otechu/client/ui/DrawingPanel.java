@@ -1,24 +1,50 @@
 package us.otechu.client.ui;
 
-import us.otechu.client.DrawData;
+import us.otechu.common.TiledCanvas;
 
 import java.awt.*;
+import java.awt.Rectangle;
 import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionAdapter;
+import java.awt.event.MouseWheelEvent;
 import java.awt.image.BufferedImage;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 
 /**
- * JPanel that manages an offscreen image for drawing
+ * JPanel that shows a tiled canvas for drawing, through a viewport that can be panned and zoomed.
+ * The canvas has the server's size from the start and only allocates the tiles that are drawn on,
+ * so resizing the window never copies it.
+ * Only the tiles in view are drawn, and zoomed out views are drawn from a {@link MipmapPyramid}
+ * rather than by scaling down the full size tiles.
+ * Drag with the right or middle mouse button to pan, and use the mouse wheel to zoom.
  */
 public class DrawingPanel extends JPanel {
-    private BufferedImage canvasImage;
-    private Graphics2D g2;
+    private TiledCanvas canvas;
+    private MipmapPyramid pyramid;
+
+    /** Canvas size until the server sends its own */
+    private static final int DEFAULT_WIDTH = 1920, DEFAULT_HEIGHT = 1080;
+
+    /** How far the viewport zooms in and out, in screen pixels per canvas pixel */
+    private static final double MIN_SCALE = 1.0 / 64, MAX_SCALE = 16;
+    /** How much one notch of the mouse wheel zooms */
+    private static final double ZOOM_STEP = 1.25;
+
+    // the viewport: screen pixels per canvas pixel, and the canvas point at the panel's top left corner
+    private double scale = 1;
+    private double viewX = 0, viewY = 0;
+    // where the last pan drag event was, in screen pixels
+    private int panX, panY;
+    private boolean panning = false;
+    // told the visible area of the canvas whenever the viewport moves, null if nobody is listening
+    private Consumer<Rectangle> viewportListener;
 
     /** Disables ability to draw when false */
     private boolean drawingEnabled = false;
@@ -31,22 +57,29 @@ public class DrawingPanel extends JPanel {
     public DrawingPanel() {
         // setup
         setDoubleBuffered(true);
-        setBackground(Color.WHITE);
+        setBackground(TiledCanvas.BACKGROUND);
+        setCanvas(new TiledCanvas(DEFAULT_WIDTH, DEFAULT_HEIGHT));
 
         // listen for mouse events
         addMouseListener(new MouseAdapter() {
             @Override
             public void mousePressed(MouseEvent e) {
-                if (canDraw()) {
-                    currentTool.onMousePressed(e, g2);
+                if (!SwingUtilities.isLeftMouseButton(e)) {
+                    panning = true;
+                    panX = e.getX();
+                    panY = e.getY();
+                } else if (canDraw()) {
+                    currentTool.onMousePressed(toCanvas(e), canvas);
                     repaint();
                 }
             }
 
             @Override
             public void mouseReleased(MouseEvent e) {
-                if (canDraw()) {
-                    currentTool.onMouseReleased(e, g2);
+                if (!SwingUtilities.isLeftMouseButton(e)) {
+                    panning = false;
+                } else if (canDraw()) {
+                    currentTool.onMouseReleased(toCanvas(e), canvas);
                     repaint();
                 }
             }
@@ -55,95 +88,154 @@ public class DrawingPanel extends JPanel {
         addMouseMotionListener(new MouseMotionAdapter() {
             @Override
             public void mouseDragged(MouseEvent e) {
-                if (canDraw()) {
-                    currentTool.onMouseDragged(e, g2);
+                if (panning) {
+                    viewX -= (e.getX() - panX) / scale;
+                    viewY -= (e.getY() - panY) / scale;
+                    panX = e.getX();
+                    panY = e.getY();
+                    viewportChanged();
+                    repaint();
+                } else if (canDraw() && SwingUtilities.isLeftMouseButton(e)) {
+                    currentTool.onMouseDragged(toCanvas(e), canvas);
                     repaint();
                 }
             }
         });
 
-        // listen for resizing events
+        addMouseWheelListener(this::zoom);
+
         addComponentListener(new ComponentAdapter() {
             @Override
             public void componentResized(ComponentEvent e) {
-                resizeCanvasIfNeeded();
+                viewportChanged();
             }
         });
-
     }
 
     /**
-     * Determines if we can draw on the canvas
-     * 
-     * @return true if we can draw, false otherwise
+     * Sets what is told about the visible area of the canvas every time the viewport moves or resizes.
+     *
+     * @param listener receives the visible area in canvas pixels, or null to stop listening
      */
-    private boolean canDraw() {
-        return drawingEnabled && currentTool != null && g2 != null;
+    public void setViewportListener(Consumer<Rectangle> listener) {
+        this.viewportListener = listener;
     }
 
     /**
-     * On first paint (or if the image is null), create the canvas.
-     * Then draw the image onto the panel's Graphics.
+     * @return the area of the canvas in view, in canvas pixels; it may reach past the canvas edges
      */
-    @Override
-    protected void paintComponent(Graphics g) {
-        super.paintComponent(g);
-        if (canvasImage == null) {
-            createInitialCanvas();
-        }
-        g.drawImage(canvasImage, 0, 0, null);
+    public Rectangle getViewport() {
+        int x1 = (int) Math.floor(viewX);
+        int y1 = (int) Math.floor(viewY);
+        int x2 = (int) Math.ceil(viewX + getWidth() / scale);
+        int y2 = (int) Math.ceil(viewY + getHeight() / scale);
+        return new Rectangle(x1, y1, x2 - x1, y2 - y1);
+    }
 
-        if (currentTool != null) {
-            currentTool.preview((Graphics2D) g);
+    private void viewportChanged() {
+        if (viewportListener != null) {
+            viewportListener.accept(getViewport());
         }
     }
 
     /**
-     * Creates the initial canvas image and fills it with white.
+     * Zooms in or out around the mouse pointer, keeping the canvas point under it in place.
      */
-    private void createInitialCanvas() {
-        // create the image
-        canvasImage = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_RGB);
-        g2 = canvasImage.createGraphics();
-        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    private void zoom(MouseWheelEvent e) {
+        double factor = Math.pow(ZOOM_STEP, -e.getPreciseWheelRotation());
+        double newScale = Math.max(MIN_SCALE, Math.min(MAX_SCALE, scale * factor));
+        viewX += e.getX() / scale - e.getX() / newScale;
+        viewY += e.getY() / scale - e.getY() / newScale;
+        scale = newScale;
+        viewportChanged();
+        repaint();
+    }
+
+    /**
+     * Moves a mouse event from screen pixels onto the canvas, so tools work in canvas coordinates at any zoom.
+     */
+    private MouseEvent toCanvas(MouseEvent e) {
+        int x = (int) Math.floor(viewX + e.getX() / scale);
+        int y = (int) Math.floor(viewY + e.getY() / scale);
+        return new MouseEvent(e.getComponent(), e.getID(), e.getWhen(), e.getModifiersEx(), x, y,
+                e.getClickCount(), e.isPopupTrigger(), e.getButton());
+    }
 
-        g2.setColor(Color.WHITE);
-        g2.fillRect(0, 0, getWidth(), getHeight());
+    /**
+     * @param area an area in canvas pixels
+     * @return the screen area it's shown in, grown to whole pixels
+     */
+    private Rectangle toScreen(Rectangle area) {
+        int x1 = (int) Math.floor((area.x - viewX) * scale);
+        int y1 = (int) Math.floor((area.y - viewY) * scale);
+        int x2 = (int) Math.ceil((area.x + area.width - viewX) * scale);
+        int y2 = (int) Math.ceil((area.y + area.height - viewY) * scale);
+        return new Rectangle(x1, y1, x2 - x1, y2 - y1);
     }
 
     /**
-     * Resizes the image if the panel is bigger than the current image.
-     * Preserves existing drawings by copying the old image into the new one.
+     * Uses a new canvas, redrawing the parts of the panel that show it whenever it changes.
      */
-    private void resizeCanvasIfNeeded() {
-        int w = getWidth();
-        int h = getHeight();
-        if (w <= 0 || h <= 0)
-            return; // invalid size
+    private void setCanvas(TiledCanvas newCanvas) {
+        canvas = newCanvas;
+        pyramid = new MipmapPyramid(canvas);
+        canvas.setChangeListener(area -> {
+            pyramid.invalidate(area);
+            repaint(toScreen(area));
+        });
+    }
 
-        // if we have no image yet, or the panel grew beyond the current canvas
-        if (canvasImage == null ||
-                canvasImage.getWidth() < w ||
-                canvasImage.getHeight() < h) {
+    /**
+     * Determines if we can draw on the canvas
+     * 
+     * @return true if we can draw, false otherwise
+     */
+    private boolean canDraw() {
+        return drawingEnabled && currentTool != null;
+    }
 
-            // new bigger image
-            BufferedImage newImg = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-            Graphics2D gNew = newImg.createGraphics();
-            gNew.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    /**
+     * Draws the tiles of the canvas that are in the area being repainted,
+     * from the level of the pyramid that suits the zoom.
+     */
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        }
+        Graphics2D g2 = (Graphics2D) g.create();
+        g2.scale(scale, scale);
+        g2.translate(-viewX, -viewY);
 
-            // fill background white
-            gNew.setColor(Color.WHITE);
-            gNew.fillRect(0, 0, w, h);
+        // the visible area in canvas pixels, outside the canvas stays the panel's background
+        int x1 = (int) Math.floor(viewX + clip.x / scale);
+        int y1 = (int) Math.floor(viewY + clip.y / scale);
+        int x2 = (int) Math.ceil(viewX + (clip.x + clip.width) / scale);
+        int y2 = (int) Math.ceil(viewY + (clip.y + clip.height) / scale);
+        Rectangle visible = new Rectangle(x1, y1, x2 - x1, y2 - y1)
+                .intersection(new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight()));
+        if (!visible.isEmpty()) {
+            pyramid.paintTo(g2, pyramid.levelFor(scale), visible);
+        }
 
-            // copy old content
-            if (canvasImage != null) {
-                gNew.drawImage(canvasImage, 0, 0, null);
-                g2.dispose(); // discard old
-            }
+        if (currentTool != null) {
+            currentTool.preview(g2);
+        }
+        g2.dispose();
+    }
 
-            canvasImage = newImg;
-            g2 = canvasImage.createGraphics();
-            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    /**
+     * Replaces the canvas with a blank one of the server's size.
+     *
+     * @param width  canvas width
+     * @param height canvas height
+     */
+    public void setCanvasSize(int width, int height) {
+        if (width != canvas.getWidth() || height != canvas.getHeight()) {
+            setCanvas(new TiledCanvas(width, height));
+            repaint();
         }
     }
 
@@ -161,27 +253,73 @@ public class DrawingPanel extends JPanel {
      * @param image the image to load onto the canvas
      */
     public void setCanvasImage(BufferedImage image) {
-        int w = Math.max(canvasImage.getWidth(), image.getWidth());
-        int h = Math.max(canvasImage.getHeight(), image.getHeight());
+        // the image replaces the whole canvas, anything past its edges is blank
+        canvas.clear();
+        canvas.drawImage(image, 0, 0);
+    }
 
-        // create new image
-        canvasImage = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-        g2 = canvasImage.createGraphics();
-        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    /**
+     * Replaces one tile of the canvas with a tile sent by the server.
+     *
+     * @param tile the tile image
+     * @param x    x position of the tile on the canvas
+     * @param y    y position of the tile on the canvas
+     */
+    public void drawTile(BufferedImage tile, int x, int y) {
+        canvas.drawImage(tile, x, y);
+    }
 
-        // fill new image white, then draw the server image in full
-        g2.setColor(Color.WHITE);
-        g2.fillRect(0, 0, w, h);
+    /**
+     * Hands a decoded tile sent by the server to the canvas, which keeps it instead of drawing it onto its own.
+     *
+     * @param tile the tile image, a TYPE_INT_RGB image nothing else uses
+     * @param x    x position of the tile on the canvas
+     * @param y    y position of the tile on the canvas
+     */
+    public void setTile(BufferedImage tile, int x, int y) {
+        int index = canvas.getTileIndex(x, y);
+        Rectangle r = index >= 0 ? canvas.getTileBounds(index) : null;
+        if (r != null && r.x == x && r.y == y && r.width == tile.getWidth() && r.height == tile.getHeight()) {
+            canvas.setTile(index, tile);
+        } else {
+            canvas.drawImage(tile, x, y);
+        }
+    }
 
-        g2.drawImage(image, 0, 0, null);
-        repaint();
+    /**
+     * Makes the tile at a position blank again, freeing it.
+     *
+     * @param x x position of the tile on the canvas
+     * @param y y position of the tile on the canvas
+     */
+    public void clearTile(int x, int y) {
+        int index = canvas.getTileIndex(x, y);
+        if (index >= 0) {
+            canvas.setTile(index, null);
+        }
     }
 
     /**
-     * Access to the image for saving
+     * Copies what's been drawn into one image for saving, or the visible part if nothing has
      */
     public BufferedImage getCanvasImage() {
-        return canvasImage;
+        Rectangle drawn = canvas.getDrawnExtent();
+        if (drawn == null) {
+            drawn = new Rectangle((int) viewX, (int) viewY, (int) Math.ceil(getWidth() / scale),
+                    (int) Math.ceil(getHeight() / scale))
+                    .intersection(new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight()));
+            if (drawn.isEmpty()) {
+                drawn = new Rectangle(0, 0, 1, 1);
+            }
+        }
+        return canvas.toImage(drawn);
+    }
+
+    /**
+     * @return the canvas, to draw other players' actions onto. The panel redraws whatever changes on it
+     */
+    public TiledCanvas getCanvas() {
+        return canvas;
     }
 
     public void setCurrentTool(DrawTools tool) {
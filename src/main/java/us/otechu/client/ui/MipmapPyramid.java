@@ -0,0 +1,196 @@
+package us.otechu.client.ui;
+
+import us.otechu.common.TiledCanvas;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Downsampled copies of a tiled canvas for drawing it zoomed out.
+ * Level 0 is the canvas itself, and each level above it is half the size of the one below,
+ * split into tiles of the same pixel size, so a level's tile covers four tiles of the level below.
+ * Tiles are only rebuilt when they're drawn after the canvas changed under them, from the four tiles below,
+ * so zooming out never rescales the whole canvas and a change costs one tile per level at most.
+ * Used on the Swing thread only.
+ */
+public class MipmapPyramid {
+    private final TiledCanvas canvas;
+    // levels above the canvas, the last one fits the whole canvas in one tile
+    private final int levels;
+    // [level - 1][tile index], null while blank
+    private final BufferedImage[][] tiles;
+    // [level - 1][tile index], true if the canvas changed under the tile since it was built
+    private final boolean[][] stale;
+    private final int[] cols, rows;
+
+    /**
+     * Creates a pyramid for a canvas. The canvas has to tell it about every change with {@link #invalidate}.
+     *
+     * @param canvas the full size canvas
+     */
+    public MipmapPyramid(TiledCanvas canvas) {
+        this.canvas = canvas;
+        int largest = Math.max(canvas.getWidth(), canvas.getHeight());
+        int count = 0;
+        while ((TiledCanvas.TILE_SIZE << count) < largest) {
+            count++;
+        }
+        this.levels = count;
+        this.tiles = new BufferedImage[levels][];
+        this.stale = new boolean[levels][];
+        this.cols = new int[levels + 1];
+        this.rows = new int[levels + 1];
+        for (int level = 0; level <= levels; level++) {
+            int span = TiledCanvas.TILE_SIZE << level;
+            cols[level] = (canvas.getWidth() + span - 1) / span;
+            rows[level] = (canvas.getHeight() + span - 1) / span;
+            if (level > 0) {
+                tiles[level - 1] = new BufferedImage[cols[level] * rows[level]];
+                stale[level - 1] = new boolean[cols[level] * rows[level]];
+                Arrays.fill(stale[level - 1], true);
+            }
+        }
+    }
+
+    /** @return the highest level, where the whole canvas is one tile */
+    public int getLevels() {
+        return levels;
+    }
+
+    /**
+     * Picks the level to draw at a zoom, the smallest one that's still at least as detailed as the screen.
+     *
+     * @param scale screen pixels per canvas pixel
+     * @return the level to draw
+     */
+    public int levelFor(double scale) {
+        int level = 0;
+        while (level < levels && scale * (2 << level) <= 1.0) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Marks the tiles over a changed area of the canvas to be rebuilt the next time they're drawn.
+     *
+     * @param area the changed area in canvas pixels
+     */
+    public void invalidate(Rectangle area) {
+        Rectangle clipped = area.intersection(new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight()));
+        if (clipped.isEmpty()) {
+            return;
+        }
+        for (int level = 1; level <= levels; level++) {
+            int span = TiledCanvas.TILE_SIZE << level;
+            int lastCol = (clipped.x + clipped.width - 1) / span;
+            int lastRow = (clipped.y + clipped.height - 1) / span;
+            for (int row = clipped.y / span; row <= lastRow; row++) {
+                for (int col = clipped.x / span; col <= lastCol; col++) {
+                    stale[level - 1][row * cols[level] + col] = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws the tiles of a level that overlap an area onto a graphics context in canvas coordinates,
+     * stretched back to the area they cover. Blank tiles are filled with the background colour.
+     *
+     * @param g     the context to draw on, usually scaled down
+     * @param level the level to draw, 0 for the canvas itself
+     * @param area  the area to draw in canvas pixels
+     */
+    public void paintTo(Graphics2D g, int level, Rectangle area) {
+        if (level == 0) {
+            canvas.paintTo(g, area);
+            return;
+        }
+        Rectangle clipped = area.intersection(new Rectangle(0, 0, canvas.getWidth(), canvas.getHeight()));
+        g.setColor(TiledCanvas.BACKGROUND);
+        g.fillRect(area.x, area.y, area.width, area.height);
+        if (clipped.isEmpty()) {
+            return;
+        }
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        int span = TiledCanvas.TILE_SIZE << level;
+        int lastCol = (clipped.x + clipped.width - 1) / span;
+        int lastRow = (clipped.y + clipped.height - 1) / span;
+        for (int row = clipped.y / span; row <= lastRow; row++) {
+            for (int col = clipped.x / span; col <= lastCol; col++) {
+                BufferedImage tile = getTile(level, col, row);
+                if (tile != null) {
+                    Rectangle r = coverage(level, col, row);
+                    g.drawImage(tile, r.x, r.y, r.width, r.height, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the tile at a level, rebuilt first if it's stale, or null if it's blank or off the canvas
+     */
+    private BufferedImage getTile(int level, int col, int row) {
+        if (col >= cols[level] || row >= rows[level]) {
+            return null;
+        }
+        if (level == 0) {
+            return canvas.getTile(row * cols[0] + col);
+        }
+        int index = row * cols[level] + col;
+        if (stale[level - 1][index]) {
+            tiles[level - 1][index] = rebuild(level, col, row, tiles[level - 1][index]);
+            stale[level - 1][index] = false;
+        }
+        return tiles[level - 1][index];
+    }
+
+    /**
+     * Halves the four tiles below into one.
+     *
+     * @param old the tile's previous image to reuse, or null
+     * @return the tile, or null if all four below are blank
+     */
+    private BufferedImage rebuild(int level, int col, int row, BufferedImage old) {
+        BufferedImage[] children = new BufferedImage[4];
+        boolean blank = true;
+        for (int i = 0; i < 4; i++) {
+            children[i] = getTile(level - 1, col * 2 + (i & 1), row * 2 + (i >> 1));
+            blank &= children[i] == null;
+        }
+        if (blank) {
+            return null;
+        }
+        Rectangle r = coverage(level, col, row);
+        int w = (r.width + (1 << level) - 1) >> level;
+        int h = (r.height + (1 << level) - 1) >> level;
+        BufferedImage tile = old != null ? old : new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = tile.createGraphics();
+        g.setColor(TiledCanvas.BACKGROUND);
+        g.fillRect(0, 0, w, h);
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        int half = TiledCanvas.TILE_SIZE / 2;
+        for (int i = 0; i < 4; i++) {
+            BufferedImage child = children[i];
+            if (child != null) {
+                g.drawImage(child, (i & 1) * half, (i >> 1) * half,
+                        (child.getWidth() + 1) / 2, (child.getHeight() + 1) / 2, null);
+            }
+        }
+        g.dispose();
+        return tile;
+    }
+
+    /**
+     * @return the area of the canvas a tile of a level covers
+     */
+    private Rectangle coverage(int level, int col, int row) {
+        int span = TiledCanvas.TILE_SIZE << level;
+        int x = col * span;
+        int y = row * span;
+        return new Rectangle(x, y, Math.min(span, canvas.getWidth() - x), Math.min(span, canvas.getHeight() - y));
+    }
+}
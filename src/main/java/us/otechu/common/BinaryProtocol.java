@@ -0,0 +1,488 @@
+package us.otechu.common;
+
+import java.awt.Color;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.google.gson.Gson;
+
+import us.otechu.client.DrawData;
+import us.otechu.client.StrokeData;
+
+/**
+ * Compact binary framing, used instead of text lines once both sides agree on it.
+ *
+ * Negotiation: a client that supports it joins with "JOINV bin1 name" instead of "JOIN name".
+ * If the name is accepted the server replies "PROTO bin1" as a text line, and from then on
+ * both directions use frames. Clients joining with a plain "JOIN" keep the text protocol.
+ *
+ * Frame: varint length of the rest, one opcode byte, payload.
+ * DRAW payload: shape tag, filled flag, packed 0xRRGGBB colour, varint thickness,
+ * zigzag varint x1, y1 and x2-x1, y2-y1 (small for pencil segments), then the text for the text tool.
+ * STROKE payload: phase, varint stroke id, then for BEGIN the colour, thickness and first point,
+ * for POINTS a varint count and the points, each a zigzag delta from the one before (the first is absolute).
+ * TILE payload: varint x, y, width and height, varlong version, then the pixels encoded with {@link TileCodec}
+ * (nothing when the tile is blank). Only sent to clients that agreed to {@link #RAW_TILES_CAPABILITY}.
+ */
+public class BinaryProtocol {
+    /** Capability name sent in JOINV */
+    public static final String CAPABILITY = "bin1";
+    /** Capability name for receiving the canvas as TILE messages instead of whole LOADIMG snapshots */
+    public static final String TILES_CAPABILITY = "tiles";
+    /** Capability name for joining as a read-only spectator, who doesn't count towards the room's players */
+    public static final String SPECTATE_CAPABILITY = "spectate";
+    /** Capability name for deflating the rest of the connection, see {@link StreamCompression}; the number is its dictionary's version */
+    public static final String DEFLATE_CAPABILITY = "deflate1";
+    /** Capability name for uploading images in IMGSTART / IMGDATA / IMGEND chunks instead of one LOADIMG line */
+    public static final String UPLOAD_CAPABILITY = "upload";
+    /** Capability name for receiving tiles as TILE frames of {@link TileCodec} pixels instead of base64 PNG lines, needs bin1 and tiles */
+    public static final String RAW_TILES_CAPABILITY = "qoi";
+    /** Capability name for being sent CLEAR, to blank the canvas locally, instead of a blank LOADIMG snapshot */
+    public static final String CLEAR_CAPABILITY = "clear";
+
+    /** A text command, UTF-8 payload */
+    public static final int OP_TEXT = 0;
+    /** A drawing action */
+    public static final int OP_DRAW = 1;
+    /** Part of a pencil stroke */
+    public static final int OP_STROKE = 2;
+    /** A canvas tile */
+    public static final int OP_TILE = 3;
+
+    /** Largest frame accepted, to stop a bad length from allocating huge buffers */
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    /** Image bytes sent in one IMGDATA chunk, small enough that its base64 line stays under MAX_CONTROL_LENGTH */
+    public static final int UPLOAD_CHUNK_SIZE = 32 * 1024;
+    /** Longest line or frame accepted from a client that uploads images in chunks */
+    public static final int MAX_CONTROL_LENGTH = 64 * 1024;
+
+    private static final Gson gson = new Gson();
+
+    /**
+     * Shape tags for DRAW frames.
+     */
+    public enum Shape {
+        PENCIL("pencil"), LINE("line"), RECT("rect"), CIRCLE("circle"), TEXT("text:");
+
+        private final String name;
+
+        Shape(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return the tag for a DrawData shape string, or null if it has none
+         */
+        static Shape of(String shape) {
+            if (shape == null) {
+                return null;
+            }
+            if (shape.startsWith("text:")) {
+                return TEXT;
+            }
+            for (Shape s : values()) {
+                if (s != TEXT && s.name.equals(shape)) {
+                    return s;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Checks a comma separated capability list, as sent in JOINV and PROTO.
+     *
+     * @param capabilities the list
+     * @param capability   the capability to look for
+     * @return true if the list contains it
+     */
+    public static boolean hasCapability(String capabilities, String capability) {
+        if (capabilities == null) {
+            return false;
+        }
+        for (String c : capabilities.split(",")) {
+            if (c.trim().equals(capability)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes a capability from a comma separated capability list.
+     *
+     * @param capabilities the list
+     * @param capability   the capability to remove
+     * @return the list without it
+     */
+    public static String withoutCapability(String capabilities, String capability) {
+        StringBuilder sb = new StringBuilder();
+        for (String c : capabilities.split(",")) {
+            if (!c.trim().equals(capability) && !c.isBlank()) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(c.trim());
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Encodes a text command as a line of the text protocol.
+     */
+    public static byte[] encodeLine(String text) {
+        return (text + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encodes a drawing action as a line of the text protocol.
+     */
+    public static byte[] encodeDrawLine(DrawData data) {
+        return encodeLine("DRAW " + gson.toJson(data));
+    }
+
+    /**
+     * Encodes a text command as a frame.
+     */
+    public static byte[] encodeTextFrame(String text) {
+        return frame(OP_TEXT, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Encodes a drawing action as a frame. Shapes without a tag fall back to a JSON text frame.
+     */
+    public static byte[] encodeDrawFrame(DrawData data) {
+        Shape shape = Shape.of(data.shape);
+        if (shape == null) {
+            return encodeTextFrame("DRAW " + gson.toJson(data));
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(24);
+        out.write(shape.ordinal());
+        out.write(data.filled ? 1 : 0);
+        int rgb = Integer.parseInt(data.colourHex.substring(1), 16);
+        out.write(rgb >>> 16);
+        out.write(rgb >>> 8);
+        out.write(rgb);
+        writeVarint(out, data.thickness);
+        writeVarint(out, zigzag(data.x1));
+        writeVarint(out, zigzag(data.y1));
+        writeVarint(out, zigzag(data.x2 - data.x1));
+        writeVarint(out, zigzag(data.y2 - data.y1));
+        if (shape == Shape.TEXT) {
+            byte[] text = data.shape.substring(5).getBytes(StandardCharsets.UTF_8);
+            out.write(text, 0, text.length);
+        }
+        return frame(OP_DRAW, out.toByteArray());
+    }
+
+    /**
+     * Encodes a stroke message as a line of the text protocol.
+     */
+    public static byte[] encodeStrokeLine(StrokeData data) {
+        return encodeLine("STROKE " + gson.toJson(data));
+    }
+
+    /**
+     * Encodes a stroke message as a frame.
+     */
+    public static byte[] encodeStrokeFrame(StrokeData data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8 + data.points.length * 2);
+        out.write(data.phase.ordinal());
+        writeVarint(out, data.id);
+        switch (data.phase) {
+            case BEGIN:
+                int rgb = Integer.parseInt(data.colourHex.substring(1), 16);
+                out.write(rgb >>> 16);
+                out.write(rgb >>> 8);
+                out.write(rgb);
+                writeVarint(out, data.thickness);
+                writeVarint(out, zigzag(data.points[0]));
+                writeVarint(out, zigzag(data.points[1]));
+                break;
+            case POINTS:
+                writeVarint(out, data.points.length / 2);
+                int prevX = 0, prevY = 0;
+                for (int i = 0; i + 1 < data.points.length; i += 2) {
+                    writeVarint(out, zigzag(data.points[i] - prevX));
+                    writeVarint(out, zigzag(data.points[i + 1] - prevY));
+                    prevX = data.points[i];
+                    prevY = data.points[i + 1];
+                }
+                break;
+            case END:
+                break;
+        }
+        return frame(OP_STROKE, out.toByteArray());
+    }
+
+    /**
+     * Decodes the payload of an OP_STROKE frame.
+     */
+    public static StrokeData decodeStroke(byte[] payload, int offset, int length) throws IOException {
+        int[] pos = { offset };
+        int end = offset + length;
+        int phase = readByte(payload, pos, end);
+        int id = readVarint(payload, pos, end);
+        switch (phase) {
+            case 0: {
+                int rgb = (readByte(payload, pos, end) << 16) | (readByte(payload, pos, end) << 8) | readByte(payload, pos, end);
+                int thickness = readVarint(payload, pos, end);
+                int x = unzigzag(readVarint(payload, pos, end));
+                int y = unzigzag(readVarint(payload, pos, end));
+                return StrokeData.begin(id, x, y, new Color(rgb), thickness);
+            }
+            case 1: {
+                int count = readVarint(payload, pos, end);
+                if (count < 0 || count > length) {
+                    throw new IOException("Bad point count " + count);
+                }
+                int[] points = new int[count * 2];
+                int prevX = 0, prevY = 0;
+                for (int i = 0; i < points.length; i += 2) {
+                    prevX += unzigzag(readVarint(payload, pos, end));
+                    prevY += unzigzag(readVarint(payload, pos, end));
+                    points[i] = prevX;
+                    points[i + 1] = prevY;
+                }
+                return StrokeData.points(id, points);
+            }
+            case 2:
+                return StrokeData.end(id);
+            default:
+                throw new IOException("Unknown stroke phase " + phase);
+        }
+    }
+
+    /**
+     * Encodes a tile as a frame.
+     */
+    public static byte[] encodeTileFrame(TileData tile) {
+        int pixels = tile.pixels == null ? 0 : tile.pixels.length;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + pixels);
+        writeVarint(out, tile.x);
+        writeVarint(out, tile.y);
+        writeVarint(out, tile.width);
+        writeVarint(out, tile.height);
+        writeVarlong(out, tile.version);
+        if (tile.pixels != null) {
+            out.write(tile.pixels, 0, pixels);
+        }
+        return frame(OP_TILE, out.toByteArray());
+    }
+
+    /**
+     * Decodes the payload of an OP_TILE frame. The pixels are checked when they're decoded.
+     */
+    public static TileData decodeTile(byte[] payload, int offset, int length) throws IOException {
+        int[] pos = { offset };
+        int end = offset + length;
+        int x = readVarint(payload, pos, end);
+        int y = readVarint(payload, pos, end);
+        int width = readVarint(payload, pos, end);
+        int height = readVarint(payload, pos, end);
+        long version = readVarlong(payload, pos, end);
+        if (width <= 0 || height <= 0 || width > TiledCanvas.TILE_SIZE || height > TiledCanvas.TILE_SIZE) {
+            throw new IOException("Bad tile size " + width + "x" + height);
+        }
+        byte[] pixels = pos[0] == end ? null : Arrays.copyOfRange(payload, pos[0], end);
+        return new TileData(x, y, width, height, version, pixels);
+    }
+
+    /**
+     * Encodes a message in either protocol.
+     *
+     * @param message the message to encode
+     * @param binary  true for a frame, false for a text line
+     */
+    public static byte[] encode(WireMessage message, boolean binary) {
+        if (message.isDraw()) {
+            return binary ? encodeDrawFrame(message.draw) : encodeDrawLine(message.draw);
+        }
+        if (message.isStroke()) {
+            return binary ? encodeStrokeFrame(message.stroke) : encodeStrokeLine(message.stroke);
+        }
+        if (message.isTile()) {
+            return binary ? encodeTileFrame(message.tile) : encodeLine(message.tile.toLine());
+        }
+        return binary ? encodeTextFrame(message.text) : encodeLine(message.text);
+    }
+
+    /**
+     * Parses the JSON of a STROKE line.
+     */
+    public static StrokeData parseStrokeJson(String json) {
+        return gson.fromJson(json, StrokeData.class);
+    }
+
+    /**
+     * Decodes the payload of an OP_DRAW frame.
+     *
+     * @param payload the bytes after the opcode
+     * @param offset  where the payload starts
+     * @param length  the payload length
+     */
+    public static DrawData decodeDraw(byte[] payload, int offset, int length) throws IOException {
+        int[] pos = { offset };
+        int end = offset + length;
+        int tag = readByte(payload, pos, end);
+        if (tag >= Shape.values().length) {
+            throw new IOException("Unknown shape tag " + tag);
+        }
+        Shape shape = Shape.values()[tag];
+        boolean filled = readByte(payload, pos, end) != 0;
+        int rgb = (readByte(payload, pos, end) << 16) | (readByte(payload, pos, end) << 8) | readByte(payload, pos, end);
+        int thickness = readVarint(payload, pos, end);
+        int x1 = unzigzag(readVarint(payload, pos, end));
+        int y1 = unzigzag(readVarint(payload, pos, end));
+        int x2 = x1 + unzigzag(readVarint(payload, pos, end));
+        int y2 = y1 + unzigzag(readVarint(payload, pos, end));
+
+        String shapeName = shape.name;
+        if (shape == Shape.TEXT) {
+            shapeName += new String(payload, pos[0], end - pos[0], StandardCharsets.UTF_8);
+        }
+        return new DrawData(x1, y1, x2, y2, new Color(rgb), thickness, shapeName, filled);
+    }
+
+    /**
+     * Decodes a whole frame body (opcode + payload) into a message.
+     */
+    public static WireMessage decodeFrame(byte[] body, int offset, int length) throws IOException {
+        if (length < 1) {
+            throw new IOException("Empty frame");
+        }
+        int opcode = body[offset] & 0xFF;
+        switch (opcode) {
+            case OP_TEXT:
+                return WireMessage.text(new String(body, offset + 1, length - 1, StandardCharsets.UTF_8));
+            case OP_DRAW:
+                return WireMessage.draw(decodeDraw(body, offset + 1, length - 1));
+            case OP_STROKE:
+                return WireMessage.stroke(decodeStroke(body, offset + 1, length - 1));
+            case OP_TILE:
+                return WireMessage.tile(decodeTile(body, offset + 1, length - 1));
+            default:
+                throw new IOException("Unknown opcode " + opcode);
+        }
+    }
+
+    /**
+     * Reads one frame from a blocking stream.
+     *
+     * @return the message, or null at the end of the stream
+     */
+    public static WireMessage readFrame(InputStream in) throws IOException {
+        return readFrame(in, MAX_FRAME_SIZE);
+    }
+
+    /**
+     * Reads one frame from a blocking stream, refusing frames longer than the given length.
+     *
+     * @return the message, or null at the end of the stream
+     */
+    public static WireMessage readFrame(InputStream in, int maxLength) throws IOException {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) {
+                    return null;
+                }
+                throw new EOFException();
+            }
+            if (shift > 28) {
+                throw new IOException("Bad frame length");
+            }
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        // a fifth byte can set the sign bit
+        if (length < 0) {
+            throw new IOException("Bad frame length");
+        }
+        if (length > Math.min(maxLength, MAX_FRAME_SIZE)) {
+            throw new IOException("Frame too large: " + length);
+        }
+        byte[] body = in.readNBytes(length);
+        if (body.length < length) {
+            throw new EOFException();
+        }
+        return decodeFrame(body, 0, length);
+    }
+
+    /**
+     * Prefixes a payload with its length and opcode.
+     */
+    private static byte[] frame(int opcode, byte[] payload) {
+        int bodyLength = payload.length + 1;
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bodyLength + 5);
+        writeVarint(out, bodyLength);
+        out.write(opcode);
+        out.write(payload, 0, payload.length);
+        return out.toByteArray();
+    }
+
+    public static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    public static void writeVarlong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarlong(byte[] buf, int[] pos, int end) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift <= 63; shift += 7) {
+            int b = readByte(buf, pos, end);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Bad varlong");
+    }
+
+    private static int readVarint(byte[] buf, int[] pos, int end) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift <= 28; shift += 7) {
+            int b = readByte(buf, pos, end);
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Bad varint");
+    }
+
+    private static int readByte(byte[] buf, int[] pos, int end) throws IOException {
+        if (pos[0] >= end) {
+            throw new EOFException("Truncated frame");
+        }
+        return buf[pos[0]++] & 0xFF;
+    }
+
+    private static int zigzag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    private static int unzigzag(int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+}
@@ -0,0 +1,105 @@
+package us.otechu.common;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads messages from a blocking stream, as text lines or as binary frames.
+ * Unlike a BufferedReader it never reads past the message it returns,
+ * so the protocol can be switched between two messages.
+ */
+public class MessageReader {
+    private final InputStream raw;
+    // the raw stream, or the decompressed one once compression is on
+    private InputStream in;
+    private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+    private volatile boolean binary = false;
+    private volatile int maxLength = Integer.MAX_VALUE;
+
+    public MessageReader(InputStream in) {
+        this.raw = new BufferedInputStream(in);
+        this.in = raw;
+    }
+
+    /**
+     * Decompresses the rest of the stream, from the next message on. Call it from the reading thread.
+     *
+     * @param decompressor the connection's decompressor
+     */
+    public void startInflating(StreamCompression.Decompressor decompressor) {
+        in = new BufferedInputStream(decompressor.wrap(raw));
+    }
+
+    /**
+     * @return true once the stream is being decompressed
+     */
+    public boolean isInflating() {
+        return in != raw;
+    }
+
+    /**
+     * Switches between text lines and binary frames for the following messages.
+     */
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Sets the longest line or frame accepted from the following messages on.
+     * Anything longer ends the stream with an IOException instead of being buffered.
+     */
+    public void setMaxLength(int maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Reads the next message.
+     *
+     * @return the message, or null at the end of the stream
+     */
+    public WireMessage read() throws IOException {
+        if (binary) {
+            return BinaryProtocol.readFrame(in, maxLength);
+        }
+        String line = readLine();
+        return line == null ? null : WireMessage.text(line);
+    }
+
+    /**
+     * Reads a UTF-8 line, accepting \n or \r\n endings like BufferedReader.
+     *
+     * @return the line, or null at the end of the stream
+     */
+    private String readLine() throws IOException {
+        lineBuffer.reset();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                if (lineBuffer.size() == 0) {
+                    return null;
+                }
+                break;
+            }
+            if (lineBuffer.size() >= maxLength) {
+                throw new IOException("Line too long");
+            }
+            lineBuffer.write(b);
+        }
+        String line = lineBuffer.toString(StandardCharsets.UTF_8);
+        if (line.endsWith("\r")) {
+            line = line.substring(0, line.length() - 1);
+        }
+        return line;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
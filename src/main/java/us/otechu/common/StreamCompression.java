@@ -0,0 +1,272 @@
+package us.otechu.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional deflate compression of a whole connection, in both directions, for players on thin links.
+ *
+ * Negotiation: the client offers {@link BinaryProtocol#DEFLATE_CAPABILITY} in JOINV. If the server accepts it
+ * in PROTO, everything after the PROTO line is one raw deflate stream each way, whichever protocol is used.
+ * Both streams start from the preset {@link #DICTIONARY}, so even the first DRAW message compresses well,
+ * and are SYNC_FLUSHed after each batch of whole messages, so nothing waits in the compressor.
+ */
+public class StreamCompression {
+    /**
+     * Strings the messages are made of, the most common last where they're cheapest to refer to.
+     * Changing it means a new capability name, both sides have to use the same one.
+     */
+    private static final byte[] DICTIONARY = ("LOADIMG iVBORw0KGgoAAAANSUhEUgAA TILE IMGFAIL IMGACK IMGDATA CANVAS "
+            + "JOINED TURN VIEW READY ENDTURN CLEAR CHAT LOG It's  turn! has left the game. has joined the game! "
+            + "USERLIST STROKE {\"id\":1,\"phase\":\"BEGIN\",\"colourHex\":\"#000000\",\"thickness\":3,\"points\":["
+            + "{\"id\":1,\"phase\":\"END\"}{\"id\":1,\"phase\":\"POINTS\",\"points\":["
+            + "DRAW {\"x1\":0,\"y1\":0,\"x2\":0,\"y2\":0,\"thickness\":5,\"colourHex\":\"#ffffff\",\"shape\":\"text:\","
+            + "\"filled\":true}DRAW {\"x1\":0,\"y1\":0,\"x2\":0,\"y2\":0,\"thickness\":3,\"colourHex\":\"#ff0000\","
+            + "\"shape\":\"rect\",\"filled\":false}DRAW {\"x1\":0,\"y1\":0,\"x2\":0,\"y2\":0,\"thickness\":3,"
+            + "\"colourHex\":\"#000000\",\"shape\":\"line\",\"filled\":false}\n"
+            + "DRAW {\"x1\":0,\"y1\":0,\"x2\":0,\"y2\":0,\"thickness\":3,\"colourHex\":\"#000000\",\"shape\":\"pencil\","
+            + "\"filled\":false}\n").getBytes(StandardCharsets.UTF_8);
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Compresses one direction of a connection. Messages are added as they're written,
+     * and {@link #flush()} hands over everything compressed since the last flush.
+     * Safe to close from another thread than the writer's.
+     */
+    public static class Compressor {
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private boolean closed = false;
+        // read by the stats, written by the one writer
+        private volatile long rawBytes, compressedBytes, nanos;
+
+        public Compressor() {
+            deflater.setDictionary(DICTIONARY);
+        }
+
+        /**
+         * Compresses a message, keeping the output until the next flush.
+         */
+        public synchronized void add(byte[] message) throws IOException {
+            ensureOpen();
+            long start = System.nanoTime();
+            deflater.setInput(message);
+            while (!deflater.needsInput()) {
+                int n = deflater.deflate(buffer, 0, buffer.length, Deflater.NO_FLUSH);
+                pending.write(buffer, 0, n);
+            }
+            rawBytes += message.length;
+            nanos += System.nanoTime() - start;
+        }
+
+        /**
+         * @return how many compressed bytes are waiting for the next flush, not counting what the deflater holds
+         */
+        public synchronized int getPending() {
+            return pending.size();
+        }
+
+        /**
+         * Ends the compressed data on a byte boundary, so the other side can decode every message added so far.
+         *
+         * @return the compressed bytes since the last flush
+         */
+        public synchronized byte[] flush() throws IOException {
+            ensureOpen();
+            long start = System.nanoTime();
+            int n;
+            do {
+                n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                pending.write(buffer, 0, n);
+            } while (n == buffer.length);
+            byte[] out = pending.toByteArray();
+            pending.reset();
+            compressedBytes += out.length;
+            nanos += System.nanoTime() - start;
+            return out;
+        }
+
+        /**
+         * Compresses one message and flushes it.
+         */
+        public byte[] compress(byte[] message) throws IOException {
+            add(message);
+            return flush();
+        }
+
+        private void ensureOpen() throws IOException {
+            if (closed) {
+                throw new IOException("Compressor closed");
+            }
+        }
+
+        /**
+         * Frees the deflater. The stats stay readable.
+         */
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Decompresses one direction of a connection, either fed by an event loop or pulling from a blocking stream.
+     */
+    public static class Decompressor {
+        private final Inflater inflater = new Inflater(true);
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private boolean closed = false;
+        private volatile long rawBytes, compressedBytes, nanos;
+
+        public Decompressor() {
+            inflater.setDictionary(DICTIONARY);
+        }
+
+        /**
+         * Decompresses what arrived.
+         *
+         * @return everything the input decodes to, possibly nothing if it ends mid-block
+         */
+        public synchronized byte[] inflate(byte[] input, int offset, int length) throws IOException {
+            ensureOpen();
+            long start = System.nanoTime();
+            inflater.setInput(input, offset, length);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length * 4);
+            try {
+                int n;
+                while ((n = inflater.inflate(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Bad compressed data: " + e.getMessage());
+            }
+            if (inflater.finished()) {
+                throw new IOException("Compressed stream ended");
+            }
+            compressedBytes += length;
+            rawBytes += out.size();
+            nanos += System.nanoTime() - start;
+            return out.toByteArray();
+        }
+
+        /**
+         * Wraps a blocking stream of compressed data. Reads return as soon as any data decodes,
+         * so a flushed message is never held back waiting for more input.
+         *
+         * @param in the compressed stream, which may be buffered
+         * @return the decompressed stream
+         */
+        public InputStream wrap(InputStream in) {
+            return new InputStream() {
+                private final byte[] input = new byte[BUFFER_SIZE];
+
+                @Override
+                public int read() throws IOException {
+                    byte[] one = new byte[1];
+                    return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (len == 0) {
+                        return 0;
+                    }
+                    while (true) {
+                        int n = inflateInto(b, off, len);
+                        if (n > 0) {
+                            return n;
+                        }
+                        // the wait for more input isn't counted as decompression time
+                        int read = in.read(input);
+                        if (read < 0) {
+                            return -1;
+                        }
+                        synchronized (Decompressor.this) {
+                            ensureOpen();
+                            inflater.setInput(input, 0, read);
+                            compressedBytes += read;
+                        }
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    in.close();
+                }
+            };
+        }
+
+        private synchronized int inflateInto(byte[] b, int off, int len) throws IOException {
+            ensureOpen();
+            long start = System.nanoTime();
+            int n;
+            try {
+                n = inflater.inflate(b, off, len);
+            } catch (DataFormatException e) {
+                throw new IOException("Bad compressed data: " + e.getMessage());
+            }
+            if (n == 0 && inflater.finished()) {
+                throw new IOException("Compressed stream ended");
+            }
+            // 0 means it needs more input
+            rawBytes += n;
+            nanos += System.nanoTime() - start;
+            return n;
+        }
+
+        private void ensureOpen() throws IOException {
+            if (closed) {
+                throw new IOException("Decompressor closed");
+            }
+        }
+
+        /**
+         * Frees the inflater. The stats stay readable.
+         */
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * Describes how well a connection's compression did, and what it cost.
+     *
+     * @param out the sending side's compressor, or null
+     * @param in  the receiving side's decompressor, or null
+     * @return e.g. "sent 120 KB as 18 KB (15%), received 4 KB as 1 KB (25%), 6.2 ms CPU"
+     */
+    public static String describe(Compressor out, Decompressor in) {
+        long nanos = 0;
+        StringBuilder sb = new StringBuilder();
+        if (out != null) {
+            sb.append("sent ").append(describeRatio(out.rawBytes, out.compressedBytes));
+            nanos += out.nanos;
+        }
+        if (in != null) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append("received ").append(describeRatio(in.rawBytes, in.compressedBytes));
+            nanos += in.nanos;
+        }
+        sb.append(String.format(", %.1f ms CPU", nanos / 1e6));
+        return sb.toString();
+    }
+
+    private static String describeRatio(long raw, long compressed) {
+        long percent = raw == 0 ? 100 : compressed * 100 / raw;
+        return (raw / 1024) + " KB as " + (compressed / 1024) + " KB (" + percent + "%)";
+    }
+}
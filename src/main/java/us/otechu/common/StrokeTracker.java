@@ -0,0 +1,106 @@
+package us.otechu.common;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.util.HashMap;
+import java.util.Map;
+
+import us.otechu.client.StrokeData;
+
+/**
+ * Keeps track of the pencil strokes in progress and renders each batch of points
+ * as one path with round joins, continuing from where the previous batch ended.
+ * Used by the server for its canvas and by clients for strokes from other players.
+ */
+public class StrokeTracker {
+    private final Map<Integer, ActiveStroke> strokes = new HashMap<>();
+
+    /**
+     * Style and last point of a stroke in progress.
+     */
+    private static class ActiveStroke {
+        final Color colour;
+        final BasicStroke stroke;
+        int lastX, lastY;
+
+        ActiveStroke(Color colour, int thickness, int x, int y) {
+            this.colour = colour;
+            this.stroke = new BasicStroke(thickness, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
+            this.lastX = x;
+            this.lastY = y;
+        }
+
+        void draw(Graphics2D g2, Shape shape) {
+            g2.setColor(colour);
+            g2.setStroke(stroke);
+            g2.draw(shape);
+        }
+
+        /** Grows a path's bounds by the pen width, plus a pixel for antialiasing */
+        Rectangle padded(Rectangle bounds) {
+            int pad = (int) Math.ceil(stroke.getLineWidth() / 2) + 1;
+            bounds.grow(pad, pad);
+            return bounds;
+        }
+    }
+
+    /**
+     * Applies one stroke message, drawing whatever it adds to the stroke.
+     *
+     * @param canvas the canvas to draw on
+     * @param data   the stroke message
+     * @return the area that was drawn over, or null if nothing was drawn
+     */
+    public synchronized Rectangle apply(TiledCanvas canvas, StrokeData data) {
+        switch (data.phase) {
+            case BEGIN: {
+                ActiveStroke s = new ActiveStroke(Color.decode(data.colourHex), data.thickness,
+                        data.points[0], data.points[1]);
+                strokes.put(data.id, s);
+                // a round-capped zero length line is the dot under the first click
+                Line2D.Float dot = new Line2D.Float(s.lastX, s.lastY, s.lastX, s.lastY);
+                return canvas.paint(s.padded(new Rectangle(s.lastX, s.lastY, 0, 0)), g2 -> s.draw(g2, dot));
+            }
+            case POINTS: {
+                ActiveStroke s = strokes.get(data.id);
+                if (s == null || data.points.length < 2) {
+                    return null; // missed the start of this stroke
+                }
+                Path2D.Float path = new Path2D.Float();
+                path.moveTo(s.lastX, s.lastY);
+                for (int i = 0; i + 1 < data.points.length; i += 2) {
+                    path.lineTo(data.points[i], data.points[i + 1]);
+                }
+                s.lastX = data.points[data.points.length - 2];
+                s.lastY = data.points[data.points.length - 1];
+                return canvas.paint(s.padded(path.getBounds()), g2 -> s.draw(g2, path));
+            }
+            case END:
+                strokes.remove(data.id);
+                break;
+        }
+        return null;
+    }
+
+    /**
+     * Picks up a stroke that began before this tracker saw it, at the point it had reached, without drawing anything.
+     *
+     * @param begin a BEGIN at the stroke's last point, in its style
+     */
+    public synchronized void resume(StrokeData begin) {
+        strokes.put(begin.id, new ActiveStroke(Color.decode(begin.colourHex), begin.thickness,
+                begin.points[0], begin.points[1]));
+    }
+
+    /**
+     * Forgets all strokes in progress, e.g. when the drawer's turn ends.
+     */
+    public synchronized void clear() {
+        strokes.clear();
+    }
+}
@@ -0,0 +1,65 @@
+package us.otechu.common;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+
+import javax.imageio.ImageIO;
+
+/**
+ * One canvas tile as sent to clients: where it is, its version, and its pixels encoded with {@link TileCodec}.
+ * Clients that agreed to {@link BinaryProtocol#RAW_TILES_CAPABILITY} get it as an OP_TILE frame,
+ * others as the older "TILE x y version base64png" line, made from it only when first needed.
+ */
+public class TileData {
+    public final int x, y;
+    public final int width, height;
+    /** The tile's version, 0 when it's blank */
+    public final long version;
+    /** The encoded pixels, or null when the tile is blank */
+    public final byte[] pixels;
+
+    public TileData(int x, int y, int width, int height, long version, byte[] pixels) {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.version = version;
+        this.pixels = pixels;
+    }
+
+    /**
+     * @return true if the tile is back to blank, which clients keep as no tile at all
+     */
+    public boolean isBlank() {
+        return pixels == null;
+    }
+
+    /**
+     * Decodes the pixels.
+     *
+     * @return a new TYPE_INT_RGB image, or null if the tile is blank
+     * @throws IOException if the pixels are malformed
+     */
+    public BufferedImage toImage() throws IOException {
+        return pixels == null ? null : TileCodec.decode(pixels, 0, pixels.length, width, height);
+    }
+
+    /**
+     * @return the tile as a text protocol TILE line, without the newline
+     */
+    public String toLine() {
+        String png = "";
+        if (pixels != null) {
+            try {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                ImageIO.write(toImage(), "png", baos);
+                png = Base64.getEncoder().encodeToString(baos.toByteArray());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return "TILE " + x + " " + y + " " + version + " " + png;
+    }
+}
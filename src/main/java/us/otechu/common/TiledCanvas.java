@@ -0,0 +1,337 @@
+package us.otechu.common;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+import us.otechu.client.DrawData;
+import us.otechu.client.StrokeData;
+
+/**
+ * A canvas split into fixed-size tiles, where a tile only takes memory once something is drawn on it.
+ * Tiles that were never drawn on are plain background, so a huge canvas costs as much as the area drawn on it.
+ * Each drawing is painted onto every tile it overlaps, through a graphics context translated and clipped to that tile,
+ * so the pixels come out the same as on one big image.
+ * Used by the server for its canvas and by clients for what they show. Not thread safe.
+ *
+ * {@link #freeze()} gives a read-only view of the canvas that shares its tiles, without copying any pixels.
+ * Tiles are copy on write from then on: the first change to a shared tile draws on a copy of it,
+ * so the view never changes and can be read from any thread while drawing goes on.
+ */
+public class TiledCanvas {
+    /** Width and height of a tile in pixels */
+    public static final int TILE_SIZE = 128;
+    /** The colour of tiles that were never drawn on */
+    public static final Color BACKGROUND = Color.WHITE;
+
+    private final int width, height;
+    private final int cols, rows;
+    // null until something is drawn on the tile
+    private final BufferedImage[] tiles;
+    // the freeze each tile was allocated or copied after; a tile from before the latest freeze is shared with a view
+    private final int[] tileGenerations;
+    // how many times the canvas was frozen
+    private int generation = 0;
+    // used to measure text, which has to be done before it's drawn
+    private final Graphics2D metrics;
+    // told about every area that changes, null if nobody is listening
+    private Consumer<Rectangle> changeListener;
+
+    /**
+     * Creates a canvas with no tiles allocated.
+     *
+     * @param width  canvas width in pixels
+     * @param height canvas height in pixels
+     */
+    public TiledCanvas(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.cols = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        this.tiles = new BufferedImage[cols * rows];
+        this.tileGenerations = new int[tiles.length];
+        this.metrics = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB).createGraphics();
+    }
+
+    /**
+     * Makes a view sharing some tiles, each of which it copies before drawing on.
+     */
+    private TiledCanvas(int width, int height, BufferedImage[] tiles) {
+        this(width, height);
+        System.arraycopy(tiles, 0, this.tiles, 0, tiles.length);
+        generation = 1;
+    }
+
+    /**
+     * Returns a view of the canvas as it is now, sharing its tiles. Only the array of tiles is copied.
+     * Changes to the canvas after this copy the tiles they touch first, so the view stays as it was.
+     * The view is safe to read from other threads once it's been handed over, e.g. through a volatile or atomic field.
+     *
+     * @return the view, which must not be drawn on
+     */
+    public TiledCanvas freeze() {
+        generation++;
+        return new TiledCanvas(width, height, tiles);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getTileCount() {
+        return tiles.length;
+    }
+
+    /** @return the number of tile columns */
+    public int getCols() {
+        return cols;
+    }
+
+    /** @return the number of tile rows */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Sets what is told about every area of the canvas that changes, e.g. to redraw it.
+     *
+     * @param listener receives each changed area in canvas pixels, or null to stop listening
+     */
+    public void setChangeListener(Consumer<Rectangle> listener) {
+        this.changeListener = listener;
+    }
+
+    /**
+     * @param index the tile index
+     * @return the area of the canvas the tile covers; tiles on the right and bottom edges may be smaller
+     */
+    public Rectangle getTileBounds(int index) {
+        int x = (index % cols) * TILE_SIZE;
+        int y = (index / cols) * TILE_SIZE;
+        return new Rectangle(x, y, Math.min(TILE_SIZE, width - x), Math.min(TILE_SIZE, height - y));
+    }
+
+    /**
+     * @param x a canvas x coordinate
+     * @param y a canvas y coordinate
+     * @return the index of the tile containing the point, or -1 if it's off the canvas
+     */
+    public int getTileIndex(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            return -1;
+        }
+        return (y / TILE_SIZE) * cols + x / TILE_SIZE;
+    }
+
+    /**
+     * Returns a tile's image. It's the canvas's own, so changes to it show on the canvas,
+     * unless the canvas was frozen since, when it's the frozen view's and must not be changed.
+     *
+     * @param index the tile index
+     * @return the tile, or null if nothing was drawn on it
+     */
+    public BufferedImage getTile(int index) {
+        return tiles[index];
+    }
+
+    /**
+     * Calls an action for every tile an area overlaps.
+     *
+     * @param area   an area in canvas pixels
+     * @param action receives each tile index
+     */
+    public void forEachTileIn(Rectangle area, IntConsumer action) {
+        Rectangle clipped = area.intersection(new Rectangle(0, 0, width, height));
+        if (clipped.isEmpty()) {
+            return;
+        }
+        int firstCol = clipped.x / TILE_SIZE;
+        int firstRow = clipped.y / TILE_SIZE;
+        int lastCol = (clipped.x + clipped.width - 1) / TILE_SIZE;
+        int lastRow = (clipped.y + clipped.height - 1) / TILE_SIZE;
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                action.accept(row * cols + col);
+            }
+        }
+    }
+
+    /**
+     * Paints onto every tile an area overlaps, allocating the tiles that are still blank.
+     * The painter gets a context in canvas coordinates, clipped to one tile, once per tile.
+     *
+     * @param area    the area the painting covers, in canvas pixels
+     * @param painter draws the same thing each time it's called
+     * @return the part of the area on the canvas, or null if it's all off the canvas
+     */
+    public Rectangle paint(Rectangle area, Consumer<Graphics2D> painter) {
+        Rectangle painted = area.intersection(new Rectangle(0, 0, width, height));
+        if (painted.isEmpty()) {
+            return null;
+        }
+        forEachTileIn(painted, index -> {
+            Rectangle r = getTileBounds(index);
+            Graphics2D g = allocate(index).createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.translate(-r.x, -r.y);
+            g.clipRect(r.x, r.y, r.width, r.height);
+            painter.accept(g);
+            g.dispose();
+        });
+        changed(painted);
+        return painted;
+    }
+
+    /**
+     * Draws a drawing action.
+     *
+     * @param data the drawing action
+     * @return the area drawn over, or null if nothing was drawn
+     */
+    public Rectangle draw(DrawData data) {
+        Rectangle bounds = Utils.getBounds(metrics, data);
+        if (bounds == null) {
+            return null;
+        }
+        return paint(bounds, g -> Utils.drawFromData(g, data));
+    }
+
+    /**
+     * Draws part of a pencil stroke.
+     *
+     * @param strokes the strokes in progress on this canvas
+     * @param data    the stroke message
+     * @return the area drawn over, or null if nothing was drawn
+     */
+    public Rectangle stroke(StrokeTracker strokes, StrokeData data) {
+        return strokes.apply(this, data);
+    }
+
+    /**
+     * Draws an image onto the canvas.
+     *
+     * @param image the image
+     * @param x     where its left edge goes
+     * @param y     where its top edge goes
+     * @return the area drawn over, or null if it's all off the canvas
+     */
+    public Rectangle drawImage(BufferedImage image, int x, int y) {
+        return paint(new Rectangle(x, y, image.getWidth(), image.getHeight()), g -> g.drawImage(image, x, y, null));
+    }
+
+    /**
+     * Replaces an area's pixels, e.g. a tile restored from a checkpoint.
+     *
+     * @param pixels one packed RGB int per pixel, row by row
+     */
+    public void setPixels(int x, int y, int w, int h, int[] pixels) {
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        image.getRaster().setDataElements(0, 0, w, h, pixels);
+        drawImage(image, x, y);
+    }
+
+    /**
+     * Replaces a whole tile, or makes it blank again.
+     *
+     * @param index the tile index
+     * @param tile  the tile's new pixels, the size of {@link #getTileBounds(int)}, or null for blank.
+     *              The canvas keeps it and draws on it from then on
+     */
+    public void setTile(int index, BufferedImage tile) {
+        tiles[index] = tile;
+        tileGenerations[index] = generation;
+        changed(getTileBounds(index));
+    }
+
+    /**
+     * Makes every tile blank again, releasing their memory.
+     */
+    public void clear() {
+        Arrays.fill(tiles, null);
+        changed(new Rectangle(0, 0, width, height));
+    }
+
+    /**
+     * Draws the tiles that overlap an area onto a graphics context in canvas coordinates.
+     * Blank tiles are filled with the background colour.
+     *
+     * @param g    the context to draw on
+     * @param area the area to draw, e.g. the context's clip
+     */
+    public void paintTo(Graphics g, Rectangle area) {
+        g.setColor(BACKGROUND);
+        g.fillRect(area.x, area.y, area.width, area.height);
+        forEachTileIn(area, index -> {
+            if (tiles[index] != null) {
+                Rectangle r = getTileBounds(index);
+                g.drawImage(tiles[index], r.x, r.y, null);
+            }
+        });
+    }
+
+    /**
+     * Copies an area of the canvas into one image.
+     *
+     * @param area the area to copy
+     * @return a new image the size of the area
+     */
+    public BufferedImage toImage(Rectangle area) {
+        BufferedImage image = new BufferedImage(area.width, area.height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.translate(-area.x, -area.y);
+        paintTo(g, area);
+        g.dispose();
+        return image;
+    }
+
+    /**
+     * @return the smallest area from the top left corner that holds every tile drawn on, or null if none are
+     */
+    public Rectangle getDrawnExtent() {
+        int right = 0, bottom = 0;
+        for (int i = 0; i < tiles.length; i++) {
+            if (tiles[i] != null) {
+                Rectangle r = getTileBounds(i);
+                right = Math.max(right, r.x + r.width);
+                bottom = Math.max(bottom, r.y + r.height);
+            }
+        }
+        return right == 0 ? null : new Rectangle(0, 0, right, bottom);
+    }
+
+    private void changed(Rectangle area) {
+        if (changeListener != null) {
+            changeListener.accept(area);
+        }
+    }
+
+    private BufferedImage allocate(int index) {
+        if (tiles[index] != null && tileGenerations[index] < generation) {
+            // a view still has this one
+            BufferedImage shared = tiles[index];
+            tiles[index] = new BufferedImage(shared.getColorModel(), shared.copyData(null), false, null);
+            tileGenerations[index] = generation;
+        }
+        if (tiles[index] == null) {
+            Rectangle r = getTileBounds(index);
+            BufferedImage tile = new BufferedImage(r.width, r.height, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = tile.createGraphics();
+            g.setColor(BACKGROUND);
+            g.fillRect(0, 0, r.width, r.height);
+            g.dispose();
+            tiles[index] = tile;
+            tileGenerations[index] = generation;
+        }
+        return tiles[index];
+    }
+}
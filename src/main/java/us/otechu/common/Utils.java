@@ -4,12 +4,18 @@ import us.otechu.client.DrawData;
 import us.otechu.client.ui.DrawingPanel;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Base64;
+import java.util.Iterator;
 
 public class Utils {
 
@@ -63,4 +69,84 @@ public class Utils {
                 break;
         }
     }
+
+    /**
+     * Works out the area a drawing action covers, including the stroke width.
+     * @param g2   the context the action is drawn on, used to measure text
+     * @param data the drawing action
+     * @return the covered area, or null if the shape is unknown
+     */
+    public static Rectangle getBounds(Graphics2D g2, DrawData data) {
+        if (data.shape.startsWith("text:")) {
+            FontMetrics fm = g2.getFontMetrics(new Font("Arial", Font.PLAIN, data.thickness * 5));
+            Rectangle text = fm.getStringBounds(data.shape.substring(5), g2).getBounds();
+            text.translate(data.x1, data.y1);
+            text.grow(1, 1);
+            return text;
+        }
+
+        switch (data.shape) {
+            case "pencil":
+            case "line":
+            case "rect":
+            case "circle":
+                Rectangle bounds = new Rectangle(Math.min(data.x1, data.x2), Math.min(data.y1, data.y2),
+                        Math.abs(data.x2 - data.x1), Math.abs(data.y2 - data.y1));
+                // half the pen on each side, plus a pixel for antialiasing
+                int pad = (data.thickness + 1) / 2 + 1;
+                bounds.grow(pad, pad);
+                return bounds;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Decodes the part of an image that lands on a canvas of the given size when drawn at the top left corner.
+     * The size is read from the header first, so the pixels past the canvas edges are never decoded,
+     * and a huge photo takes no more memory than the canvas.
+     * @param in        the encoded image
+     * @param maxWidth  the canvas width
+     * @param maxHeight the canvas height
+     * @return the image, or null if there's no reader for its format
+     * @throws IOException if the image can't be decoded
+     */
+    public static BufferedImage readImage(InputStream in, int maxWidth, int maxHeight) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(in)) {
+            return readImage(stream, maxWidth, maxHeight);
+        }
+    }
+
+    /**
+     * Decodes the part of an image file that lands on a canvas of the given size, like {@link #readImage(InputStream, int, int)}.
+     */
+    public static BufferedImage readImage(File file, int maxWidth, int maxHeight) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(file)) {
+            return readImage(stream, maxWidth, maxHeight);
+        }
+    }
+
+    private static BufferedImage readImage(ImageInputStream stream, int maxWidth, int maxHeight) throws IOException {
+        if (stream == null) {
+            return null;
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+        if (!readers.hasNext()) {
+            return null;
+        }
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(stream, true, true);
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+            ImageReadParam param = reader.getDefaultReadParam();
+            if (width > maxWidth || height > maxHeight) {
+                // only decode what fits, the rest would be clipped anyway
+                param.setSourceRegion(new Rectangle(0, 0, Math.min(width, maxWidth), Math.min(height, maxHeight)));
+            }
+            return reader.read(0, param);
+        } finally {
+            reader.dispose();
+        }
+    }
 }
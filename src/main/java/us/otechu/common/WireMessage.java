@@ -0,0 +1,130 @@
+package us.otechu.common;
+
+import us.otechu.client.DrawData;
+import us.otechu.client.StrokeData;
+
+/**
+ * One message on the wire: a text command, a drawing action, part of a pencil stroke or a canvas tile.
+ * Drawing actions are kept as objects until they are written, so each
+ * connection can encode them in its own protocol (JSON text or binary).
+ * Each encoding is made at most once and shared by every connection the message is sent to.
+ */
+public class WireMessage {
+    /** Text command such as "TURN" or "LOG ..." */
+    public final String text;
+    /** Drawing action, or null for text commands */
+    public final DrawData draw;
+    /** Pencil stroke message, or null */
+    public final StrokeData stroke;
+    /** Canvas tile, or null */
+    public final TileData tile;
+    /** Set only on the PROTO reply: the agreed capabilities the writer switches to after it */
+    public final String capabilities;
+
+    // encoded bytes in each protocol, made on first use; never modified once set
+    private volatile byte[] textBytes;
+    private volatile byte[] binaryBytes;
+    // the tile as a TILE line, for clients that can't take tile frames
+    private volatile WireMessage tileLine;
+
+    private WireMessage(String text, DrawData draw, StrokeData stroke, TileData tile, String capabilities) {
+        this.text = text;
+        this.draw = draw;
+        this.stroke = stroke;
+        this.tile = tile;
+        this.capabilities = capabilities;
+    }
+
+    public static WireMessage text(String text) {
+        return new WireMessage(text, null, null, null, null);
+    }
+
+    public static WireMessage draw(DrawData draw) {
+        return new WireMessage(null, draw, null, null, null);
+    }
+
+    public static WireMessage stroke(StrokeData stroke) {
+        return new WireMessage(null, null, stroke, null, null);
+    }
+
+    /**
+     * The PROTO reply to a JOINV. It is still written as a text line;
+     * everything after it uses the agreed protocol.
+     *
+     * @param capabilities the capabilities the server accepted
+     */
+    public static WireMessage protocol(String capabilities) {
+        return new WireMessage(("PROTO " + capabilities).trim(), null, null, null, capabilities);
+    }
+
+    public static WireMessage tile(TileData tile) {
+        return new WireMessage(null, null, null, tile, null);
+    }
+
+    /**
+     * Returns this message encoded in a protocol, encoding it only the first time.
+     * The array is shared, so it must not be modified.
+     *
+     * @param binary true for a binary frame, false for a text line
+     * @return the encoded message
+     */
+    public byte[] getBytes(boolean binary) {
+        byte[] bytes = binary ? binaryBytes : textBytes;
+        if (bytes == null) {
+            // two writers may both encode it, either result is the same
+            bytes = BinaryProtocol.encode(this, binary);
+            if (binary) {
+                binaryBytes = bytes;
+            } else {
+                textBytes = bytes;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns this tile as a text TILE message, with the pixels as a base64 PNG,
+     * for clients that didn't agree to tile frames. Made once and shared like the encodings.
+     */
+    public WireMessage asTileLine() {
+        WireMessage line = tileLine;
+        if (line == null) {
+            line = text(tile.toLine());
+            tileLine = line;
+        }
+        return line;
+    }
+
+    public boolean isDraw() {
+        return draw != null;
+    }
+
+    public boolean isStroke() {
+        return stroke != null;
+    }
+
+    public boolean isTile() {
+        return tile != null;
+    }
+
+    /**
+     * @return true if this is the CLEAR command
+     */
+    public boolean isClear() {
+        return "CLEAR".equals(text);
+    }
+
+    /**
+     * @return true if this is a batch of points of a pencil stroke
+     */
+    public boolean isStrokePoints() {
+        return stroke != null && stroke.phase == StrokeData.Phase.POINTS;
+    }
+
+    /**
+     * @return true if this is a freehand pencil segment
+     */
+    public boolean isPencilSegment() {
+        return draw != null && "pencil".equals(draw.shape);
+    }
+}
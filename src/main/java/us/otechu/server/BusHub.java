@@ -0,0 +1,242 @@
+package us.otechu.server;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The middle of a {@link TcpBus}: servers connect to it, publish their events to it,
+ * and it sequences every room's events and sends them on to every server.
+ * It keeps each room's events so servers that connect later can catch up. Once a room has kept
+ * {@link #MAX_HISTORY} of them, one of the servers is asked for a {@link RoomKeyframe}, the room as of the last
+ * event it applied, which then replaces every event up to it. Only a server can take one, since which events
+ * took effect depends on whose turn it was. Chat isn't kept, a server catching up has nobody to show it to.
+ * When a server goes away, its players leave every room.
+ *
+ * Lines from a server: "HELLO nodeId" first, then "PUB event" for each event it publishes,
+ * and "KEYFRAME event" when it was asked for one.
+ * Lines to a server: "EVT event" for each room event, and "SYNCED" once it's caught up on the earlier ones,
+ * and "TAKEKEYFRAME room" to ask it for a keyframe.
+ */
+public class BusHub {
+    /** Events a room keeps before a keyframe is asked for */
+    static final int MAX_HISTORY = 4096;
+
+    private final ServerSocket serverSocket;
+
+    /** One event kept for servers that connect later */
+    private static class Entry {
+        final long seq;
+        final String line;
+
+        Entry(long seq, String line) {
+            this.seq = seq;
+            this.line = line;
+        }
+    }
+
+    /** What a server connecting later is sent of a room */
+    private static class History {
+        // the room as of keyframeSeq, sent before the events after it; null until a server sent one
+        String keyframe;
+        long keyframeSeq = 0;
+        final List<Entry> entries = new ArrayList<>();
+        // how many entries there can be before a keyframe is asked for again
+        int keyframeAt = MAX_HISTORY;
+    }
+
+    /** A connected server, and the players it joined that haven't left */
+    private class Node {
+        final String id;
+        final Socket socket;
+        final LinkedBlockingQueue<String> outbound = new LinkedBlockingQueue<>();
+        // session -> event it joined with
+        final Map<Long, RoomEvent> sessions = new LinkedHashMap<>();
+        Thread writer;
+
+        Node(String id, Socket socket) {
+            this.id = id;
+            this.socket = socket;
+        }
+    }
+
+    // all guarded by this
+    private final Map<String, Long> seqs = new HashMap<>();
+    private final Map<String, History> histories = new HashMap<>();
+    private final List<Node> nodes = new ArrayList<>();
+    // which server is asked for the next keyframe, in turn, so one that can't answer doesn't stop them
+    private int keyframeRequests = 0;
+
+    /**
+     * @param port the port servers connect to
+     */
+    public BusHub(int port) throws IOException {
+        serverSocket = new ServerSocket(port);
+    }
+
+    /**
+     * Accepts servers on a background thread.
+     */
+    public void start() {
+        Thread acceptor = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    socket.setTcpNoDelay(true);
+                    new Thread(() -> serve(socket), "Bus Hub Reader Thread").start();
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }, "Bus Hub Thread");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.println("[BUS] Hub listening on port " + serverSocket.getLocalPort());
+    }
+
+    /**
+     * Reads one server's events until it goes away.
+     */
+    private void serve(Socket socket) {
+        Node node = null;
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String hello = in.readLine();
+            if (hello == null || !hello.startsWith("HELLO ")) {
+                socket.close();
+                return;
+            }
+            node = new Node(hello.substring("HELLO ".length()), socket);
+            startWriter(node);
+            synchronized (this) {
+                // catch it up and add it in one step, so it gets every event exactly once
+                for (History history : histories.values()) {
+                    if (history.keyframe != null) {
+                        node.outbound.add(history.keyframe);
+                    }
+                    for (Entry entry : history.entries) {
+                        node.outbound.add(entry.line);
+                    }
+                }
+                node.outbound.add("SYNCED");
+                nodes.add(node);
+            }
+            System.out.println("[BUS] Server " + node.id + " connected (" + nodes.size() + " servers)");
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                try {
+                    if (line.startsWith("PUB ")) {
+                        publish(node, RoomEvent.parse(line.substring("PUB ".length())));
+                    } else if (line.startsWith("KEYFRAME ")) {
+                        keyframe(RoomEvent.parse(line.substring("KEYFRAME ".length())));
+                    }
+                } catch (RuntimeException e) {
+                    // one bad event shouldn't cut a whole server off, and stop it along with it
+                    System.out.println("[BUS] Bad event from server " + node.id + ": " + e);
+                }
+            }
+        } catch (IOException e) {
+            // the server went away
+        } finally {
+            if (node != null) {
+                disconnect(node);
+            }
+        }
+    }
+
+    private void startWriter(Node node) throws IOException {
+        OutputStream out = new BufferedOutputStream(node.socket.getOutputStream());
+        Thread writer = new Thread(() -> {
+            try {
+                while (true) {
+                    String line = node.outbound.take();
+                    out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+                    if (node.outbound.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            } catch (InterruptedException | IOException e) {
+                // disconnected
+            }
+        }, "Bus Hub Writer Thread");
+        writer.setDaemon(true);
+        node.writer = writer;
+        writer.start();
+    }
+
+    /**
+     * Sequences an event and sends it to every server.
+     */
+    private synchronized void publish(Node from, RoomEvent event) {
+        if (event.type == RoomEvent.Type.JOIN) {
+            from.sessions.put(event.session, event);
+        } else if (event.type == RoomEvent.Type.LEAVE) {
+            from.sessions.remove(event.session);
+        }
+        event.seq = seqs.merge(event.room, 1L, Long::sum);
+        String line = "EVT " + event.encode();
+
+        History history = histories.computeIfAbsent(event.room, room -> new History());
+        if (event.type != RoomEvent.Type.CHAT) {
+            history.entries.add(new Entry(event.seq, line));
+        }
+
+        for (Node node : nodes) {
+            node.outbound.add(line);
+        }
+
+        if (history.entries.size() >= history.keyframeAt && !nodes.isEmpty()) {
+            Node asked = nodes.get(keyframeRequests++ % nodes.size());
+            asked.outbound.add("TAKEKEYFRAME " + event.room);
+            // asked again if this one doesn't come
+            history.keyframeAt = history.entries.size() + MAX_HISTORY;
+        }
+    }
+
+    /**
+     * Replaces a room's events up to a keyframe with the keyframe.
+     */
+    private synchronized void keyframe(RoomEvent event) {
+        History history = histories.get(event.room);
+        if (event.type != RoomEvent.Type.KEYFRAME || history == null || event.seq <= history.keyframeSeq
+                || event.seq > seqs.get(event.room)) {
+            return;
+        }
+        history.keyframe = "EVT " + event.encode();
+        history.keyframeSeq = event.seq;
+        history.entries.removeIf(entry -> entry.seq <= event.seq);
+        history.keyframeAt = history.entries.size() + MAX_HISTORY;
+        System.out.println("[BUS] Keyframe of room " + event.room + " at " + event.seq + " from server " + event.node
+                + ", " + history.entries.size() + " events after it");
+    }
+
+    /**
+     * Removes a server that went away, and has its players leave.
+     */
+    private synchronized void disconnect(Node node) {
+        if (!nodes.remove(node)) {
+            return;
+        }
+        node.writer.interrupt();
+        try {
+            node.socket.close();
+        } catch (IOException ignored) {
+        }
+        for (RoomEvent joined : new ArrayList<>(node.sessions.values())) {
+            publish(node, new RoomEvent(joined.room, RoomEvent.Type.LEAVE, node.id, joined.session, joined.user, null));
+        }
+        System.out.println("[BUS] Server " + node.id + " disconnected (" + nodes.size() + " servers)");
+    }
+}
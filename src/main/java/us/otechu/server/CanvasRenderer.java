@@ -0,0 +1,338 @@
+package us.otechu.server;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import us.otechu.client.DrawData;
+import us.otechu.client.StrokeData;
+import us.otechu.common.StrokeTracker;
+import us.otechu.common.TiledCanvas;
+
+/**
+ * Owns a room's canvas. Every change is queued from whichever thread received it and applied,
+ * in order, by the room worker the canvas was given, which drains everything queued in one pass.
+ * A worker is shared by several rooms, but only ever runs one pass of a canvas at a time.
+ * The canvas is tiled, and only the tiles that were drawn on take memory.
+ * An idle canvas can be hibernated: its drawn tiles are deflated into a buffer off the heap and released.
+ * It is inflated again by the worker before the next change or copy, so callers never see the difference.
+ * Nothing else touches the canvas: readers ask for a copy, a frozen view of it taken by the worker
+ * between two changes, so it is always consistent and the tile versions match its pixels.
+ * Views share the canvas's tiles, which are copied on write, so taking one costs the worker no pixel copying,
+ * and a reader can take as long as it likes over one without holding up the drawing.
+ * The latest view is kept, and handed straight to readers while no change was queued after it.
+ */
+public class CanvasRenderer {
+    /**
+     * A consistent copy of the canvas and the tile versions it has.
+     */
+    public static class CanvasCopy {
+        /** The frozen tiles; must not be drawn on */
+        public final TiledCanvas canvas;
+        public final long[] tileVersions;
+        // how many changes it has
+        final long changes;
+
+        CanvasCopy(TiledCanvas canvas, long[] tileVersions, long changes) {
+            this.canvas = canvas;
+            this.tileVersions = tileVersions;
+            this.changes = changes;
+        }
+    }
+
+    private final int width, height;
+    // null while hibernating
+    private TiledCanvas canvas;
+    private final TileGrid tiles;
+    // the canvas while it's hibernating: the deflated pixels of each drawn tile, one after another
+    private ByteBuffer hibernated;
+    // where each tile starts in the hibernated buffer; a tile that takes no bytes is blank
+    private int[] hibernatedOffsets;
+    // pencil strokes being drawn onto the canvas
+    private final StrokeTracker strokes = new StrokeTracker();
+
+    // the latest view, null until one is asked for and while hibernating
+    private final AtomicReference<CanvasCopy> latest = new AtomicReference<>();
+    // changes queued, counted in the order they're queued; changes applied, only used by the worker
+    private final AtomicLong changesQueued = new AtomicLong();
+    private long changesApplied = 0;
+
+    private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+    private final Executor worker;
+    // true while a pass is queued or running on the worker
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /**
+     * Creates a blank canvas. No memory is taken for it until it's drawn on.
+     *
+     * @param width  canvas width
+     * @param height canvas height
+     * @param worker the single thread executor the canvas is drawn on
+     */
+    public CanvasRenderer(int width, int height, Executor worker) {
+        this.width = width;
+        this.height = height;
+        canvas = new TiledCanvas(width, height);
+        tiles = new TileGrid(width, height);
+        this.worker = worker;
+    }
+
+    /**
+     * @return the tile layout of the canvas; versions are only updated by the worker
+     */
+    public TileGrid getTiles() {
+        return tiles;
+    }
+
+    /**
+     * Queues a drawing action.
+     */
+    public void draw(DrawData data) {
+        change(() -> markDirty(canvas.draw(data)));
+    }
+
+    /**
+     * Queues part of a pencil stroke.
+     */
+    public void stroke(StrokeData data) {
+        change(() -> markDirty(canvas.stroke(strokes, data)));
+    }
+
+    /**
+     * Queues picking up a stroke that was already drawn up to a point, e.g. in a keyframe.
+     *
+     * @param begin a BEGIN at the stroke's last point
+     */
+    public void resumeStroke(StrokeData begin) {
+        change(() -> strokes.resume(begin));
+    }
+
+    /**
+     * Queues an image drawn at the top left corner.
+     */
+    public void image(BufferedImage image) {
+        change(() -> markDirty(canvas.drawImage(image, 0, 0)));
+    }
+
+    /**
+     * Queues making the canvas blank, which frees all of its tiles.
+     */
+    public void clear() {
+        change(() -> {
+            canvas.clear();
+            tiles.clear();
+        });
+    }
+
+    /**
+     * Queues restoring a tile's raw pixels, e.g. from a checkpoint.
+     */
+    public void restoreTile(int x, int y, int width, int height, int[] pixels) {
+        change(() -> {
+            canvas.setPixels(x, y, width, height, pixels);
+            markDirty(new Rectangle(x, y, width, height));
+        });
+    }
+
+    private void markDirty(Rectangle drawn) {
+        if (drawn != null) {
+            tiles.markDirty(drawn);
+        }
+    }
+
+    /**
+     * Asks for a copy of the canvas with every change queued so far applied.
+     * If nothing was queued since the latest view was taken, that's the copy, without waiting for the worker.
+     *
+     * @return completes with the copy, once the worker gets to it if it has to
+     */
+    public CompletableFuture<CanvasCopy> copy() {
+        CanvasCopy current = latest.get();
+        if (current != null && current.changes == changesQueued.get()) {
+            return CompletableFuture.completedFuture(current);
+        }
+        CompletableFuture<CanvasCopy> future = new CompletableFuture<>();
+        submit(() -> future.complete(freeze()));
+        return future;
+    }
+
+    /**
+     * Takes a view of the canvas as it is, reusing the latest one if nothing changed since.
+     * Only called by the worker.
+     */
+    private CanvasCopy freeze() {
+        CanvasCopy current = latest.get();
+        if (current == null || current.changes != changesApplied) {
+            current = new CanvasCopy(canvas.freeze(), tiles.getVersions(), changesApplied);
+            latest.set(current);
+        }
+        return current;
+    }
+
+    /**
+     * Queues compressing the canvas into memory off the heap and releasing its tiles.
+     * Blank tiles take no space at all.
+     *
+     * @return completes with the compressed size in bytes, or -1 if it was already hibernating
+     */
+    public CompletableFuture<Integer> hibernate() {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        enqueue(() -> {
+            if (canvas == null) {
+                future.complete(-1);
+                return;
+            }
+            int[] offsets = new int[canvas.getTileCount() + 1];
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            byte[] raw = new byte[TiledCanvas.TILE_SIZE * TiledCanvas.TILE_SIZE * 4];
+            byte[] chunk = new byte[64 * 1024];
+            for (int i = 0; i < canvas.getTileCount(); i++) {
+                offsets[i] = out.size();
+                BufferedImage tile = canvas.getTile(i);
+                if (tile == null) {
+                    continue;
+                }
+                int[] pixels = (int[]) tile.getRaster().getDataElements(0, 0, tile.getWidth(), tile.getHeight(), null);
+                ByteBuffer.wrap(raw).asIntBuffer().put(pixels);
+                deflater.reset();
+                deflater.setInput(raw, 0, pixels.length * 4);
+                deflater.finish();
+                while (!deflater.finished()) {
+                    out.write(chunk, 0, deflater.deflate(chunk));
+                }
+            }
+            deflater.end();
+            offsets[offsets.length - 1] = out.size();
+
+            // the latest view would keep every tile on the heap
+            latest.set(null);
+            hibernated = ByteBuffer.allocateDirect(out.size());
+            hibernated.put(out.toByteArray());
+            hibernatedOffsets = offsets;
+            canvas = null;
+            future.complete(out.size());
+        });
+        return future;
+    }
+
+    /**
+     * Queues restoring a hibernating canvas, so it's ready before it's needed.
+     *
+     * @return completes with true if the canvas had to be restored
+     */
+    public CompletableFuture<Boolean> wake() {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        enqueue(() -> future.complete(wakeUp()));
+        return future;
+    }
+
+    /**
+     * Inflates the hibernated tiles back into a new canvas, if it's hibernating.
+     *
+     * @return true if it was
+     */
+    private boolean wakeUp() {
+        if (canvas != null) {
+            return false;
+        }
+        canvas = new TiledCanvas(width, height);
+        Inflater inflater = new Inflater();
+        byte[] raw = new byte[TiledCanvas.TILE_SIZE * TiledCanvas.TILE_SIZE * 4];
+        for (int i = 0; i + 1 < hibernatedOffsets.length; i++) {
+            int length = hibernatedOffsets[i + 1] - hibernatedOffsets[i];
+            if (length == 0) {
+                continue;
+            }
+            byte[] compressed = new byte[length];
+            hibernated.get(hibernatedOffsets[i], compressed);
+            Rectangle r = canvas.getTileBounds(i);
+            int[] pixels = new int[r.width * r.height];
+            inflater.reset();
+            inflater.setInput(compressed);
+            try {
+                inflater.inflate(raw, 0, pixels.length * 4);
+            } catch (DataFormatException e) {
+                // can't happen with bytes we deflated ourselves, but leave the tile blank rather than fail
+                e.printStackTrace();
+                continue;
+            }
+            ByteBuffer.wrap(raw).asIntBuffer().get(pixels);
+            BufferedImage tile = new BufferedImage(r.width, r.height, BufferedImage.TYPE_INT_RGB);
+            tile.getRaster().setDataElements(0, 0, r.width, r.height, pixels);
+            canvas.setTile(i, tile);
+        }
+        inflater.end();
+        hibernated = null;
+        hibernatedOffsets = null;
+        return true;
+    }
+
+    /**
+     * Queues a change, counting it so readers can tell whether the latest view has it.
+     */
+    private void change(Runnable task) {
+        // counted and queued in one step, so the count never runs ahead of the queue's order
+        synchronized (changesQueued) {
+            changesQueued.incrementAndGet();
+            submit(() -> {
+                try {
+                    task.run();
+                } finally {
+                    changesApplied++;
+                }
+            });
+        }
+    }
+
+    /**
+     * Queues a change or copy, restoring the canvas first if it's hibernating.
+     */
+    private void submit(Runnable task) {
+        enqueue(() -> {
+            wakeUp();
+            task.run();
+        });
+    }
+
+    private void enqueue(Runnable task) {
+        queue.add(task);
+        if (scheduled.compareAndSet(false, true)) {
+            worker.execute(this::drain);
+        }
+    }
+
+    /**
+     * Applies everything queued so far, then gives the worker back to the other rooms.
+     */
+    private void drain() {
+        List<Runnable> batch = new ArrayList<>();
+        queue.drainTo(batch);
+        for (Runnable task : batch) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // one bad op shouldn't stop the canvas
+                e.printStackTrace();
+            }
+        }
+        scheduled.set(false);
+        // something queued after the drain but before the flag was cleared
+        if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+            worker.execute(this::drain);
+        }
+    }
+}
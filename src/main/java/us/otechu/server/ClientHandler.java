@@ -1,30 +1,112 @@
 package us.otechu.server;
 
-import java.awt.image.BufferedImage;
-import java.io.BufferedReader;
+import java.awt.Rectangle;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.JsonParseException;
+
+import us.otechu.client.DrawData;
+import us.otechu.client.StrokeData;
+import us.otechu.common.BinaryProtocol;
+import us.otechu.common.MessageReader;
+import us.otechu.common.StreamCompression;
+import us.otechu.common.WireMessage;
 
 /**
  * Handles server communication with a client.
- * Each instance runs on its own thread.
+ * In the default mode each instance runs on its own thread and reads from a blocking socket.
+ * In NIO mode the event loop frames the incoming bytes, and a handler thread feeds each message to
+ * {@link #handleMessage(WireMessage)}, one at a time, so the loop never waits on what a message does.
+ * On a relay, players are passed through to the primary message by message; only spectators join the local room.
+ * What a player does in its room is published on the server's {@link MessageBus}, and takes effect when the room applies it.
  */
 public class ClientHandler implements Runnable {
-    private final Socket socket;
+    // numbers the connections, so players can be told apart on the bus
+    private static final AtomicLong sessions = new AtomicLong();
+
+    private final Socket socket; // null when running on the NIO event loop
     private final DrawingServer server;
-    private BufferedReader input;
-    private PrintWriter output;
+    private MessageReader input;
+    private ClientTransport transport;
+
+    // true once the client joined with JOINV and both sides switched to binary frames
+    private volatile boolean binaryProtocol = false;
+
+    // true if the client joined with the tiles capability and gets the canvas as TILE messages
+    private volatile boolean tileSync = false;
+    // true if the client also agreed to tiles as binary TILE frames, instead of base64 PNG lines
+    private volatile boolean rawTiles = false;
+
+    // true if the client clears its own canvas on CLEAR, instead of loading a blank snapshot
+    private volatile boolean compactClear = false;
+
+    // true if the client joined with the upload capability and loads images in chunks
+    private volatile boolean chunkedUploads = false;
+    // the deflate streams agreed in PROTO, null unless the player asked for compression
+    private volatile StreamCompression.Compressor compressor;
+    private volatile StreamCompression.Decompressor decompressor;
+    // true if a relayed player offered compression, which the relay does itself instead of the primary
+    private boolean relayDeflate = false;
+
+    // the image the client is uploading, null between uploads
+    private ImageUpload upload;
+
+    // what part of the canvas the client shows, and what it missed elsewhere
+    private final ClientView view = new ClientView();
+
+    // messages waiting to be written, drained by this client's writer
+    private final OutboundQueue outbound = new OutboundQueue();
 
     // true only after the client has fully loaded + sent READY message
-    private boolean isReady = false;
+    private volatile boolean isReady = false;
+
+    // true if the client joined to watch, it takes no turns and can't draw
+    private volatile boolean spectator = false;
+    // writes to the socket in the default mode, null on the NIO event loop
+    private Thread writerThread;
+
+    // a relayed player's connection to the primary, which gets everything the client sends
+    private volatile Upstream upstream;
+    // true once the primary accepted the relayed player's join
+    private volatile boolean upstreamJoined = false;
+    // counted down when the primary answers a relayed join
+    private volatile CountDownLatch upstreamReply;
+    /** How long a relayed join waits for the primary before reading on */
+    private static final long UPSTREAM_REPLY_TIMEOUT_SECONDS = 5;
+
+    // this connection's number on this server
+    private final long session = sessions.incrementAndGet();
+    // the capabilities of the JOINV waiting for the room's answer, null for a plain JOIN
+    private String joinCapabilities;
+    // the name the player joined or is joining with, for its events
+    private String playerName;
+    // true while a player's JOIN is on its way through the bus
+    private volatile boolean joining = false;
+    // counted down when the room answers the JOIN
+    private volatile CountDownLatch joinDecided;
+    /** How long a player's join waits for the bus before reading on */
+    private static final long JOIN_TIMEOUT_SECONDS = 5;
+    /** Compressed bytes written out even before the queue runs empty, so a long burst isn't held back */
+    static final int COMPRESSED_FLUSH_SIZE = 64 * 1024;
+
+    // guards against running the disconnect cleanup twice
+    private boolean disconnected = false;
 
     public String username = null; // clients username
+    volatile Room room = null; // the room the client joined
 
     /**
      * Constructor for ClientHandler.
-     * 
+     *
      * @param socket the client socket
      * @param server reference to the server
      */
@@ -34,163 +116,801 @@ public class ClientHandler implements Runnable {
     }
 
     /**
-     * Sends a message from server to client.
-     * 
+     * Constructor for a ClientHandler driven by the NIO event loop.
+     *
+     * @param transport the non-blocking connection to the client
+     * @param server    reference to the server
+     */
+    public ClientHandler(ClientTransport transport, DrawingServer server) {
+        this.socket = null;
+        this.transport = transport;
+        this.server = server;
+    }
+
+    /**
+     * Queues a message from server to client.
+     *
      * @param message the message to send
      */
     public void sendMessage(String message) {
-        if (output != null) {
-            output.println(message);
+        send(WireMessage.text(message));
+    }
+
+    /**
+     * Queues a drawing action, encoded in whichever protocol this client uses.
+     *
+     * @param data the drawing action to send
+     */
+    public void sendDraw(DrawData data) {
+        send(WireMessage.draw(data));
+    }
+
+    /**
+     * Queues a message for this client's writer.
+     * Never blocks on the client's socket; a client that stays too far behind is disconnected.
+     *
+     * @param message the message to send
+     */
+    public void send(WireMessage message) {
+        if (message.isTile() && !rawTiles) {
+            message = message.asTileLine();
+        } else if (message.isClear() && !compactClear) {
+            message = server.getBlankCanvasMessage();
+        }
+        if (!outbound.offer(message)) {
+            disconnectSlowClient();
+            return;
+        }
+        if (transport != null) {
+            transport.messagesQueued();
         }
     }
 
+    /**
+     * @return the queue of messages waiting to be written to this client
+     */
+    public OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+
+    /**
+     * Drops a client whose outbound queue has stayed full for too long.
+     */
+    private void disconnectSlowClient() {
+        synchronized (this) {
+            if (disconnected) {
+                return;
+            }
+        }
+        server.log("Disconnecting " + (username != null ? username : describeConnection())
+                + ": outbound queue stayed full for over " + OutboundQueue.MAX_LAG_MS + "ms");
+        server.recordSlowDisconnect();
+        outbound.close();
+        if (transport != null) {
+            transport.close();
+        }
+    }
+
+    /**
+     * Marks the client as ready, once its canvas sync has been queued.
+     */
+    void markReady() {
+        isReady = true;
+    }
+
     /**
      * Checks if the client is ready.
-     * 
+     *
      * @return true if the client is ready, false otherwise
      */
     public boolean getIsReady() {
         return isReady;
     }
 
+    /**
+     * Marks the client as a spectator. In the default mode its writer gives way to the players' writers.
+     */
+    void markSpectator() {
+        spectator = true;
+        if (writerThread != null) {
+            writerThread.setPriority(Thread.MIN_PRIORITY);
+        }
+    }
+
+    /**
+     * @return true if the client joined to watch
+     */
+    public boolean isSpectator() {
+        return spectator;
+    }
+
+    /**
+     * @return true if the client gets the canvas as TILE messages
+     */
+    public boolean usesTileSync() {
+        return tileSync;
+    }
+
+    /**
+     * @return the client's viewport and what it missed outside of it; only used with the room's op log locked
+     */
+    ClientView getView() {
+        return view;
+    }
+
+    /**
+     * @return this connection's number on this server
+     */
+    public long getSession() {
+        return session;
+    }
+
+    /**
+     * @return true if messages from this client now arrive as binary frames
+     */
+    public boolean isBinaryProtocol() {
+        return binaryProtocol;
+    }
+
+    /**
+     * @return what compresses the messages to this client once PROTO is written, or null
+     */
+    StreamCompression.Compressor getCompressor() {
+        return compressor;
+    }
+
+    /**
+     * @return what decompresses the messages after the client's JOINV, or null
+     */
+    StreamCompression.Decompressor getDecompressor() {
+        return decompressor;
+    }
+
+    /**
+     * @return how well this client's connection compresses, or null if it isn't compressed
+     */
+    public String getCompressionStats() {
+        StreamCompression.Compressor out = compressor;
+        return out != null ? StreamCompression.describe(out, decompressor) : null;
+    }
+
+    /**
+     * Longest line or frame read from this client. Clients that upload images in chunks never need more
+     * than a short control message; older ones send an image as one LOADIMG line, up to the upload limit.
+     *
+     * @return the limit in bytes
+     */
+    public int getMaxMessageLength() {
+        if (chunkedUploads) {
+            return BinaryProtocol.MAX_CONTROL_LENGTH;
+        }
+        // base64 makes it a third longer
+        return (server.getMaxUploadBytes() + 2) / 3 * 4 + "LOADIMG ".length();
+    }
+
     @Override
     public void run() {
         try {
-            input = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            output = new PrintWriter(socket.getOutputStream(), true);
-
-            // wait for JOIN message from client
-            while (username == null) {
-                String line = input.readLine();
-                if (line == null) {
-                    server.log("Client disconnected before sending username");
-                    return;
+            input = new MessageReader(socket.getInputStream());
+            OutputStream output = new BufferedOutputStream(socket.getOutputStream());
+            transport = new ClientTransport() {
+                @Override
+                public void messagesQueued() {
+                    // the writer thread is already waiting on the queue
                 }
 
-                if (line.startsWith("JOIN ")) {
-                    String proposedUsername = line.substring(5).trim();
-                    if (proposedUsername.isEmpty() || server.isUsernameTaken(proposedUsername)) {
-                        sendMessage("NAMEINUSE");
-                    } else {
-                        this.username = proposedUsername;
-                        server.addUsername(this.username);
-
-                        sendMessage("JOINED " + this.username);
-                        server.broadcastUserList();
-                        server.log("New player joined: " + this.username);
-                        server.broadcastMessage("LOG " + this.username + " has joined the game!");
-                        break; // exit the loop
+                @Override
+                public void close() {
+                    // closing the socket ends the read loop, which runs the cleanup
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
                     }
                 }
-            }
 
-            // after username is set, wait for READY message
-            while (!isReady) {
-                String line = input.readLine();
-                if (line == null) {
-                    // user disconnected
-                    server.removeClient(this);
-                    return;
+                @Override
+                public String describe() {
+                    return String.valueOf(socket);
                 }
-                if (line.equals("READY")) {
-                    isReady = true;
-                    // sync canvas
-                    String fullBase64 = server.encodeCanvasToBase64(server.getServerCanvas());
-                    sendMessage("LOADIMG " + fullBase64);
-
-                    // recheck if theres no current turn holder
-                    if (server.getCurrentClientTurn() == null) {
-                        server.updateTurn();
-                    } else {
-                        // still broadcast incase order changed
-                        server.broadcastUserList();
-                    }
+            };
 
-                    break;
-                }
-            }
+            startWriter(output);
 
-            // main loop
-            String line;
-            while ((line = input.readLine()) != null) {
-                // if not ready, ignore
-                if (!isReady) {
-                    continue;
+            input.setMaxLength(getMaxMessageLength());
+            WireMessage message;
+            while ((message = input.read()) != null) {
+                handleMessage(message);
+                input.setBinary(binaryProtocol);
+                if (decompressor != null && !input.isInflating()) {
+                    input.startInflating(decompressor);
                 }
+                input.setMaxLength(getMaxMessageLength());
+            }
+        } catch (IOException e) {
+            // user disconnected
+        } finally {
+            onDisconnect();
+        }
+    }
 
-                // ENDTURN
-                if (line.equals("ENDTURN")) {
-                    // only the current turn holder can end their turn
-                    if (server.getCurrentClientTurn() == this) {
-                        server.log("Player " + username + " ended their turn.");
-                        server.updateTurn();
+    /**
+     * Starts the thread that drains the outbound queue to the socket.
+     * Flushes whenever the queue runs empty, so bursts go out together, and compressed in one piece.
+     *
+     * @param output the socket's output stream
+     */
+    private void startWriter(OutputStream output) {
+        Thread writer = new Thread(() -> {
+            boolean binary = false;
+            StreamCompression.Compressor deflate = null;
+            try {
+                WireMessage message;
+                while ((message = outbound.take()) != null) {
+                    byte[] bytes = message.getBytes(binary);
+                    if (deflate != null) {
+                        deflate.add(bytes);
+                        if (deflate.getPending() >= COMPRESSED_FLUSH_SIZE) {
+                            output.write(deflate.flush());
+                        }
+                    } else {
+                        output.write(bytes);
+                    }
+                    if (message.capabilities != null) {
+                        binary = BinaryProtocol.hasCapability(message.capabilities, BinaryProtocol.CAPABILITY);
+                        if (BinaryProtocol.hasCapability(message.capabilities, BinaryProtocol.DEFLATE_CAPABILITY)) {
+                            deflate = compressor;
+                        }
+                    }
+                    if (outbound.isEmpty()) {
+                        if (deflate != null) {
+                            output.write(deflate.flush());
+                        }
+                        output.flush();
                     }
-                    continue;
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                // socket closed
+            }
+            try {
+                output.close();
+            } catch (IOException ignored) {
+            }
+        }, "ClientWriter Thread");
+        writer.setDaemon(true);
+        writerThread = writer;
+        writer.start();
+    }
 
-                // DRAW
-                if (line.startsWith("DRAW ")) {
-                    // only current turn holder can draw
-                    if (server.getCurrentClientTurn() == this) {
-                        // parse and apply
-                        String json = line.substring("DRAW ".length());
-                        server.applyDrawAction(json);
+    /**
+     * Handles one message received from the client, in either protocol.
+     *
+     * @param message the received message
+     */
+    public void handleMessage(WireMessage message) {
+        if (upstream != null) {
+            if (upstreamJoined) {
+                upstream.send(message);
+            } else {
+                forwardJoin(message);
+            }
+            return;
+        }
+        if (spectator && (message.isDraw() || message.isStroke())) {
+            return; // spectators can't draw
+        }
+        if (message.isTile()) {
+            return; // only the server sends tiles
+        }
+        if (message.isDraw()) {
+            if (isReady) {
+                handleDraw(message.draw);
+            }
+        } else if (message.isStroke()) {
+            if (isReady) {
+                handleStroke(message.stroke);
+            }
+        } else {
+            handleLine(message.text);
+        }
+    }
 
-                        server.sendDrawData(this, line);
-                    } else {
-                        sendMessage("Not your turn!");
+    /**
+     * Handles one line received from the client.
+     * Before the client is named only JOIN is accepted, then READY, then the game commands.
+     *
+     * @param line the received line, without the trailing newline
+     */
+    public void handleLine(String line) {
+        // wait for JOIN message from client
+        if (username == null) {
+            if (joining) {
+                return; // still waiting for the room's answer
+            }
+            // JOIN [#room] name, or JOINV capabilities [#room] name from clients that support more than the text protocol
+            String proposedUsername = null;
+            String capabilities = null;
+            if (line.startsWith("JOIN ")) {
+                proposedUsername = line.substring(5).trim();
+            } else if (line.startsWith("JOINV ")) {
+                String rest = line.substring(6);
+                int space = rest.indexOf(' ');
+                capabilities = space < 0 ? rest : rest.substring(0, space);
+                proposedUsername = space < 0 ? "" : rest.substring(space + 1).trim();
+            }
+
+            if (proposedUsername != null) {
+                String roomName = Room.DEFAULT_ROOM;
+                if (proposedUsername.startsWith("#")) {
+                    int space = proposedUsername.indexOf(' ');
+                    roomName = space < 0 ? proposedUsername.substring(1) : proposedUsername.substring(1, space);
+                    proposedUsername = space < 0 ? "" : proposedUsername.substring(space + 1).trim();
+                    if (!Room.isValidName(roomName)) {
+                        sendMessage("BADROOM");
+                        return;
                     }
-                    continue;
                 }
 
-                // CLEAR
-                if (line.equals("CLEAR")) {
-                    if (server.getCurrentClientTurn() == this) {
-                        server.clearServerCanvas(); // wipe server canvas
-                        // send blank canvas to all clients
-                        String blankBase64 = server.encodeCanvasToBase64(server.getServerCanvas());
-                        server.broadcastMessage("LOADIMG " + blankBase64);
-                        String logMsg = username + " cleared the canvas.";
-                        server.log(logMsg);
-                        server.broadcastMessage("LOG " + logMsg);
-                    } else {
-                        sendMessage("Not your turn!");
+                boolean watching = capabilities != null
+                        && BinaryProtocol.hasCapability(capabilities, BinaryProtocol.SPECTATE_CAPABILITY);
+                if (!watching && server.isRelay()) {
+                    relayToPrimary(line);
+                    return;
+                }
+                joinCapabilities = capabilities;
+                playerName = proposedUsername;
+                CountDownLatch decided = new CountDownLatch(1);
+                joinDecided = decided;
+                joining = true;
+                String refused = server.joinRoom(this, roomName, proposedUsername, watching);
+                if (refused != null) {
+                    joinRefused(refused);
+                } else if (watching) {
+                    joined();
+                } else if (socket != null) {
+                    // a player is let in when its JOIN comes back through the bus,
+                    // and the socket's next message is read in the protocol agreed then
+                    try {
+                        decided.await(JOIN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
                     }
-                    continue;
                 }
+            }
+            return;
+        }
 
-                // LOADIMG
-                if (line.startsWith("LOADIMG ")) {
-                    // only current turn holder can load an image
-                    if (server.getCurrentClientTurn() == this) {
-                        String base64 = line.substring("LOADIMG ".length());
-                        server.applyLoadImageAction(base64);
-                        server.broadcastMessage(line);
-                        server.log("User " + username + " loaded an image.");
-                    } else {
-                        sendMessage("Not your turn!");
+        // VIEW x y w h, the part of the canvas the client shows, before or after READY
+        if (line.startsWith("VIEW ")) {
+            Rectangle viewport = parseView(line.substring("VIEW ".length()));
+            // only clients that can fetch tiles can skip the ops they don't see; spectators get everything
+            if (viewport != null && tileSync && !spectator) {
+                room.moveView(this, viewport);
+            }
+            return;
+        }
+
+        // after username is set, wait for READY message
+        if (!isReady) {
+            // READY, or "READY v1,v2,..." from a tile sync client that still has its canvas
+            if (line.equals("READY") || line.startsWith("READY ")) {
+                long[] known = null;
+                if (tileSync && line.length() > 6) {
+                    known = TileGrid.parseVersions(line.substring(6));
+                    if (known == null) {
+                        known = new long[0]; // unreadable, so resend every tile
                     }
-                    continue;
                 }
+                if (spectator) {
+                    room.syncSpectator(this, known);
+                    return;
+                }
+                room.syncCanvas(this, known);
+                // the player only takes turns once every server has it as ready
+                publish(RoomEvent.Type.READY, null);
+            }
+            return;
+        }
+
+        // spectators only watch
+        if (spectator) {
+            return;
+        }
+
+        // ENDTURN
+        if (line.equals("ENDTURN")) {
+            // only the current turn holder can end their turn
+            if (room.isTurnOf(this)) {
+                publish(RoomEvent.Type.ENDTURN, null);
+            }
+            return;
+        }
+
+        // DRAW
+        if (line.startsWith("DRAW ")) {
+            String json = line.substring("DRAW ".length());
+            handleDraw(server.parseDrawJson(json));
+            return;
+        }
+
+        // STROKE
+        if (line.startsWith("STROKE ")) {
+            StrokeData data;
+            try {
+                data = BinaryProtocol.parseStrokeJson(line.substring("STROKE ".length()));
+            } catch (JsonParseException e) {
+                return;
+            }
+            handleStroke(data);
+            return;
+        }
+
+        // CLEAR
+        if (line.equals("CLEAR")) {
+            if (room.isTurnOf(this)) {
+                publish(RoomEvent.Type.CLEAR, null);
+            } else {
+                sendMessage("Not your turn!");
+            }
+            return;
+        }
 
-                if (line.startsWith("CHAT ")) {
-                    String msg = "LOG " + username + ": " + line.substring(5);
-                    server.broadcastMessage(msg);
-                    continue;
+        // LOADIMG
+        if (line.startsWith("LOADIMG ")) {
+            // only current turn holder can load an image
+            if (room.isTurnOf(this)) {
+                byte[] image;
+                try {
+                    image = Base64.getDecoder().decode(line.substring("LOADIMG ".length()));
+                } catch (IllegalArgumentException e) {
+                    return; // not an image
                 }
+                publishImage(image);
+            } else {
+                sendMessage("Not your turn!");
+            }
+            return;
+        }
+
+        // IMGSTART size, IMGDATA base64 chunks, then IMGEND: an image loaded in pieces, acknowledged with IMGACK
+        if (line.startsWith("IMGSTART ") || line.startsWith("IMGDATA ") || line.equals("IMGEND")
+                || line.equals("IMGABORT")) {
+            handleUpload(line);
+            return;
+        }
+
+        if (line.startsWith("CHAT ")) {
+            // a line break would start a line of its own on text clients
+            String text = line.substring(5).replace('\r', ' ').replace('\n', ' ');
+            publish(RoomEvent.Type.CHAT, WireMessage.text(text));
+            return;
+        }
 
-                // unrecognized message
-                server.log("Unknown message from " + username + ": " + line);
+        // unrecognized message
+        room.log("Unknown message from " + username + ": " + line);
+    }
+
+    /**
+     * Finishes joining once the room let the client in: agrees on the protocol, then sends the canvas size
+     * and the name it joined with. Players are announced by the room as it applies their join.
+     */
+    void joined() {
+        if (joinCapabilities != null) {
+            // agree on the protocol before JOINED, so the client switches before it sends READY
+            binaryProtocol = BinaryProtocol.hasCapability(joinCapabilities, BinaryProtocol.CAPABILITY);
+            tileSync = BinaryProtocol.hasCapability(joinCapabilities, BinaryProtocol.TILES_CAPABILITY);
+            rawTiles = binaryProtocol && tileSync
+                    && BinaryProtocol.hasCapability(joinCapabilities, BinaryProtocol.RAW_TILES_CAPABILITY);
+            chunkedUploads = BinaryProtocol.hasCapability(joinCapabilities, BinaryProtocol.UPLOAD_CAPABILITY);
+            compactClear = BinaryProtocol.hasCapability(joinCapabilities, BinaryProtocol.CLEAR_CAPABILITY);
+            // spectators share their encoded messages, compressing each of them would undo that
+            boolean deflate = !spectator
+                    && BinaryProtocol.hasCapability(joinCapabilities, BinaryProtocol.DEFLATE_CAPABILITY);
+            if (deflate) {
+                compressor = new StreamCompression.Compressor();
+                decompressor = new StreamCompression.Decompressor();
+            }
+            List<String> accepted = new ArrayList<>();
+            if (binaryProtocol) {
+                accepted.add(BinaryProtocol.CAPABILITY);
+            }
+            if (tileSync) {
+                accepted.add(BinaryProtocol.TILES_CAPABILITY);
+            }
+            if (rawTiles) {
+                accepted.add(BinaryProtocol.RAW_TILES_CAPABILITY);
+            }
+            if (chunkedUploads) {
+                accepted.add(BinaryProtocol.UPLOAD_CAPABILITY);
+            }
+            if (compactClear) {
+                accepted.add(BinaryProtocol.CLEAR_CAPABILITY);
             }
+            if (deflate) {
+                accepted.add(BinaryProtocol.DEFLATE_CAPABILITY);
+            }
+            if (spectator) {
+                accepted.add(BinaryProtocol.SPECTATE_CAPABILITY);
+            }
+            send(WireMessage.protocol(String.join(",", accepted)));
+        }
+
+        // the canvas size comes first, so the client has the right canvas before it syncs
+        sendMessage("CANVAS " + server.getCanvasWidth() + " " + server.getCanvasHeight());
+        sendMessage("JOINED " + this.username);
+        if (spectator) {
+            // only the spectator itself hears about it
+            room.sendUserList(this);
+            room.log("New spectator: " + this.username + " (" + room.getSpectatorCount() + " watching)");
+        }
+        joining = false;
+        joinDecided.countDown();
+    }
 
+    /**
+     * Tells the client it couldn't join, so it can try again.
+     *
+     * @param reply FULL or NAMEINUSE
+     */
+    void joinRefused(String reply) {
+        room = null;
+        sendMessage(reply);
+        joining = false;
+        joinDecided.countDown();
+    }
+
+    /**
+     * Publishes something the player did in its room, to be applied by every server on the bus.
+     *
+     * @param type    what it did
+     * @param message the op, image or chat text, or null
+     */
+    private void publish(RoomEvent.Type type, WireMessage message) {
+        MessageBus bus = server.getBus();
+        bus.publish(new RoomEvent(room.getName(), type, bus.getNodeId(), session, playerName, message));
+    }
+
+    /**
+     * Publishes an image the client loaded, as the file itself.
+     */
+    private void publishImage(byte[] image) {
+        MessageBus bus = server.getBus();
+        bus.publish(RoomEvent.image(room.getName(), bus.getNodeId(), session, playerName, image));
+    }
+
+    /**
+     * Passes a player through to the primary, starting with its join.
+     * From then on everything the client sends goes to the primary, and everything the primary sends back
+     * comes to the client, switching protocol with the PROTO reply on the way past.
+     *
+     * @param join the client's JOIN or JOINV line
+     */
+    private void relayToPrimary(String join) {
+        Upstream connection;
+        try {
+            connection = server.connectUpstream();
         } catch (IOException e) {
-            // user disconnected
-        } finally {
-            closeAll();
-            server.broadcastMessage("LOG " + username + " has left the game.");
-            server.removeClient(this);
-            server.log("Client disconnected: " + (username != null ? username : socket));
+            server.log("Couldn't relay " + describeConnection() + " to the primary: " + e.getMessage());
+            transport.close();
+            return;
+        }
+        upstream = connection;
+        connection.start(this::handleUpstream, transport::close, "Upstream Thread");
+        forwardJoin(WireMessage.text(join));
+    }
+
+    /**
+     * Sends a relayed player's message to the primary before it has joined. In the default mode this waits
+     * for the primary's answer, since it decides the protocol the socket's next message is read in.
+     */
+    private void forwardJoin(WireMessage message) {
+        if (message.text != null && message.text.startsWith("JOINV ")) {
+            // the relay compresses its side itself, the link to the primary stays plain
+            String rest = message.text.substring("JOINV ".length());
+            int space = rest.indexOf(' ');
+            String capabilities = space < 0 ? rest : rest.substring(0, space);
+            relayDeflate = BinaryProtocol.hasCapability(capabilities, BinaryProtocol.DEFLATE_CAPABILITY);
+            message = WireMessage.text("JOINV "
+                    + BinaryProtocol.withoutCapability(capabilities, BinaryProtocol.DEFLATE_CAPABILITY)
+                    + (space < 0 ? "" : rest.substring(space)));
+        }
+        CountDownLatch reply = new CountDownLatch(1);
+        upstreamReply = reply;
+        upstream.send(message);
+        if (socket != null) {
+            try {
+                reply.await(UPSTREAM_REPLY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Passes a message from the primary on to a relayed player.
+     */
+    private void handleUpstream(WireMessage message) {
+        if (message.capabilities != null) {
+            // switch before the client can answer in the new protocol
+            binaryProtocol = BinaryProtocol.hasCapability(message.capabilities, BinaryProtocol.CAPABILITY);
+            tileSync = BinaryProtocol.hasCapability(message.capabilities, BinaryProtocol.TILES_CAPABILITY);
+            rawTiles = BinaryProtocol.hasCapability(message.capabilities, BinaryProtocol.RAW_TILES_CAPABILITY);
+            chunkedUploads = BinaryProtocol.hasCapability(message.capabilities, BinaryProtocol.UPLOAD_CAPABILITY);
+            compactClear = BinaryProtocol.hasCapability(message.capabilities, BinaryProtocol.CLEAR_CAPABILITY);
+            if (relayDeflate) {
+                compressor = new StreamCompression.Compressor();
+                decompressor = new StreamCompression.Decompressor();
+                message = WireMessage.protocol(message.capabilities.isEmpty() ? BinaryProtocol.DEFLATE_CAPABILITY
+                        : message.capabilities + "," + BinaryProtocol.DEFLATE_CAPABILITY);
+            }
+        } else if (message.text != null && message.text.startsWith("JOINED ")) {
+            username = message.text.substring("JOINED ".length());
+            upstreamJoined = true;
+            server.log("Relaying player " + username + " to the primary");
+        }
+        send(message);
+        CountDownLatch reply = upstreamReply;
+        if (reply != null) {
+            reply.countDown();
+        }
+    }
+
+    /**
+     * Parses a viewport sent by the client, as "x y width height".
+     *
+     * @return the viewport, or null if it's malformed or empty
+     */
+    private static Rectangle parseView(String view) {
+        String[] parts = view.trim().split(" ");
+        if (parts.length != 4) {
+            return null;
+        }
+        try {
+            Rectangle r = new Rectangle(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+                    Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+            return r.isEmpty() ? null : r;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Handles one message of a chunked image upload. Every chunk is acknowledged with "IMGACK bytes",
+     * so the client can show progress and keeps only a few chunks in flight. The finished image is published
+     * like a LOADIMG line and answered with IMGDONE. Anything wrong ends the upload with "IMGFAIL reason",
+     * and the chunks still on their way are ignored.
+     *
+     * @param line IMGSTART, IMGDATA, IMGEND or IMGABORT
+     */
+    private void handleUpload(String line) {
+        if (line.startsWith("IMGSTART ")) {
+            upload = null;
+            long size;
+            try {
+                size = Long.parseLong(line.substring("IMGSTART ".length()).trim());
+            } catch (NumberFormatException e) {
+                sendMessage("IMGFAIL Bad image size");
+                return;
+            }
+            if (!room.isTurnOf(this)) {
+                sendMessage("IMGFAIL Not your turn!");
+            } else if (size <= 0 || size > server.getMaxUploadBytes()) {
+                sendMessage("IMGFAIL Images can be at most " + server.getMaxUploadBytes() / (1024 * 1024) + " MB");
+            } else {
+                upload = new ImageUpload((int) size);
+            }
+            return;
+        }
+        if (upload == null) {
+            return; // aborted or failed
+        }
+        if (line.equals("IMGABORT")) {
+            upload = null;
+            return;
+        }
+        if (line.startsWith("IMGDATA ")) {
+            try {
+                sendMessage("IMGACK " + upload.append(line.substring("IMGDATA ".length())));
+            } catch (IOException e) {
+                upload = null;
+                sendMessage("IMGFAIL " + e.getMessage());
+            }
+            return;
+        }
+
+        // IMGEND
+        ImageUpload finished = upload;
+        upload = null;
+        if (!finished.isComplete()) {
+            sendMessage("IMGFAIL Image ended early");
+        } else if (!room.isTurnOf(this)) {
+            // the turn passed on while it was uploading
+            sendMessage("IMGFAIL Not your turn!");
+        } else {
+            publishImage(finished.getBytes());
+            sendMessage("IMGDONE");
+        }
+    }
+
+    /**
+     * Handles a drawing action, sent as a DRAW line or a binary frame.
+     *
+     * @param data the drawing action
+     */
+    private void handleDraw(DrawData data) {
+        // only current turn holder can draw
+        if (room.isTurnOf(this)) {
+            // applied, logged and passed on as it comes back through the bus
+            publish(RoomEvent.Type.OP, WireMessage.draw(data));
+        } else {
+            sendMessage("Not your turn!");
+        }
+    }
+
+    /**
+     * Handles part of a pencil stroke, sent as a STROKE line or a binary frame.
+     *
+     * @param data the stroke message
+     */
+    private void handleStroke(StrokeData data) {
+        // checked before it's published, since every server it reaches logs it before drawing it
+        if (data == null || !data.isValid()) {
+            return;
+        }
+        // only current turn holder can draw
+        if (room.isTurnOf(this)) {
+            publish(RoomEvent.Type.OP, WireMessage.stroke(data));
+        } else if (data.phase == StrokeData.Phase.BEGIN) {
+            sendMessage("Not your turn!");
+        }
+    }
+
+    /**
+     * Cleans up after the client's connection ends and notifies the other players.
+     * Safe to call more than once.
+     */
+    public void onDisconnect() {
+        synchronized (this) {
+            if (disconnected) {
+                return;
+            }
+            disconnected = true;
+        }
+
+        if (username == null) {
+            server.log("Client disconnected before sending username");
+        }
+        closeAll();
+        if (upstream != null) {
+            upstream.close();
+        }
+        if (compressor != null) {
+            server.log("Compression for " + (username != null ? username : describeConnection()) + ": "
+                    + getCompressionStats());
+            compressor.close();
+            decompressor.close();
+        }
+        outbound.close();
+        server.removeClient(this);
+        if (room != null) {
+            room.leave(this);
+            if (!spectator) {
+                // the other players hear about it when the room applies it
+                publish(RoomEvent.Type.LEAVE, null);
+            }
+        }
+        server.log("Client disconnected: " + (username != null ? username : describeConnection()));
+    }
+
+    /**
+     * @return the remote end of this client's connection, for logs
+     */
+    private String describeConnection() {
+        if (transport != null) {
+            return transport.describe();
         }
+        return String.valueOf(socket);
     }
 
     /**
@@ -203,8 +923,8 @@ public class ClientHandler implements Runnable {
         } catch (IOException e) {
             // ignore
         }
-        if (output != null)
-            output.close();
+        if (transport != null)
+            transport.close();
         try {
             if (socket != null && !socket.isClosed())
                 socket.close();
@@ -0,0 +1,25 @@
+package us.otechu.server;
+
+/**
+ * The connection a ClientHandler talks through.
+ * Lets the same command handling run on a blocking socket thread
+ * or on the non-blocking NIO event loop.
+ */
+public interface ClientTransport {
+    /**
+     * Called after messages were added to the client's outbound queue.
+     * The transport writes them out on its own writer, never on the caller's thread.
+     */
+    void messagesQueued();
+
+    /**
+     * Closes the underlying connection.
+     * The handler's disconnect cleanup runs once the connection is closed.
+     */
+    void close();
+
+    /**
+     * @return a readable description of the remote end, used in server logs
+     */
+    String describe();
+}
@@ -0,0 +1,169 @@
+package us.otechu.server;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The part of the canvas a tile sync client is looking at, and what it has missed outside of it.
+ * Ops that land entirely outside the viewport aren't sent; the tiles they touched are deferred instead,
+ * and sent as TILE messages once the viewport moves over them.
+ * Strokes that went on outside the viewport are remembered too, since the client's idea of where they
+ * left off is out of date and they need to be restarted before their next points are sent.
+ * Tiles being sent after a move are tracked as well, so ops sent over them meanwhile aren't painted over.
+ * Only used with the room's op log locked, so it needs no locking of its own.
+ */
+public class ClientView {
+    /** How far past the reported viewport ops are still sent, so panning a little shows them already */
+    public static final int MARGIN = TileGrid.TILE_SIZE;
+
+    // the viewport grown by the margin, null until the client reports one, meaning everything is in view
+    private Rectangle viewport;
+    // tiles that changed outside the viewport since they were last sent
+    private final BitSet deferred = new BitSet();
+    // strokes the client missed some of, by id
+    private final Set<Integer> staleStrokes = new HashSet<>();
+    // revealed tiles being encoded outside the lock, and the ones of those ops were sent over in the meantime
+    private final BitSet sending = new BitSet();
+    private final BitSet overdrawn = new BitSet();
+
+    /**
+     * @param area an area of the canvas
+     * @return true if any of it is in view
+     */
+    public boolean sees(Rectangle area) {
+        return viewport == null || viewport.intersects(area);
+    }
+
+    /**
+     * Remembers that the tiles under an area changed without the client being told.
+     *
+     * @param tiles the room's tile layout
+     * @param area  the changed area
+     */
+    public void defer(TileGrid tiles, Rectangle area) {
+        for (int index : tiles.tilesIn(area)) {
+            deferred.set(index);
+        }
+    }
+
+    /**
+     * Remembers that a tile changed without the client being told.
+     *
+     * @param index the tile index
+     */
+    public void defer(int index) {
+        deferred.set(index);
+    }
+
+    /**
+     * Moves the viewport.
+     *
+     * @param area  the area the client now shows
+     * @param tiles the room's tile layout
+     * @return the deferred tiles that came into view, which are no longer deferred and have to be sent
+     */
+    public List<Integer> moveTo(Rectangle area, TileGrid tiles) {
+        viewport = new Rectangle(area);
+        viewport.grow(MARGIN, MARGIN);
+        List<Integer> revealed = new ArrayList<>();
+        for (int index : tiles.tilesIn(viewport)) {
+            if (deferred.get(index)) {
+                deferred.clear(index);
+                revealed.add(index);
+            }
+        }
+        return revealed;
+    }
+
+    /**
+     * Remembers that tiles are being copied and encoded for the client, so ops sent over them before
+     * they are queued can be told apart with {@link #finishSending}.
+     *
+     * @param indexes the tile indexes
+     */
+    public void startSending(List<Integer> indexes) {
+        for (int index : indexes) {
+            sending.set(index);
+        }
+    }
+
+    /**
+     * Notes that the client was sent an op over an area, in case it lands on tiles being sent.
+     *
+     * @param tiles the room's tile layout
+     * @param area  the area it draws over, or null for all of it
+     */
+    public void drawn(TileGrid tiles, Rectangle area) {
+        if (sending.isEmpty()) {
+            return;
+        }
+        if (area == null) {
+            overdrawn.or(sending);
+            return;
+        }
+        for (int index : tiles.tilesIn(area)) {
+            if (sending.get(index)) {
+                overdrawn.set(index);
+            }
+        }
+    }
+
+    /**
+     * Notes that the client was sent something that draws over a tile.
+     *
+     * @param index the tile index
+     */
+    public void drawn(int index) {
+        if (sending.get(index)) {
+            overdrawn.set(index);
+        }
+    }
+
+    /**
+     * Stops tracking the tiles being sent.
+     *
+     * @return the ones the client was sent ops over since {@link #startSending}, whose copies are out of date
+     */
+    public List<Integer> finishSending() {
+        List<Integer> stale = new ArrayList<>();
+        for (int index = overdrawn.nextSetBit(0); index >= 0; index = overdrawn.nextSetBit(index + 1)) {
+            stale.add(index);
+        }
+        sending.clear();
+        overdrawn.clear();
+        return stale;
+    }
+
+    /**
+     * Marks a stroke as missed in part, so it's restarted before the client gets any more of it.
+     *
+     * @param id the stroke id
+     */
+    public void missStroke(int id) {
+        staleStrokes.add(id);
+    }
+
+    /**
+     * Forgets a stroke the client missed part of, e.g. because it's being restarted or it ended.
+     *
+     * @param id the stroke id
+     * @return true if the client had missed part of it
+     */
+    public boolean forgetStroke(int id) {
+        return staleStrokes.remove(id);
+    }
+
+    /**
+     * Forgets everything the client missed, when its whole canvas is replaced.
+     */
+    public void reset() {
+        deferred.clear();
+        staleStrokes.clear();
+        // tiles being sent are painted over by whatever replaced the canvas
+        overdrawn.or(sending);
+    }
+}
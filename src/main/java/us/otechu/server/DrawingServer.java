@@ -3,16 +3,26 @@ package us.otechu.server;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics2D;
-import java.awt.RenderingHints;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.imageio.ImageIO;
 
@@ -20,365 +30,634 @@ import com.google.gson.Gson;
 
 import jdk.jshell.execution.Util;
 import us.otechu.client.DrawData;
-import us.otechu.common.Utils;
+import us.otechu.common.WireMessage;
 
 /**
  * The main server for the drawing application.
- * Handles client connections, drawing history, and turn-based drawing control.
+ * Handles client connections and the rooms they draw in, each with its own canvas and turn order.
+ * Started as a relay it takes a primary server's rooms to more spectators: each room is mirrored
+ * from the primary and watched locally, and players are passed through to the primary.
+ * Servers can also share their rooms as equals through a {@link MessageBus}, so the players of one room
+ * can be spread over servers behind a load balancer.
  */
 public class DrawingServer {
-    private final int PORT = 5000;
-    /** Max number of players */
-    public final static int MAX_CLIENTS = 4;
-
-    private static final int CANVAS_WIDTH = 1920;
-    private static final int CANVAS_HEIGHT = 1080;
-    private BufferedImage serverCanvas;
-    private Graphics2D serverG2;
-
-    // thread safe collections
-    private final List<String> drawHistory = Collections.synchronizedList(new ArrayList<>());
+    /** Port listened on unless set with --port */
+    public final static int DEFAULT_PORT = 5000;
+    private int port = DEFAULT_PORT;
+    /** Most connections served at once, across all rooms, players and spectators */
+    public final static int MAX_CONNECTIONS = 4096;
+    /** Most rooms kept, hibernating or not; empty rooms are dropped to make space for new ones */
+    public final static int MAX_ROOMS = 256;
+    /** Most rooms with their canvas on the heap; empty rooms are hibernated early to make space for new ones */
+    public final static int MAX_AWAKE_ROOMS = 32;
+    /** How long a room stays empty before its canvas is hibernated, unless set with --hibernate-after */
+    public final static long DEFAULT_HIBERNATE_AFTER_SECONDS = 300;
+    private static final long HIBERNATE_CHECK_SECONDS = 5;
+    private volatile long hibernateAfterMillis = DEFAULT_HIBERNATE_AFTER_SECONDS * 1000;
+    /** Canvas size used unless set with --canvas */
+    public final static int DEFAULT_CANVAS_WIDTH = 1920, DEFAULT_CANVAS_HEIGHT = 1080;
+    /** Largest canvas side; only the tiles drawn on take memory, so this is bounded by the tile count */
+    public final static int MAX_CANVAS_SIZE = 65536;
+    /** Largest image a client can load onto the canvas, unless set with --max-upload */
+    public final static int DEFAULT_MAX_UPLOAD_MB = 16;
+    private volatile int maxUploadBytes = DEFAULT_MAX_UPLOAD_MB * 1024 * 1024;
+
+    // every room's canvas has this size
+    private final int canvasWidth, canvasHeight;
+
+    // the rooms by name, created when someone first joins them
+    private final Map<String, Room> rooms = new HashMap<>();
+    // a blank canvas never changes, so it's encoded once for every room
+    private final String blankCanvasBase64;
+    // what clients that can't clear their own canvas get instead of CLEAR, shared so it's encoded once
+    private final WireMessage blankCanvasMessage;
+
+    // each room renders on one of these, assigned in turn as rooms are created
+    private final ExecutorService[] roomWorkers;
+    private int nextWorker = 0;
+    // encodes the rooms' snapshots, apart from the room workers that make the copies they encode
+    private final ScheduledExecutorService snapshotEncoders;
+    // encodes the tiles sent to tile sync clients, many at once
+    private final ForkJoinPool tileEncoders;
+
+    // where rooms keep their canvas on disk, null unless started with --data-dir
+    private Path dataDir;
+    // writes the rooms' journals
+    private ExecutorService journalWriters;
+    /** How often a checkpoint is written when the journal has new records */
+    private static final long CHECKPOINT_INTERVAL_SECONDS = 30;
+
+    // the primary this server relays, null unless started with --relay
+    private String relayHost;
+    private int relayPort;
+    // reconnects the rooms' mirrors to the primary
+    private ScheduledExecutorService relayReconnects;
+
+    // carries the rooms' events, to the other servers too when started with --bus
+    private MessageBus bus = new LocalBus();
+
+    // every connection, joined to a room or not
     private final List<ClientHandler> clients = new CopyOnWriteArrayList<>();
-    private final Set<String> activeUsernames = Collections.synchronizedSet(new HashSet<>());
 
-    // the index of the client whose turn it is
-    // -1 means no one is playing
-    private int turnIndex = -1;
+    /** How often the outbound queue metrics are logged */
+    private static final long METRICS_INTERVAL_SECONDS = 60;
+    private final AtomicLong slowDisconnects = new AtomicLong();
 
     public DrawingServer() {
-        // create a single big image in memory
-        serverCanvas = new BufferedImage(CANVAS_WIDTH, CANVAS_HEIGHT, BufferedImage.TYPE_INT_RGB);
-        serverG2 = serverCanvas.createGraphics();
-        serverG2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-
-        // fill it white
-        serverG2.setColor(Color.WHITE);
-        serverG2.fillRect(0, 0, CANVAS_WIDTH, CANVAS_HEIGHT);
+        this(DEFAULT_CANVAS_WIDTH, DEFAULT_CANVAS_HEIGHT);
     }
 
     /**
-     * Clears the server canvas by filling it with white.
+     * @param canvasWidth  width of every room's canvas
+     * @param canvasHeight height of every room's canvas
      */
-    public void clearServerCanvas() {
-        // fill the entire region white
-        serverG2.setColor(Color.WHITE);
-        serverG2.fillRect(0, 0, CANVAS_WIDTH, CANVAS_HEIGHT);
+    public DrawingServer(int canvasWidth, int canvasHeight) {
+        this.canvasWidth = canvasWidth;
+        this.canvasHeight = canvasHeight;
+        int cores = Runtime.getRuntime().availableProcessors();
+        roomWorkers = new ExecutorService[cores];
+        for (int i = 0; i < cores; i++) {
+            roomWorkers[i] = Executors.newSingleThreadExecutor(daemon("Room Worker Thread " + i));
+        }
+        snapshotEncoders = Executors.newScheduledThreadPool(Math.max(1, cores / 2),
+                daemon("Snapshot Encoder Thread"));
+        tileEncoders = new ForkJoinPool(cores, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("Tile Encoder Thread " + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+
+        Rectangle snapshotArea = Room.getSnapshotArea(canvasWidth, canvasHeight);
+        BufferedImage blank = new BufferedImage(snapshotArea.width, snapshotArea.height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2 = blank.createGraphics();
+        g2.setColor(Color.WHITE);
+        g2.fillRect(0, 0, snapshotArea.width, snapshotArea.height);
+        g2.dispose();
+        blankCanvasBase64 = encodeCanvasToBase64(blank);
+        blankCanvasMessage = WireMessage.text("LOADIMG " + blankCanvasBase64);
+
+        bus.setListener(this::deliver);
+
+        startMetricsLogger();
+        startHibernation();
+        startSpectatorFeeds();
+    }
+
+    public int getCanvasWidth() {
+        return canvasWidth;
+    }
+
+    public int getCanvasHeight() {
+        return canvasHeight;
     }
 
     /**
-     * Starts server, listens for incoming connections.
+     * @return the LOADIMG message of a blank canvas, for clients that didn't agree to CLEAR
      */
-    public void startServer() {
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("Drawing server started at port: " + PORT);
+    public WireMessage getBlankCanvasMessage() {
+        return blankCanvasMessage;
+    }
 
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                log("New connection from " + clientSocket.getRemoteSocketAddress());
+    /**
+     * Makes threads for the server's pools, as daemons so they don't keep the server running.
+     *
+     * @param name the thread name
+     */
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
 
-                // Reject connection when server is full
-                if (clients.size() >= MAX_CLIENTS) {
-                    PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-                    out.println("FULL");
-                    clientSocket.close();
-                    continue;
+    /**
+     * Periodically logs the depth and drop counts of the clients' outbound queues, and how well compressed connections compress.
+     */
+    private void startMetricsLogger() {
+        ScheduledExecutorService metrics = Executors.newSingleThreadScheduledExecutor(daemon("Metrics Thread"));
+        metrics.scheduleAtFixedRate(() -> {
+            if (!clients.isEmpty()) {
+                log(getQueueMetrics());
+                String compression = getCompressionMetrics();
+                if (compression != null) {
+                    log(compression);
                 }
+            }
+        }, METRICS_INTERVAL_SECONDS, METRICS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
 
-                // Create a new client handler for connection and add to client list
-                ClientHandler handler = new ClientHandler(clientSocket, this);
-                clients.add(handler);
+    /**
+     * Periodically sends every room's spectators what was queued for them, on one low priority thread,
+     * so the spectators' fan out only gets the cores the players leave free.
+     */
+    private void startSpectatorFeeds() {
+        ScheduledExecutorService feeds = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Spectator Thread");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        feeds.scheduleWithFixedDelay(() -> {
+            for (Room room : getRooms()) {
+                try {
+                    room.flushSpectators();
+                } catch (RuntimeException e) {
+                    // one room shouldn't stop the others' spectators
+                    e.printStackTrace();
+                }
+            }
+        }, SpectatorFeed.FLUSH_INTERVAL_MS, SpectatorFeed.FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
 
-                // Start thread for new client
-                new Thread(handler, "ClientHandler Thread").start();
+    /**
+     * Periodically hibernates the rooms that have been empty for longer than the hibernation threshold.
+     */
+    private void startHibernation() {
+        ScheduledExecutorService hibernation = Executors.newSingleThreadScheduledExecutor(daemon("Hibernate Thread"));
+        hibernation.scheduleWithFixedDelay(() -> {
+            for (Room room : getRooms()) {
+                if (!room.isHibernated() && room.getIdleMillis() > hibernateAfterMillis) {
+                    room.hibernate();
+                }
             }
+        }, HIBERNATE_CHECK_SECONDS, HIBERNATE_CHECK_SECONDS, TimeUnit.SECONDS);
+    }
 
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    /**
+     * Sets how long a room stays empty before its canvas is hibernated.
+     *
+     * @param seconds the idle time in seconds
+     */
+    public void setHibernateAfter(long seconds) {
+        hibernateAfterMillis = seconds * 1000;
+    }
+
+    /**
+     * Sets the largest image file a client can load onto the canvas.
+     *
+     * @param megabytes the limit in megabytes
+     */
+    public void setMaxUpload(int megabytes) {
+        maxUploadBytes = megabytes * 1024 * 1024;
+    }
+
+    /**
+     * @return the largest image file a client can load onto the canvas, in bytes
+     */
+    public int getMaxUploadBytes() {
+        return maxUploadBytes;
+    }
+
+    /**
+     * Summarizes the outbound queues of all connected clients.
+     *
+     * @return a line with the depth, max depth, drops and conflations per player, and totals for spectators
+     */
+    public String getQueueMetrics() {
+        StringBuilder sb = new StringBuilder("Outbound queues (slow disconnects: " + slowDisconnects.get() + ")");
+        int spectators = 0, spectatorMaxDepth = 0;
+        long spectatorDropped = 0;
+        for (ClientHandler c : clients) {
+            OutboundQueue q = c.getOutboundQueue();
+            if (c.isSpectator()) {
+                // there can be hundreds, one summary is enough
+                spectators++;
+                spectatorMaxDepth = Math.max(spectatorMaxDepth, q.getMaxDepth());
+                spectatorDropped += q.getDropped();
+                continue;
+            }
+            sb.append(" | ").append(c.username != null ? c.username : "joining...")
+                    .append(" depth=").append(q.getDepth())
+                    .append(" max=").append(q.getMaxDepth())
+                    .append(" dropped=").append(q.getDropped())
+                    .append(" conflated=").append(q.getConflated());
         }
+        if (spectators > 0) {
+            sb.append(" | ").append(spectators).append(" spectators max=").append(spectatorMaxDepth)
+                    .append(" dropped=").append(spectatorDropped);
+        }
+        return sb.toString();
+    }
 
+    /**
+     * Summarizes the compressed connections.
+     *
+     * @return a line with each compressed client's ratio each way and CPU time, or null if none are compressed
+     */
+    public String getCompressionMetrics() {
+        StringBuilder sb = new StringBuilder("Compression");
+        boolean any = false;
+        for (ClientHandler c : clients) {
+            String stats = c.getCompressionStats();
+            if (stats != null) {
+                any = true;
+                sb.append(" | ").append(c.username != null ? c.username : "joining...").append(' ').append(stats);
+            }
+        }
+        return any ? sb.toString() : null;
     }
 
     /**
-     * Checks if the username is already taken.
-     * 
-     * @param username
-     * @return true if username is taken, false otherwise
+     * Counts a client disconnected for falling too far behind.
      */
-    public synchronized boolean isUsernameTaken(String username) {
-        return activeUsernames.contains(username.toLowerCase());
+    public void recordSlowDisconnect() {
+        slowDisconnects.incrementAndGet();
     }
 
     /**
-     * Adds a username to the active usernames list.
-     * 
-     * @param username
+     * @return the bus the rooms' events go through
      */
-    public synchronized void addUsername(String username) {
-        activeUsernames.add(username.toLowerCase());
+    public MessageBus getBus() {
+        return bus;
     }
 
     /**
-     * Applies a drawing action to the server canvas.
-     * 
-     * @param drawDataJson the JSON string containing drawing data
+     * Shares the rooms with the other servers connected to a bus hub, catching up on what happened
+     * in them so far. Must be called before the server starts accepting clients.
+     * If the hub goes away the server stops, since its rooms can no longer keep in step.
+     *
+     * @param host the hub's host
+     * @param port the hub's port
      */
-    public void applyDrawAction(String drawDataJson) {
-        // parse the JSON into (x1, y1, x2, y2, color, thickness)
-        DrawData data = parseDrawJson(drawDataJson);
+    public void joinBus(String host, int port) throws IOException, InterruptedException {
+        TcpBus tcpBus = new TcpBus(host, port);
+        tcpBus.setListener(this::deliver);
+        tcpBus.setKeyframeSource(this::takeKeyframe);
+        bus = tcpBus;
+        tcpBus.connect(() -> {
+            log("Lost the message bus hub, shutting down");
+            System.exit(1);
+        });
+        log("Joined the message bus at " + host + ":" + port + " as " + tcpBus.getNodeId());
+    }
 
-        // then draw onto serverCanvas
-        Utils.drawFromData(serverG2, data);
+    /**
+     * Takes a keyframe of a room for the bus hub, encoded on the snapshot encoders.
+     *
+     * @param name the room
+     * @return the keyframe, or null if this server doesn't have the whole room
+     */
+    private CompletableFuture<RoomEvent> takeKeyframe(String name) {
+        Room room;
+        synchronized (rooms) {
+            room = rooms.get(name);
+        }
+        return room != null ? room.takeKeyframe(bus.getNodeId(), snapshotEncoders) : null;
     }
 
     /**
-     * Applies a load image action to the server canvas.
-     * 
-     * @param base64 the base64 encoded image string
+     * Applies an event from the bus to its room, opening the room if this server doesn't have it yet.
      */
-    public void applyLoadImageAction(String base64) {
-        try {
-            byte[] bytes = Base64.getDecoder().decode(base64);
-            BufferedImage loaded = ImageIO.read(new ByteArrayInputStream(bytes));
-            if (loaded != null) {
-                serverG2.drawImage(loaded, 0, 0, null);
+    private void deliver(RoomEvent event) {
+        Room room;
+        synchronized (rooms) {
+            room = getOrCreateRoom(event.room);
+            if (room != null && event.type == RoomEvent.Type.JOIN) {
+                // under the rooms lock, so an empty room can't be dropped before it's joined
+                room.apply(event);
+                return;
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
+        if (room == null) {
+            log("No space for room " + event.room + ", dropped its " + event.type);
+            return;
+        }
+        room.apply(event);
     }
 
     /**
-     * Returns the server canvas image.
-     * 
-     * @return the server canvas image
+     * Sets the port to listen on. Must be called before the server starts.
+     *
+     * @param port the port
      */
-    public BufferedImage getServerCanvas() {
-        return serverCanvas;
+    public void setPort(int port) {
+        this.port = port;
     }
 
     /**
-     * Encodes the server canvas image to a base64 string.
-     * 
-     * @param img the image to encode
-     * @return the base64 encoded string
+     * Makes this server a relay of a primary server. Rooms are mirrored from the same room on the primary
+     * as they're opened, and players who join are passed through to the primary.
+     * Must be called before the server starts accepting clients.
+     *
+     * @param host the primary's host
+     * @param port the primary's port
      */
-    public String encodeCanvasToBase64(BufferedImage img) {
-        try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            ImageIO.write(img, "png", baos);
-            return Base64.getEncoder().encodeToString(baos.toByteArray());
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return "";
+    public void enableRelay(String host, int port) {
+        relayHost = host;
+        relayPort = port;
+        relayReconnects = Executors.newSingleThreadScheduledExecutor(daemon("Relay Reconnect Thread"));
     }
 
     /**
-     * Parses the JSON string into a DrawData object.
-     * 
-     * @param json the JSON string to parse
-     * @return the parsed DrawData object
+     * @return true if this server relays a primary
      */
-    private DrawData parseDrawJson(String json) {
-        return new Gson().fromJson(json, DrawData.class);
+    public boolean isRelay() {
+        return relayHost != null;
     }
 
     /**
-     * Removes a username from the active usernames list.
-     * 
-     * @param username
+     * Connects to the primary, for a player joining through this relay.
+     *
+     * @return the connection, not yet reading
      */
-    public synchronized void removeUsername(String username) {
-        activeUsernames.remove(username.toLowerCase());
+    public Upstream connectUpstream() throws IOException {
+        return new Upstream(relayHost, relayPort);
     }
 
     /**
-     * Broadcasts the current players list to all clients as well as the server's
-     * turn index.
+     * Makes the rooms' canvases durable. The default room is kept in the data directory itself,
+     * other rooms in rooms/NAME under it; each is restored when it is first joined.
+     * Must be called before the server starts accepting clients.
+     *
+     * @param dir the data directory
      */
-    public synchronized void broadcastUserList() {
-        // create the list of usernames
-        List<String> names = new ArrayList<>();
-        for (ClientHandler c : clients) {
-            if (c.username != null) {
-                names.add(c.username);
-            } else {
-                names.add("joining..."); // unknown clients
-            }
+    public void enableJournal(Path dir) throws IOException {
+        dataDir = dir;
+        journalWriters = Executors.newFixedThreadPool(Math.max(1, roomWorkers.length / 2), daemon("Journal Thread"));
+        // restore the default room now, so a damaged data directory shows up on startup
+        synchronized (rooms) {
+            getOrCreateRoom(Room.DEFAULT_ROOM);
         }
-        String nameString = String.join(",", names);
-
-        // current turn index
-        int current = turnIndex; // could be -1
-
-        // next index
-        int next = -1;
-        if (current != -1 && !clients.isEmpty()) {
-            int size = clients.size();
-            // search for next available player
-            for (int i = 1; i <= size; i++) {
-                int candidate = (current + i) % size;
-                ClientHandler ch = clients.get(candidate);
-                if (ch.username != null && ch.getIsReady()) {
-                    next = candidate;
-                    break;
-                }
+
+        ScheduledExecutorService checkpoints = Executors.newSingleThreadScheduledExecutor(daemon("Checkpoint Thread"));
+        checkpoints.scheduleAtFixedRate(() -> {
+            for (Room room : getRooms()) {
+                room.checkpointIfChanged();
             }
-        }
+        }, CHECKPOINT_INTERVAL_SECONDS, CHECKPOINT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
 
-        broadcastMessage("USERLIST " + nameString + "|" + current + "|" + next);
+    /**
+     * Adds a client to a room, creating the room if it doesn't exist yet.
+     *
+     * @param handler   the client joining
+     * @param roomName  the room to join
+     * @param username  the name it asked for
+     * @param spectator true to join as a spectator
+     * @return null if it joined or its JOIN was published, otherwise the reply to send: FULL or NAMEINUSE
+     */
+    public String joinRoom(ClientHandler handler, String roomName, String username, boolean spectator) {
+        Room room;
+        synchronized (rooms) {
+            room = getOrCreateRoom(roomName.toLowerCase());
+            if (room == null) {
+                return "FULL";
+            }
+            // under the rooms lock, so the room can't be dropped while it's joined
+            String refused = room.join(handler, username, spectator);
+            if (refused != null || spectator) {
+                return refused;
+            }
+        }
+        // the room lets the player in when it applies this, in order with the other servers' joins
+        bus.publish(new RoomEvent(room.getName(), RoomEvent.Type.JOIN, bus.getNodeId(), handler.getSession(),
+                username, null));
+        return null;
     }
 
     /**
-     * Notifies the client at turnIndex that it is their turn.
+     * Finds a room, or creates it, dropping the longest empty room if there are too many.
+     * Called with the rooms lock held.
+     *
+     * @return the room, or null if there are too many rooms and none of them are empty
      */
-    public synchronized void setClientTurn() {
-        if (turnIndex < 0 || turnIndex >= clients.size()) {
-            turnIndex = -1;
-            return;
+    private Room getOrCreateRoom(String name) {
+        Room room = rooms.get(name);
+        if (room != null) {
+            return room;
         }
-        ClientHandler current = clients.get(turnIndex);
-        if (current != null) {
-            current.sendMessage("TURN");
-            if (current.username != null) {
-                broadcastMessage("LOG It's " + current.username + " turn!");
+        if (rooms.size() >= MAX_ROOMS && !dropIdleRoom()) {
+            return null;
+        }
+        ExecutorService worker = roomWorkers[nextWorker++ % roomWorkers.length];
+        room = new Room(this, name, worker, snapshotEncoders, tileEncoders, blankCanvasBase64);
+        if (dataDir != null) {
+            Path dir = name.equals(Room.DEFAULT_ROOM) ? dataDir : dataDir.resolve("rooms").resolve(name);
+            try {
+                room.enableJournal(dir, journalWriters);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
             }
+        }
+        if (isRelay()) {
+            room.mirrorFrom(new RoomMirror(room, relayHost, relayPort, canvasWidth, canvasHeight, relayReconnects));
+        }
+        rooms.put(name, room);
+        log("Opened room " + name + " (" + rooms.size() + " rooms)");
+        hibernateIfTooManyAwake(room);
+        return room;
+    }
 
-            log("Current turn: " + (current.username != null ? current.username : ("index " + turnIndex)));
+    /**
+     * Hibernates the room that has been empty the longest if too many canvases are in memory.
+     * Called with the rooms lock held.
+     *
+     * @param opened the room just opened, which is about to be joined
+     */
+    private void hibernateIfTooManyAwake(Room opened) {
+        int awake = 0;
+        Room idlest = null;
+        for (Room room : rooms.values()) {
+            if (room.isHibernated()) {
+                continue;
+            }
+            awake++;
+            if (room != opened && room.isEmpty()
+                    && (idlest == null || room.getIdleMillis() > idlest.getIdleMillis())) {
+                idlest = room;
+            }
+        }
+        if (awake > MAX_AWAKE_ROOMS && idlest != null) {
+            idlest.hibernate();
         }
     }
 
     /**
-     * Update to next client's turn.
+     * Drops the room that has been empty the longest, other than the default room.
+     *
+     * @return true if a room was dropped
      */
-    public synchronized void updateTurn() {
-        // no clients? no turns.
-        if (clients.isEmpty()) {
-            turnIndex = -1;
-            return;
+    private boolean dropIdleRoom() {
+        Room idlest = null;
+        for (Room room : rooms.values()) {
+            if (!room.getName().equals(Room.DEFAULT_ROOM) && room.isEmpty()
+                    && (idlest == null || room.getIdleMillis() > idlest.getIdleMillis())) {
+                idlest = room;
+            }
+        }
+        if (idlest == null) {
+            return false;
         }
+        rooms.remove(idlest.getName());
+        idlest.close();
+        log("Dropped empty room " + idlest.getName());
+        return true;
+    }
 
-        // ensure its within bounds
-        if (turnIndex < 0 || turnIndex >= clients.size()) {
-            turnIndex = 0;
+    /**
+     * @return the rooms open right now
+     */
+    public List<Room> getRooms() {
+        synchronized (rooms) {
+            return new ArrayList<>(rooms.values());
         }
+    }
 
-        // move to next client
-        turnIndex = (turnIndex + 1) % clients.size();
+    /**
+     * Starts server, listens for incoming connections.
+     */
+    public void startServer() {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            System.out.println("Drawing server started at port: " + port
+                    + (isRelay() ? ", relaying " + relayHost + ":" + relayPort : ""));
 
-        // find fully connected player
-        int size = clients.size();
-        for (int i = 0; i < size; i++) {
-            int candidate = (turnIndex + i) % size;
-            ClientHandler ch = clients.get(candidate);
+            while (true) {
+                Socket clientSocket = serverSocket.accept();
+                log("New connection from " + clientSocket.getRemoteSocketAddress());
 
-            if (ch.username != null && ch.getIsReady()) {
-                turnIndex = candidate;
-                setClientTurn(); // notify its their turn
-                broadcastUserList(); // update player list
-                return;
+                // Reject connection when server is full
+                if (isFull()) {
+                    PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
+                    out.println("FULL");
+                    clientSocket.close();
+                    continue;
+                }
+
+                // Create a new client handler for connection and add to client list
+                ClientHandler handler = new ClientHandler(clientSocket, this);
+                addClient(handler);
+
+                // Start thread for new client
+                new Thread(handler, "ClientHandler Thread").start();
             }
+
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
 
-        // if we get here, no ready clients exist
-        turnIndex = -1;
-        broadcastUserList(); // no valid turn holder
     }
 
     /**
-     * Get the client whose turn it is
+     * Starts the server in non-blocking mode, where a few event loop threads
+     * serve every connection instead of one thread per client.
+     *
+     * @param threads number of event loop threads
      */
-    public ClientHandler getCurrentClientTurn() {
-        // return null if turnIndex is invalid
-        if (turnIndex < 0 || turnIndex >= clients.size()) {
-            return null;
+    public void startNioServer(int threads) {
+        try {
+            new NioServer(this, port, threads).start();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
         }
-        return clients.get(turnIndex);
     }
 
     /**
-     * Removes a client from the server, and updates turnIndex if necessary.
-     * 
-     * @param handler the client handler to remove
+     * Checks if the server has reached the max number of connections.
+     *
+     * @return true if no more clients can connect
      */
-    public void removeClient(ClientHandler handler) {
-        // find them first
-        int removedIndex = clients.indexOf(handler);
-        if (removedIndex == -1)
-            return; // not found
-
-        clients.remove(handler);
-        if (handler.username != null) {
-            removeUsername(handler.username);
-        }
-
-        if (clients.isEmpty()) {
-            turnIndex = -1;
-            log("No clients connected");
-        } else {
-            // if the removed client was the turn holder
-            if (removedIndex == turnIndex) {
-                // we'll pick the next available or -1 if none
-                turnIndex = -1;
-                updateTurn();
-            } else if (removedIndex < turnIndex) {
-                // if a client before the current turn was removed, shift turnIndex back by 1
-                turnIndex--;
-            }
-        }
+    public boolean isFull() {
+        return clients.size() >= MAX_CONNECTIONS;
+    }
 
-        broadcastUserList(); // broadcast updated players list
+    /**
+     * Adds a newly accepted client to the client list.
+     *
+     * @param handler the client handler to add
+     */
+    public void addClient(ClientHandler handler) {
+        clients.add(handler);
     }
 
     /**
-     * Send a drawing event to all clients except the sender.
+     * Encodes the server canvas image to a base64 string.
      * 
-     * @param sender   the client who sent the drawing event
-     * @param drawData the drawing data to send
-     */
-    public void sendDrawData(ClientHandler sender, String drawData) {
-        // send to all clients except sender
-        for (ClientHandler client : clients) {
-            if (client != sender) {
-                client.sendMessage(drawData);
-            }
+     * @param img the image to encode
+     * @return the base64 encoded string
+     */
+    public String encodeCanvasToBase64(BufferedImage img) {
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ImageIO.write(img, "png", baos);
+            return Base64.getEncoder().encodeToString(baos.toByteArray());
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+        return "";
     }
 
     /**
-     * Returns the current draw history.
+     * Parses the JSON string into a DrawData object.
+     * 
+     * @param json the JSON string to parse
+     * @return the parsed DrawData object
      */
-    public List<String> getHistory() {
-        return drawHistory;
+    public DrawData parseDrawJson(String json) {
+        return new Gson().fromJson(json, DrawData.class);
     }
 
     /**
-     * Appends a new draw action to the history.
+     * Removes a disconnected client from the server's connections.
      * 
-     * @param drawData the data of the drawing to add.
+     * @param handler the client handler to remove
      */
-    public void updateHistory(String drawData) {
-        drawHistory.add(drawData);
+    public void removeClient(ClientHandler handler) {
+        clients.remove(handler);
     }
 
-    public void clearHistory() { drawHistory.clear(); }
-
     /**
-     * Gets the number of connected clients.
+     * @return every connected client, in any room or none
      */
-    public int getNumClients() {
-        return clients.size();
+    List<ClientHandler> getClients() {
+        return Collections.unmodifiableList(clients);
     }
 
     /**
-     * Broadcasts a message to all clients.
-     * 
-     * @param msg the message to send
+     * Gets the number of connected clients.
      */
-    public void broadcastMessage(String msg) {
-        for (ClientHandler c : clients) {
-            c.sendMessage(msg);
-        }
+    public int getNumClients() {
+        return clients.size();
     }
 
     /**
@@ -391,7 +670,109 @@ public class DrawingServer {
         System.out.println("[SERVER] " + message);
     }
 
+    /**
+     * Starts the server. Pass --nio to use the non-blocking event loop mode,
+     * optionally with --threads=N to choose the number of event loops.
+     * Pass --data-dir=PATH to keep the canvas on disk and restore it on restart,
+     * and --hibernate-after=SECONDS to choose how long a room stays empty before its canvas is compressed.
+     * Pass --canvas=WIDTHxHEIGHT for a bigger canvas; it only takes memory where it's drawn on,
+     * and --max-upload=MB to change the largest image a client can load.
+     * Pass --port=N to listen on another port, and --relay=HOST:PORT to relay the primary server at that address,
+     * started with the same canvas size.
+     * Pass --bus=HOST:PORT to share the rooms with the other servers on the bus hub at that address,
+     * or --bus-hub=PORT to run the hub in this server as well and join it.
+     */
     public static void main(String[] args) {
-        new DrawingServer().startServer();
+        boolean nio = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        Path dataDir = null;
+        long hibernateAfter = DEFAULT_HIBERNATE_AFTER_SECONDS;
+        int canvasWidth = DEFAULT_CANVAS_WIDTH, canvasHeight = DEFAULT_CANVAS_HEIGHT;
+        int port = DEFAULT_PORT;
+        int maxUpload = DEFAULT_MAX_UPLOAD_MB;
+        String relay = null;
+        String busAddress = null;
+        int busHubPort = -1;
+        for (String arg : args) {
+            if (arg.equals("--nio")) {
+                nio = true;
+            } else if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(arg.substring("--threads=".length()));
+            } else if (arg.startsWith("--data-dir=")) {
+                dataDir = Paths.get(arg.substring("--data-dir=".length()));
+            } else if (arg.startsWith("--hibernate-after=")) {
+                hibernateAfter = Long.parseLong(arg.substring("--hibernate-after=".length()));
+            } else if (arg.startsWith("--canvas=")) {
+                String[] size = arg.substring("--canvas=".length()).split("x");
+                canvasWidth = Integer.parseInt(size[0]);
+                canvasHeight = Integer.parseInt(size[1]);
+                if (canvasWidth < 1 || canvasHeight < 1
+                        || canvasWidth > MAX_CANVAS_SIZE || canvasHeight > MAX_CANVAS_SIZE) {
+                    throw new IllegalArgumentException("Canvas must be between 1x1 and "
+                            + MAX_CANVAS_SIZE + "x" + MAX_CANVAS_SIZE);
+                }
+            } else if (arg.startsWith("--max-upload=")) {
+                maxUpload = Integer.parseInt(arg.substring("--max-upload=".length()));
+                if (maxUpload < 1 || maxUpload > 256) {
+                    throw new IllegalArgumentException("Upload limit must be between 1 and 256 MB");
+                }
+            } else if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--relay=")) {
+                relay = arg.substring("--relay=".length());
+            } else if (arg.startsWith("--bus=")) {
+                busAddress = arg.substring("--bus=".length());
+            } else if (arg.startsWith("--bus-hub=")) {
+                busHubPort = Integer.parseInt(arg.substring("--bus-hub=".length()));
+                busAddress = "localhost:" + busHubPort;
+            }
+        }
+        if (relay != null && busAddress != null) {
+            // a relay's players are on the primary already
+            throw new IllegalArgumentException("--bus can't be used with --relay");
+        }
+        if (busAddress != null && dataDir != null) {
+            // the hub replays the rooms to servers as they join, on top of a restored canvas they'd be drawn twice
+            throw new IllegalArgumentException("--data-dir can't be used with --bus");
+        }
+        if (relay != null && dataDir != null) {
+            // the primary keeps the canvas, a relay's copy is thrown away on every resync
+            throw new IllegalArgumentException("--data-dir can't be used with --relay");
+        }
+
+        DrawingServer server = new DrawingServer(canvasWidth, canvasHeight);
+        server.setHibernateAfter(hibernateAfter);
+        server.setPort(port);
+        server.setMaxUpload(maxUpload);
+        if (relay != null) {
+            int colon = relay.lastIndexOf(':');
+            server.enableRelay(colon < 0 ? relay : relay.substring(0, colon),
+                    colon < 0 ? DEFAULT_PORT : Integer.parseInt(relay.substring(colon + 1)));
+        }
+        try {
+            if (busHubPort >= 0) {
+                new BusHub(busHubPort).start();
+            }
+            if (busAddress != null) {
+                int colon = busAddress.lastIndexOf(':');
+                server.joinBus(busAddress.substring(0, colon), Integer.parseInt(busAddress.substring(colon + 1)));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            return;
+        }
+        if (dataDir != null) {
+            try {
+                server.enableJournal(dataDir);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        if (nio) {
+            server.startNioServer(threads);
+        } else {
+            server.startServer();
+        }
     }
 }
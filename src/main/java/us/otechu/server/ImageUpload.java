@@ -0,0 +1,56 @@
+package us.otechu.server;
+
+import java.io.IOException;
+import java.util.Base64;
+
+/**
+ * An image a client is uploading in IMGDATA chunks. Each chunk is decoded as it arrives,
+ * so only the image file itself is held, never its base64 text, and nothing past the size announced in IMGSTART.
+ */
+class ImageUpload {
+    private final byte[] bytes;
+    private int received = 0;
+
+    /**
+     * @param size the file size announced by the client, already checked against the server's limit
+     */
+    ImageUpload(int size) {
+        this.bytes = new byte[size];
+    }
+
+    /**
+     * Adds a chunk.
+     *
+     * @param base64 the chunk's bytes, base64 encoded
+     * @return the bytes received so far
+     * @throws IOException if the chunk isn't base64 or goes past the announced size
+     */
+    int append(String base64) throws IOException {
+        byte[] chunk;
+        try {
+            chunk = Base64.getDecoder().decode(base64);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Bad image chunk");
+        }
+        if (received + chunk.length > bytes.length) {
+            throw new IOException("Image is bigger than announced");
+        }
+        System.arraycopy(chunk, 0, bytes, received, chunk.length);
+        received += chunk.length;
+        return received;
+    }
+
+    /**
+     * @return true once every announced byte arrived
+     */
+    boolean isComplete() {
+        return received == bytes.length;
+    }
+
+    /**
+     * @return the image file, only complete once {@link #isComplete()}
+     */
+    byte[] getBytes() {
+        return bytes;
+    }
+}
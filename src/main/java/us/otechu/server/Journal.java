@@ -0,0 +1,425 @@
+package us.otechu.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+import us.otechu.common.BinaryProtocol;
+import us.otechu.common.WireMessage;
+
+/**
+ * Durable record of the canvas, so it survives the server going down.
+ * Every op applied to the canvas is appended to a memory-mapped journal file on a background writer,
+ * which forces each batch it writes to disk at once (group commit), so the client threads only ever queue a record.
+ * The writer threads are shared by every room's journal, but a journal is only written by one of them at a time.
+ * Every so often the server hands over a checkpoint with the raw pixels of the tiles that aren't blank;
+ * once it is safely on disk, a new journal generation is started and the old one deleted.
+ * On startup the last checkpoint is loaded and the journal written after it is replayed.
+ *
+ * Journal record: int payload length, int CRC32 of the payload, payload (one type byte, then its data).
+ * A zero length or a bad checksum marks the end of what was written before a crash.
+ */
+public class Journal {
+    /** A drawing action or stroke message, stored as a binary protocol frame */
+    private static final byte RECORD_OP = 1;
+    /** The canvas was cleared */
+    private static final byte RECORD_CLEAR = 2;
+    /** An image was loaded onto the canvas, stored as the uploaded file */
+    private static final byte RECORD_IMAGE = 3;
+
+    private static final int CHECKPOINT_MAGIC = 0x44574643; // "DWFC"
+    private static final String CHECKPOINT_FILE = "checkpoint.dat";
+
+    /** How much of the journal file is mapped at a time */
+    private static final int MAP_CHUNK = 8 * 1024 * 1024;
+
+    /**
+     * Receives the contents of the journal during recovery.
+     */
+    public interface Replayer {
+        /** Restores one tile from the checkpoint */
+        void tile(int x, int y, int width, int height, int[] pixels);
+
+        /** Reapplies a drawing action or stroke message */
+        void op(WireMessage message);
+
+        /** Reapplies a clear */
+        void clear();
+
+        /** Reapplies a loaded image */
+        void image(byte[] bytes);
+    }
+
+    /**
+     * The raw pixels of the non-blank tiles at one point in the journal.
+     */
+    public static class Checkpoint {
+        final int width, height;
+        final List<int[]> bounds = new ArrayList<>(); // x, y, w, h of each tile
+        final List<int[]> pixels = new ArrayList<>();
+
+        /**
+         * @param width  canvas width
+         * @param height canvas height
+         */
+        public Checkpoint(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+
+        /**
+         * Adds a tile's pixels, one packed RGB int per pixel, row by row.
+         */
+        public void addTile(int x, int y, int w, int h, int[] tilePixels) {
+            bounds.add(new int[] { x, y, w, h });
+            pixels.add(tilePixels);
+        }
+    }
+
+    /** Entry type of a checkpoint, which isn't a journal record */
+    private static final byte ENTRY_CHECKPOINT = 0;
+    /** Entry type that closes the journal */
+    private static final byte ENTRY_CLOSE = -1;
+
+    /** Something for the journal writer to do, in order */
+    private static class Entry {
+        final byte type;
+        final Object data; // WireMessage or byte[] image
+        final Supplier<Checkpoint> checkpoint; // only for checkpoints
+
+        Entry(byte type, Object data, Supplier<Checkpoint> checkpoint) {
+            this.type = type;
+            this.data = data;
+            this.checkpoint = checkpoint;
+        }
+    }
+
+    private final Path dir;
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong recordsSinceCheckpoint = new AtomicLong();
+    private Executor writer;
+    // true while a batch is queued or being written
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    // owned by the journal writer after start()
+    private boolean closed = false;
+    private long generation;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private long mappedStart;
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * @param dir the directory holding the checkpoint and journal files
+     */
+    public Journal(Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Loads the last checkpoint and replays the journal after it.
+     *
+     * @param replayer receives the recovered tiles and ops
+     * @return the number of journal records replayed
+     */
+    public long recover(Replayer replayer) throws IOException {
+        Files.createDirectories(dir);
+        generation = readCheckpoint(replayer);
+        Path file = journalFile(generation);
+        if (!Files.exists(file)) {
+            return 0;
+        }
+
+        long replayed = 0;
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            while (buffer.remaining() >= 8) {
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                buffer.get(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    break; // torn write
+                }
+                replay(payload, replayer);
+                replayed++;
+            }
+        }
+        return replayed;
+    }
+
+    private void replay(byte[] payload, Replayer replayer) throws IOException {
+        switch (payload[0]) {
+            case RECORD_OP:
+                InputStream frame = new ByteArrayInputStream(payload, 1, payload.length - 1);
+                replayer.op(BinaryProtocol.readFrame(frame));
+                break;
+            case RECORD_CLEAR:
+                replayer.clear();
+                break;
+            case RECORD_IMAGE:
+                byte[] image = new byte[payload.length - 1];
+                System.arraycopy(payload, 1, image, 0, image.length);
+                replayer.image(image);
+                break;
+            default:
+                throw new IOException("Unknown journal record " + payload[0]);
+        }
+    }
+
+    /**
+     * Starts journaling, beginning with a checkpoint of the recovered canvas.
+     *
+     * @param recovered checkpoint of the canvas after recovery
+     * @param writer    the threads the journal is written on
+     */
+    public void start(Checkpoint recovered, Executor writer) throws IOException {
+        writeCheckpoint(recovered);
+        this.writer = writer;
+    }
+
+    /**
+     * Queues a drawing action or stroke message.
+     */
+    public void append(WireMessage message) {
+        submit(new Entry(RECORD_OP, message, null));
+        recordsSinceCheckpoint.incrementAndGet();
+    }
+
+    /**
+     * Queues a clear.
+     */
+    public void appendClear() {
+        submit(new Entry(RECORD_CLEAR, null, null));
+        recordsSinceCheckpoint.incrementAndGet();
+    }
+
+    /**
+     * Queues a loaded image.
+     *
+     * @param bytes the image file
+     */
+    public void appendImage(byte[] bytes) {
+        submit(new Entry(RECORD_IMAGE, bytes, null));
+        recordsSinceCheckpoint.incrementAndGet();
+    }
+
+    /**
+     * Queues a checkpoint. It must reflect exactly the records queued before it.
+     *
+     * @param checkpoint gives the checkpoint, called on the journal writer when its turn comes
+     */
+    public void checkpoint(Supplier<Checkpoint> checkpoint) {
+        submit(new Entry(ENTRY_CHECKPOINT, null, checkpoint));
+        recordsSinceCheckpoint.set(0);
+    }
+
+    /**
+     * Closes the journal file once everything queued before it is written. Nothing is written after it.
+     */
+    public void close() {
+        submit(new Entry(ENTRY_CLOSE, null, null));
+    }
+
+    /**
+     * @return the number of records queued since the last checkpoint
+     */
+    public long getRecordsSinceCheckpoint() {
+        return recordsSinceCheckpoint.get();
+    }
+
+    private void submit(Entry entry) {
+        queue.add(entry);
+        if (scheduled.compareAndSet(false, true)) {
+            writer.execute(this::drain);
+        }
+    }
+
+    /**
+     * Writes everything queued so far and forces it to disk once.
+     */
+    private void drain() {
+        List<Entry> batch = new ArrayList<>();
+        queue.drainTo(batch);
+        try {
+            if (!closed) {
+                writeBatch(batch);
+            }
+        } catch (IOException e) {
+            System.out.println("[SERVER] Journal write failed: " + e.getMessage());
+        }
+        scheduled.set(false);
+        // something queued after the drain but before the flag was cleared
+        if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+            writer.execute(this::drain);
+        }
+    }
+
+    private void writeBatch(List<Entry> batch) throws IOException {
+        int start = mapped.position();
+        for (Entry entry : batch) {
+            if (entry.type == ENTRY_CHECKPOINT) {
+                force(start);
+                writeCheckpoint(entry.checkpoint.get());
+            } else if (entry.type == ENTRY_CLOSE) {
+                force(start);
+                channel.close();
+                closed = true;
+                return;
+            } else {
+                write(entry);
+            }
+            start = Math.min(start, mapped.position());
+        }
+        // one flush to disk for the whole batch
+        force(start);
+    }
+
+    private void write(Entry entry) throws IOException {
+        byte[] data;
+        if (entry.type == RECORD_OP) {
+            data = ((WireMessage) entry.data).getBytes(true);
+        } else if (entry.type == RECORD_IMAGE) {
+            data = (byte[]) entry.data;
+        } else {
+            data = new byte[0];
+        }
+
+        byte[] payload = new byte[data.length + 1];
+        payload[0] = entry.type;
+        System.arraycopy(data, 0, payload, 1, data.length);
+        crc.reset();
+        crc.update(payload);
+
+        // leave room for the record and a zero length after it
+        if (mapped.remaining() < payload.length + 12) {
+            force(0);
+            map(mappedStart + mapped.position(), payload.length + 12);
+        }
+        mapped.putInt(payload.length);
+        mapped.putInt((int) crc.getValue());
+        mapped.put(payload);
+    }
+
+    private void force(int from) {
+        int length = mapped.position() - from;
+        if (length > 0) {
+            mapped.force(from, length);
+        }
+    }
+
+    private void map(long position, int atLeast) throws IOException {
+        mappedStart = position;
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.max(MAP_CHUNK, atLeast));
+    }
+
+    /**
+     * Writes a checkpoint as the next generation, then switches to a new journal and deletes the old ones.
+     */
+    private void writeCheckpoint(Checkpoint checkpoint) throws IOException {
+        long next = generation + 1;
+        Path temp = dir.resolve(CHECKPOINT_FILE + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeLong(next);
+            out.writeInt(checkpoint.width);
+            out.writeInt(checkpoint.height);
+            out.writeInt(checkpoint.bounds.size());
+            for (int i = 0; i < checkpoint.bounds.size(); i++) {
+                for (int v : checkpoint.bounds.get(i)) {
+                    out.writeInt(v);
+                }
+                int[] pixels = checkpoint.pixels.get(i);
+                ByteBuffer bytes = ByteBuffer.allocate(pixels.length * 4);
+                bytes.asIntBuffer().put(pixels);
+                out.write(bytes.array());
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temp, dir.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        // everything so far is in the checkpoint, start an empty journal
+        if (channel != null) {
+            channel.close();
+        }
+        generation = next;
+        channel = FileChannel.open(journalFile(generation), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map(0, 0);
+        deleteOldJournals();
+    }
+
+    /**
+     * Loads the checkpoint, if there is one.
+     *
+     * @return the generation of the checkpoint, 0 if there is none
+     */
+    private long readCheckpoint(Replayer replayer) throws IOException {
+        Path file = dir.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != CHECKPOINT_MAGIC) {
+                throw new IOException("Not a checkpoint file: " + file);
+            }
+            long gen = in.readLong();
+            in.readInt(); // width
+            in.readInt(); // height
+            int tiles = in.readInt();
+            for (int t = 0; t < tiles; t++) {
+                int x = in.readInt(), y = in.readInt(), w = in.readInt(), h = in.readInt();
+                byte[] bytes = new byte[w * h * 4];
+                in.readFully(bytes);
+                int[] pixels = new int[w * h];
+                ByteBuffer.wrap(bytes).asIntBuffer().get(pixels);
+                replayer.tile(x, y, w, h, pixels);
+            }
+            return gen;
+        }
+    }
+
+    private void deleteOldJournals() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "journal-*.dat")) {
+            for (Path file : files) {
+                if (!file.equals(journalFile(generation))) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private Path journalFile(long gen) {
+        return dir.resolve("journal-" + gen + ".dat");
+    }
+}
@@ -0,0 +1,41 @@
+package us.otechu.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * The bus for a server on its own. Events are sequenced and delivered right away on the publishing thread,
+ * one room at a time, so rooms never wait on each other.
+ */
+public class LocalBus implements MessageBus {
+    /** The node id of a server on its own */
+    public static final String NODE_ID = "local";
+
+    /** A room's sequence, locked while one of its events is delivered */
+    private static class Channel {
+        long seq = 0;
+    }
+
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+    private Consumer<RoomEvent> listener;
+
+    @Override
+    public String getNodeId() {
+        return NODE_ID;
+    }
+
+    @Override
+    public void setListener(Consumer<RoomEvent> listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void publish(RoomEvent event) {
+        Channel channel = channels.computeIfAbsent(event.room, room -> new Channel());
+        synchronized (channel) {
+            event.seq = ++channel.seq;
+            listener.accept(event);
+        }
+    }
+}
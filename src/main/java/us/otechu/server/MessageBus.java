@@ -0,0 +1,31 @@
+package us.otechu.server;
+
+import java.util.function.Consumer;
+
+/**
+ * Carries room events between the servers sharing the rooms, so players of one room can be connected
+ * to different servers. Every event published for a room is given the room's next sequence number and
+ * delivered to every server, the one that published it too, in sequence order. Servers only act on
+ * events as they're delivered, so each keeps the same copy of the room while holding only its own clients.
+ */
+public interface MessageBus {
+    /**
+     * @return this server's id on the bus, the node of the events it publishes
+     */
+    String getNodeId();
+
+    /**
+     * Sets what every room's events are delivered to. Events of one room are delivered one at a time,
+     * in order. Must be called before anything is published.
+     *
+     * @param listener receives the events
+     */
+    void setListener(Consumer<RoomEvent> listener);
+
+    /**
+     * Publishes an event to every server. Never call it while delivering an event.
+     *
+     * @param event the event, its sequence number is set by the bus
+     */
+    void publish(RoomEvent event);
+}
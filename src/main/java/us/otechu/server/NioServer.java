@@ -0,0 +1,640 @@
+package us.otechu.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import us.otechu.common.BinaryProtocol;
+import us.otechu.common.StreamCompression;
+import us.otechu.common.WireMessage;
+
+/**
+ * Non-blocking server mode.
+ * A small fixed set of event loops, each with its own Selector, handles accepting,
+ * line framing, reads and writes for every connection, so the number of
+ * threads no longer grows with the number of clients.
+ * The loops only do I/O. What the clients send is handled on a small shared pool,
+ * each connection's messages one at a time and in order, so a client whose message blocks
+ * (a canvas sync, a relay connecting upstream, an image being decoded) holds up only itself.
+ */
+public class NioServer {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    /** Most queued messages handed to the socket in one gathering write */
+    private static final int MAX_GATHER = 64;
+    /** Messages read from a connection and not yet handled before the loop stops reading from it */
+    private static final int MAX_PENDING_MESSAGES = 256;
+    /** Messages handled in one go before a connection gives its handler thread to the others */
+    private static final int MESSAGES_PER_PASS = 64;
+
+    private final DrawingServer server;
+    private final int port;
+    private final EventLoop[] loops;
+    // runs the ClientHandlers, off the event loops
+    private final ExecutorService handlers;
+
+    // round robin index for handing accepted connections to the loops
+    private int nextLoop = 0;
+
+    /**
+     * @param server  the server whose game logic the connections run
+     * @param port    the port to listen on
+     * @param threads number of event loop threads
+     */
+    public NioServer(DrawingServer server, int port, int threads) throws IOException {
+        this.server = server;
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, threads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+        }
+        AtomicInteger handlerCount = new AtomicInteger();
+        // a few per core, since a handler may wait on the canvas or the network
+        this.handlers = Executors.newFixedThreadPool(Math.max(8, Runtime.getRuntime().availableProcessors() * 4), r -> {
+            Thread t = new Thread(r, "NIO Handler Thread " + handlerCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Binds the port and runs the event loops. The first loop also accepts connections.
+     * Blocks the calling thread, which becomes the first loop.
+     */
+    public void start() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        System.out.println("Drawing server (nio, " + loops.length + " event loops) started at port: " + port);
+
+        for (int i = 1; i < loops.length; i++) {
+            new Thread(loops[i], "NIO EventLoop " + i).start();
+        }
+        loops[0].run();
+    }
+
+    /**
+     * Accepts all pending connections and hands them to the event loops.
+     */
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            server.log("New connection from " + channel.getRemoteAddress());
+
+            EventLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            Connection connection = new Connection(channel, loop, handlers);
+
+            // Reject connection when server is full
+            if (server.isFull()) {
+                connection.reject("FULL");
+                continue;
+            }
+
+            ClientHandler handler = new ClientHandler(connection, server);
+            connection.handler = handler;
+            server.addClient(handler);
+            loop.execute(connection::register);
+        }
+    }
+
+    /**
+     * One selector thread. Runs queued tasks between selects, then flushes the connections that have messages queued.
+     */
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private volatile Thread thread;
+        // the connections registered on this loop, only used on the loop thread
+        private final List<Connection> connections = new ArrayList<>();
+        // set when any connection has messages queued, so a broadcast costs the loop one wakeup
+        // and no task per recipient
+        private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Has the loop flush every connection that asked to, on its next turn.
+         */
+        void requestFlush() {
+            if (flushRequested.compareAndSet(false, true) && Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Flushes the connections with messages queued. Runs on the loop thread.
+         */
+        private void flushConnections() {
+            // backwards, since a connection that fails is swapped out for the last one.
+            // Those waiting on OP_WRITE are left for the loop to flush once their socket has room
+            for (int i = connections.size() - 1; i >= 0; i--) {
+                Connection connection = connections.get(i);
+                if (connection.flushScheduled.get() && !connection.writing) {
+                    try {
+                        connection.flush();
+                    } catch (IOException | RuntimeException e) {
+                        connection.closeNow();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Runs a task on this loop's thread.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            while (true) {
+                try {
+                    // don't block while tasks queued from this thread are waiting
+                    if (tasks.isEmpty() && !flushRequested.get()) {
+                        selector.select();
+                    } else {
+                        selector.selectNow();
+                    }
+                } catch (IOException e) {
+                    server.log("Event loop error: " + e.getMessage());
+                    continue;
+                }
+                runTasks();
+                if (flushRequested.getAndSet(false)) {
+                    flushConnections();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handleKey(key);
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // connection tasks close their own connection, this only keeps the loop alive
+                    server.log("Event loop task failed: " + e);
+                }
+            }
+        }
+
+        private void handleKey(SelectionKey key) {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                try {
+                    accept((ServerSocketChannel) key.channel());
+                } catch (IOException | RuntimeException e) {
+                    server.log("Accept error: " + e);
+                }
+                return;
+            }
+
+            Connection connection = (Connection) key.attachment();
+            try {
+                if (key.isReadable()) {
+                    connection.read(readBuffer);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.flush();
+                }
+            } catch (IOException e) {
+                // user disconnected
+                connection.closeNow();
+            } catch (RuntimeException e) {
+                // a malformed message shouldn't take down the event loop, or the other connections on it
+                System.out.println("[SERVER] Bad message from " + connection.describe() + ": " + e);
+                connection.closeNow();
+            }
+        }
+    }
+
+    /**
+     * A client connection on an event loop.
+     * Reads are framed into lines (or binary frames) on the loop, and passed to the ClientHandler on the handler pool.
+     * If the handler falls too far behind, the loop stops reading until it catches up.
+     * Writes are pulled from the handler's outbound queue only while the socket
+     * accepts them, so a slow client backs up its own queue rather than the loop.
+     */
+    private static class Connection implements ClientTransport {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+        private final Executor handlers;
+
+        // messages read and not handled yet, and the disconnect cleanup, run in order on the handler pool
+        private final Queue<Runnable> inbound = new ConcurrentLinkedQueue<>();
+        // true while a pass over the inbound queue is queued or running
+        private final AtomicBoolean handling = new AtomicBoolean(false);
+        // messages in the inbound queue, the loop stops reading at MAX_PENDING_MESSAGES
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile boolean readPaused = false;
+        // true while waiting on OP_WRITE
+        private boolean writing = false;
+
+        // received bytes not yet decoded into a message
+        private byte[] inBuffer = new byte[8 * 1024];
+        private int inLength = 0;
+        // how far the current line has been searched for a newline
+        private int scanned = 0;
+        private final String remote;
+        private SelectionKey key;
+        // where it is in the loop's connections, -1 when it isn't there
+        private int loopIndex = -1;
+        private ClientHandler handler;
+        // set on the loop, read by the handler pool to skip what's left once it's closed
+        private volatile boolean closed = false;
+
+        // message currently being written, kept until the socket takes all of it
+        // messages being written with one gathering write, from gatherStart to gatherEnd
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        private int gatherStart = 0, gatherEnd = 0;
+        // switched on by the PROTO reply, like the client
+        private boolean binaryOutput = false;
+        // the handler's deflate streams, once the client and the output switched to them
+        private StreamCompression.Compressor compressor;
+        private StreamCompression.Decompressor decompressor;
+
+        Connection(SocketChannel channel, EventLoop loop, Executor handlers) throws IOException {
+            this.channel = channel;
+            this.loop = loop;
+            this.handlers = handlers;
+            this.remote = String.valueOf(channel.getRemoteAddress());
+        }
+
+        /**
+         * Registers for reads. Runs on the loop thread.
+         */
+        void register() {
+            try {
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+                loopIndex = loop.connections.size();
+                loop.connections.add(this);
+                flush();
+            } catch (IOException | RuntimeException e) {
+                closeNow();
+            }
+        }
+
+        /**
+         * Sends a single message and closes, for connections turned away before they get a handler.
+         */
+        void reject(String message) {
+            loop.execute(() -> {
+                try {
+                    channel.write(ByteBuffer.wrap(BinaryProtocol.encodeLine(message)));
+                } catch (IOException ignored) {
+                    // closing anyway
+                }
+                closeChannel();
+            });
+        }
+
+        /**
+         * Reads what is available and hands every complete message to the handler.
+         */
+        void read(ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            int n = channel.read(buffer);
+            if (n < 0) {
+                closeNow();
+                return;
+            }
+            buffer.flip();
+            if (decompressor != null) {
+                byte[] compressed = new byte[buffer.remaining()];
+                buffer.get(compressed);
+                append(decompressor.inflate(compressed, 0, compressed.length));
+            } else {
+                ensureCapacity(inLength + buffer.remaining());
+                int added = buffer.remaining();
+                buffer.get(inBuffer, inLength, added);
+                inLength += added;
+            }
+            decode();
+        }
+
+        /**
+         * Splits the buffered input into text lines or binary frames,
+         * whichever the client is using at that point in the stream.
+         */
+        private void decode() throws IOException {
+            int pos = 0;
+            while (!closed && pos < inLength) {
+                if (decompressor == null && handler != null && handler.getDecompressor() != null) {
+                    // the client compresses everything after its JOINV
+                    decompressor = handler.getDecompressor();
+                    byte[] rest = decompressor.inflate(inBuffer, pos, inLength - pos);
+                    inLength = pos;
+                    scanned = pos;
+                    append(rest);
+                }
+                WireMessage message;
+                int maxLength = handler != null ? handler.getMaxMessageLength() : BinaryProtocol.MAX_FRAME_SIZE;
+                if (handler != null && handler.isBinaryProtocol()) {
+                    // varint length, then the frame body
+                    int length = 0;
+                    int header = 0;
+                    boolean complete = false;
+                    while (pos + header < inLength && header < 5) {
+                        int b = inBuffer[pos + header] & 0xFF;
+                        length |= (b & 0x7F) << (7 * header);
+                        header++;
+                        if ((b & 0x80) == 0) {
+                            complete = true;
+                            break;
+                        }
+                    }
+                    if (!complete) {
+                        if (header == 5) {
+                            throw new IOException("Bad frame length");
+                        }
+                        break;
+                    }
+                    // a fifth byte can set the sign bit
+                    if (length < 0) {
+                        throw new IOException("Bad frame length");
+                    }
+                    if (length > Math.min(maxLength, BinaryProtocol.MAX_FRAME_SIZE)) {
+                        throw new IOException("Frame too large: " + length);
+                    }
+                    if (pos + header + length > inLength) {
+                        break;
+                    }
+                    message = BinaryProtocol.decodeFrame(inBuffer, pos + header, length);
+                    pos += header + length;
+                } else {
+                    int newline = -1;
+                    for (int i = Math.max(pos, scanned); i < inLength; i++) {
+                        if (inBuffer[i] == '\n') {
+                            newline = i;
+                            break;
+                        }
+                    }
+                    if (newline < 0) {
+                        // don't buffer a line without end
+                        if (inLength - pos > maxLength) {
+                            throw new IOException("Line too long");
+                        }
+                        scanned = inLength;
+                        break;
+                    }
+                    if (newline - pos > maxLength) {
+                        throw new IOException("Line too long");
+                    }
+                    int end = newline;
+                    // match BufferedReader, which also accepts \r\n line endings
+                    if (end > pos && inBuffer[end - 1] == '\r') {
+                        end--;
+                    }
+                    message = WireMessage.text(new String(inBuffer, pos, end - pos, StandardCharsets.UTF_8));
+                    pos = newline + 1;
+                }
+                dispatch(message);
+            }
+
+            // keep the unfinished message at the start of the buffer
+            System.arraycopy(inBuffer, pos, inBuffer, 0, inLength - pos);
+            inLength -= pos;
+            scanned = Math.max(0, scanned - pos);
+        }
+
+        /**
+         * Queues a message for the handler. Runs on the loop thread.
+         */
+        private void dispatch(WireMessage message) {
+            if (handler == null) {
+                return;
+            }
+            handle(() -> {
+                if (closed) {
+                    return;
+                }
+                try {
+                    handler.handleMessage(message);
+                } catch (RuntimeException e) {
+                    // a malformed message only closes its own connection
+                    System.out.println("[SERVER] Bad message from " + remote + ": " + e);
+                    close();
+                }
+            });
+            if (pending.incrementAndGet() >= MAX_PENDING_MESSAGES && !readPaused) {
+                readPaused = true;
+                updateInterest();
+                // the handler may have caught up before it could see the pause
+                if (pending.get() <= MAX_PENDING_MESSAGES / 2) {
+                    resumeReading();
+                }
+            }
+        }
+
+        /**
+         * Queues something for the handler pool, after everything queued before it.
+         */
+        private void handle(Runnable task) {
+            inbound.add(task);
+            if (handling.compareAndSet(false, true)) {
+                handlers.execute(this::handleInbound);
+            }
+        }
+
+        /**
+         * Handles queued messages on the handler pool, a limited number per pass
+         * so one busy client can't keep a handler thread to itself.
+         */
+        private void handleInbound() {
+            Runnable task;
+            int handled = 0;
+            while (handled < MESSAGES_PER_PASS && (task = inbound.poll()) != null) {
+                handled++;
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    System.out.println("[SERVER] Handler error for " + remote + ": " + e);
+                }
+                // counts down past half way exactly once after a pause
+                if (pending.decrementAndGet() == MAX_PENDING_MESSAGES / 2 && readPaused) {
+                    loop.execute(this::resumeReading);
+                }
+            }
+            handling.set(false);
+            // more queued meanwhile, or the pass ended early
+            if (!inbound.isEmpty() && handling.compareAndSet(false, true)) {
+                handlers.execute(this::handleInbound);
+            }
+        }
+
+        /**
+         * Reads again once the handler caught up. Runs on the loop thread.
+         */
+        private void resumeReading() {
+            if (readPaused) {
+                readPaused = false;
+                updateInterest();
+            }
+        }
+
+        private void updateInterest() {
+            if (key != null && key.isValid()) {
+                key.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | (writing ? SelectionKey.OP_WRITE : 0));
+            }
+        }
+
+        private void append(byte[] bytes) {
+            ensureCapacity(inLength + bytes.length);
+            System.arraycopy(bytes, 0, inBuffer, inLength, bytes.length);
+            inLength += bytes.length;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > inBuffer.length) {
+                inBuffer = Arrays.copyOf(inBuffer, Math.max(capacity, inBuffer.length * 2));
+            }
+        }
+
+        /**
+         * Writes queued messages for as long as the socket takes them, and waits for
+         * OP_WRITE if the socket is full. Runs on the loop thread.
+         */
+        void flush() throws IOException {
+            flushScheduled.set(false);
+            if (closed || key == null || handler == null) {
+                return;
+            }
+            OutboundQueue outbound = handler.getOutboundQueue();
+            while (true) {
+                if (gatherStart == gatherEnd) {
+                    // wrap the shared encodings of the next few messages, nothing is copied,
+                    // unless the connection is compressed and they go out as one compressed piece
+                    gatherStart = 0;
+                    gatherEnd = 0;
+                    WireMessage message;
+                    int polled = 0;
+                    while (polled < gather.length - 1 && (message = outbound.poll()) != null) {
+                        polled++;
+                        byte[] bytes = message.getBytes(binaryOutput);
+                        if (compressor != null) {
+                            compressor.add(bytes);
+                        } else {
+                            gather[gatherEnd++] = ByteBuffer.wrap(bytes);
+                        }
+                        if (message.capabilities != null) {
+                            binaryOutput = BinaryProtocol.hasCapability(message.capabilities, BinaryProtocol.CAPABILITY);
+                            if (BinaryProtocol.hasCapability(message.capabilities, BinaryProtocol.DEFLATE_CAPABILITY)) {
+                                compressor = handler.getCompressor();
+                            }
+                        }
+                    }
+                    if (compressor != null && polled > 0) {
+                        gather[gatherEnd++] = ByteBuffer.wrap(compressor.flush());
+                    }
+                    if (gatherEnd == 0) {
+                        break;
+                    }
+                }
+                channel.write(gather, gatherStart, gatherEnd - gatherStart);
+                while (gatherStart < gatherEnd && !gather[gatherStart].hasRemaining()) {
+                    gather[gatherStart++] = null;
+                }
+                if (gatherStart < gatherEnd) {
+                    writing = true;
+                    updateInterest();
+                    return;
+                }
+            }
+            writing = false;
+            updateInterest();
+        }
+
+        @Override
+        public void messagesQueued() {
+            // nothing is allocated here, it's called once per recipient of every broadcast
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.requestFlush();
+            }
+        }
+
+        @Override
+        public void close() {
+            loop.execute(this::closeNow);
+        }
+
+        /**
+         * Closes the channel and queues the handler's disconnect cleanup after the messages it's handling.
+         * Runs on the loop thread.
+         */
+        void closeNow() {
+            if (closeChannel() && handler != null) {
+                pending.incrementAndGet();
+                handle(handler::onDisconnect);
+            }
+        }
+
+        /**
+         * @return false if it was already closed
+         */
+        private boolean closeChannel() {
+            if (closed) {
+                return false;
+            }
+            closed = true;
+            if (loopIndex >= 0) {
+                // swap the last connection into its place
+                Connection last = loop.connections.remove(loop.connections.size() - 1);
+                if (last != this) {
+                    loop.connections.set(loopIndex, last);
+                    last.loopIndex = loopIndex;
+                }
+                loopIndex = -1;
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            return true;
+        }
+
+        @Override
+        public String describe() {
+            return remote;
+        }
+    }
+}
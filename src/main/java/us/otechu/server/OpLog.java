@@ -0,0 +1,239 @@
+package us.otechu.server;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import us.otechu.client.StrokeData;
+import us.otechu.common.WireMessage;
+
+/**
+ * Append-only log of the drawing actions and stroke messages applied to the canvas since its base,
+ * each tagged with the canvas version it produced.
+ * The base is either a blank canvas (after a clear), in which case replaying the whole log rebuilds the canvas,
+ * or a keyframe (an encoded snapshot at the base version), which the log is rebased onto once it gets long.
+ * Late joiners get whichever is cheaper: the whole log, or a keyframe plus the ops after it.
+ * Strokes still open at the base are remembered where they had got to, since their BEGIN is no longer in the log.
+ */
+public class OpLog {
+    /** Most ops sent to a joining client, kept well under the outbound queue capacity */
+    public static final int MAX_REPLAY_OPS = OutboundQueue.CAPACITY / 2;
+    /** Hard limit on the log length, in case no keyframe comes along to rebase onto */
+    private static final int MAX_OPS = 4 * MAX_REPLAY_OPS;
+
+    /**
+     * One logged op and its encoded size in each protocol.
+     */
+    private static class Op {
+        final long version;
+        final WireMessage message;
+        final int textBytes;
+        final int binaryBytes;
+
+        Op(long version, WireMessage message) {
+            this.version = version;
+            this.message = message;
+            // the encodings are kept on the message, so sending it later doesn't encode it again
+            this.textBytes = message.getBytes(false).length;
+            this.binaryBytes = message.getBytes(true).length;
+        }
+    }
+
+    /**
+     * Style and last point of a stroke that was open at the base.
+     */
+    private static class BaseStroke {
+        final String colourHex;
+        final int thickness;
+        int lastX, lastY;
+
+        BaseStroke(StrokeData begin) {
+            this.colourHex = begin.colourHex;
+            this.thickness = begin.thickness;
+            this.lastX = begin.points[0];
+            this.lastY = begin.points[1];
+        }
+    }
+
+    private final List<Op> ops = new ArrayList<>();
+    private long baseVersion = 0;
+    private boolean baseBlank = true;
+    // strokes open at the base, by id
+    private final Map<Integer, BaseStroke> baseStrokes = new HashMap<>();
+
+    /**
+     * Appends an op applied to the canvas.
+     *
+     * @param version the canvas version after the op
+     * @param message the drawing action or stroke message
+     */
+    public synchronized void append(long version, WireMessage message) {
+        ops.add(new Op(version, message));
+        if (ops.size() > MAX_OPS) {
+            // nobody can replay this much anyway, joiners fall back to a fresh snapshot
+            rebase(ops.get(ops.size() / 2).version);
+        }
+    }
+
+    /**
+     * Drops everything and starts again from a new base, e.g. after a clear or a loaded image.
+     *
+     * @param version the canvas version of the new base
+     * @param blank   true if the canvas is blank at that version
+     */
+    public synchronized void reset(long version, boolean blank) {
+        ops.clear();
+        baseStrokes.clear();
+        baseVersion = version;
+        baseBlank = blank;
+    }
+
+    /**
+     * Moves the base forward to a keyframe, dropping the ops it already contains.
+     *
+     * @param version the version of the keyframe
+     */
+    public synchronized void rebase(long version) {
+        if (version <= baseVersion) {
+            return;
+        }
+        int drop = 0;
+        while (drop < ops.size() && ops.get(drop).version <= version) {
+            // follow the strokes being dropped, so the ones still open can be resumed
+            WireMessage message = ops.get(drop).message;
+            if (message.isStroke()) {
+                StrokeData data = message.stroke;
+                switch (data.phase) {
+                    case BEGIN:
+                        baseStrokes.put(data.id, new BaseStroke(data));
+                        break;
+                    case POINTS:
+                        BaseStroke open = baseStrokes.get(data.id);
+                        if (open != null && data.points.length >= 2) {
+                            open.lastX = data.points[data.points.length - 2];
+                            open.lastY = data.points[data.points.length - 1];
+                        }
+                        break;
+                    case END:
+                        baseStrokes.remove(data.id);
+                        break;
+                }
+            }
+            drop++;
+        }
+        ops.subList(0, drop).clear();
+        baseVersion = version;
+        baseBlank = false;
+    }
+
+    /** @return the canvas version the log starts from */
+    public synchronized long getBaseVersion() {
+        return baseVersion;
+    }
+
+    /** @return true if replaying the log onto a blank canvas rebuilds the current canvas */
+    public synchronized boolean isBaseBlank() {
+        return baseBlank;
+    }
+
+    /** @return the number of logged ops */
+    public synchronized int size() {
+        return ops.size();
+    }
+
+    /**
+     * @param version a canvas version at or after the base
+     * @return the number of ops after that version
+     */
+    public synchronized int countAfter(long version) {
+        return ops.size() - firstAfter(version);
+    }
+
+    /**
+     * Adds up what sending the ops after a version would cost.
+     *
+     * @param version a canvas version at or after the base
+     * @param binary  true for the binary protocol, false for text
+     * @return the encoded size in bytes
+     */
+    public synchronized long bytesAfter(long version, boolean binary) {
+        long bytes = 0;
+        for (int i = firstAfter(version); i < ops.size(); i++) {
+            bytes += binary ? ops.get(i).binaryBytes : ops.get(i).textBytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the ops after a version, ready to send to a client whose canvas is at that version.
+     * Strokes that were already in progress get a BEGIN at the point they had reached,
+     * so their remaining points can still be drawn.
+     *
+     * @param version a canvas version at or after the base
+     * @return the messages to send, in order
+     */
+    public synchronized List<WireMessage> after(long version) {
+        int first = firstAfter(version);
+        List<WireMessage> tail = new ArrayList<>();
+        Set<Integer> started = new HashSet<>();
+        for (int i = first; i < ops.size(); i++) {
+            WireMessage message = ops.get(i).message;
+            if (message.isStroke() && started.add(message.stroke.id)
+                    && message.stroke.phase != StrokeData.Phase.BEGIN) {
+                WireMessage resumed = resumeStroke(message.stroke.id, first);
+                if (resumed != null) {
+                    tail.add(resumed);
+                }
+            }
+            tail.add(message);
+        }
+        return tail;
+    }
+
+    /**
+     * Builds a BEGIN for a stroke that started before an op, at the last point it reached.
+     *
+     * @return the BEGIN, or null if the stroke had already ended, or wasn't open at the base either
+     */
+    private WireMessage resumeStroke(int id, int before) {
+        int[] last = null;
+        for (int i = before - 1; i >= 0; i--) {
+            WireMessage message = ops.get(i).message;
+            if (!message.isStroke() || message.stroke.id != id) {
+                continue;
+            }
+            StrokeData data = message.stroke;
+            if (data.phase == StrokeData.Phase.END) {
+                return null;
+            }
+            if (last == null && data.points.length >= 2) {
+                last = new int[] { data.points[data.points.length - 2], data.points[data.points.length - 1] };
+            }
+            if (data.phase == StrokeData.Phase.BEGIN) {
+                return WireMessage.stroke(StrokeData.begin(id, last[0], last[1],
+                        Color.decode(data.colourHex), data.thickness));
+            }
+        }
+        // it started before the base
+        BaseStroke open = baseStrokes.get(id);
+        if (open == null) {
+            return null;
+        }
+        if (last == null) {
+            last = new int[] { open.lastX, open.lastY };
+        }
+        return WireMessage.stroke(StrokeData.begin(id, last[0], last[1], Color.decode(open.colourHex), open.thickness));
+    }
+
+    private int firstAfter(long version) {
+        int i = 0;
+        while (i < ops.size() && ops.get(i).version <= version) {
+            i++;
+        }
+        return i;
+    }
+}
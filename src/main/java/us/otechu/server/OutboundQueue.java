@@ -0,0 +1,198 @@
+package us.otechu.server;
+
+import java.awt.Color;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import us.otechu.client.DrawData;
+import us.otechu.client.StrokeData;
+import us.otechu.common.WireMessage;
+
+/**
+ * Bounded queue of messages waiting to be written to one client.
+ * Messages are added by whichever thread is broadcasting and drained by the client's own writer,
+ * so a slow client only ever backs up its own queue.
+ *
+ * When the queue is full, pencil points are conflated into the queued message they continue
+ * (batches of the same stroke are joined, old style segments are merged into one longer segment),
+ * or dropped if they can't be. Every other message (TURN, USERLIST, LOADIMG, ...) is always queued.
+ * A client whose queue stays full for longer than {@link #MAX_LAG_MS} should be disconnected.
+ */
+public class OutboundQueue {
+    /** Number of queued messages before pencil segments start being conflated or dropped */
+    public static final int CAPACITY = 2048;
+    /** How long a client's queue may stay full before it's disconnected */
+    public static final long MAX_LAG_MS = 10_000;
+
+    private final ArrayDeque<WireMessage> queue = new ArrayDeque<>();
+
+    // time the queue filled up, or -1 when it has room
+    private long fullSince = -1;
+    private boolean closed = false;
+
+    // metrics
+    private int maxDepth = 0;
+    private long dropped = 0;
+    private long conflated = 0;
+
+    /**
+     * Adds a message to the queue.
+     *
+     * @param message the message to send
+     * @return false if the queue has been full for too long and the client should be disconnected
+     */
+    public synchronized boolean offer(WireMessage message) {
+        if (closed) {
+            return true;
+        }
+
+        if (queue.size() >= CAPACITY && (message.isPencilSegment() || message.isStrokePoints())) {
+            // a full queue only getting pencil traffic is still full, so this starts the timer too
+            markFull();
+            if (!conflateIntoTail(message)) {
+                dropped++;
+            }
+            return !isLagging();
+        }
+
+        queue.addLast(message);
+        maxDepth = Math.max(maxDepth, queue.size());
+        if (queue.size() >= CAPACITY) {
+            markFull();
+        }
+        notifyAll();
+        return !isLagging();
+    }
+
+    /**
+     * Takes the next message, waiting until one is available.
+     *
+     * @return the next message, or null once the queue is closed
+     */
+    public synchronized WireMessage take() throws InterruptedException {
+        while (queue.isEmpty() && !closed) {
+            wait();
+        }
+        return poll();
+    }
+
+    /**
+     * Takes the next message without waiting.
+     *
+     * @return the next message, or null if there is none
+     */
+    public synchronized WireMessage poll() {
+        if (closed) {
+            return null;
+        }
+        WireMessage message = queue.pollFirst();
+        if (queue.size() < CAPACITY) {
+            fullSince = -1;
+        }
+        return message;
+    }
+
+    private void markFull() {
+        if (fullSince < 0) {
+            fullSince = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Discards anything queued and wakes up a waiting writer.
+     */
+    public synchronized void close() {
+        closed = true;
+        queue.clear();
+        notifyAll();
+    }
+
+    /**
+     * @return true if the queue has stayed full for longer than {@link #MAX_LAG_MS}
+     */
+    public synchronized boolean isLagging() {
+        return fullSince >= 0 && System.currentTimeMillis() - fullSince > MAX_LAG_MS;
+    }
+
+    public synchronized boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    /** @return the number of queued messages */
+    public synchronized int getDepth() {
+        return queue.size();
+    }
+
+    /** @return the highest depth this queue has reached */
+    public synchronized int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /** @return the number of pencil segments or point batches dropped */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /** @return the number of pencil segments or point batches merged into a queued one */
+    public synchronized long getConflated() {
+        return conflated;
+    }
+
+    /**
+     * Merges pencil points into the last queued message if it is part of the same stroke.
+     *
+     * @return true if the points were merged
+     */
+    private boolean conflateIntoTail(WireMessage message) {
+        WireMessage tail = queue.peekLast();
+        if (tail == null) {
+            return false;
+        }
+        WireMessage merged = conflate(tail, message);
+        if (merged == null) {
+            return false;
+        }
+        queue.pollLast();
+        queue.addLast(merged);
+        conflated++;
+        return true;
+    }
+
+    /**
+     * Joins pencil points onto the message before them, if it's part of the same stroke:
+     * batches of the same stroke become one batch, and old style segments that meet become one longer segment.
+     * Neither message is modified, since either may be shared with other clients.
+     *
+     * @param tail    the earlier message
+     * @param message the message after it
+     * @return one message drawing both, or null if they can't be joined
+     */
+    static WireMessage conflate(WireMessage tail, WireMessage message) {
+        if (message.isStrokePoints()) {
+            if (!tail.isStrokePoints() || tail.stroke.id != message.stroke.id) {
+                return null;
+            }
+            // one batch with the points of both, nothing is lost
+            int[] points = Arrays.copyOf(tail.stroke.points, tail.stroke.points.length + message.stroke.points.length);
+            System.arraycopy(message.stroke.points, 0, points, tail.stroke.points.length, message.stroke.points.length);
+            return WireMessage.stroke(StrokeData.points(message.stroke.id, points));
+        }
+
+        if (!message.isPencilSegment() || !tail.isPencilSegment()) {
+            return null;
+        }
+
+        DrawData previous = tail.draw;
+        DrawData next = message.draw;
+        if (previous.x2 != next.x1 || previous.y2 != next.y1
+                || previous.thickness != next.thickness
+                || !previous.colourHex.equals(next.colourHex)) {
+            return null;
+        }
+
+        // one longer segment covering both
+        DrawData merged = new DrawData(previous.x1, previous.y1, next.x2, next.y2,
+                Color.decode(previous.colourHex), previous.thickness, previous.shape, false);
+        return WireMessage.draw(merged);
+    }
+}
@@ -0,0 +1,1438 @@
+package us.otechu.server;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+
+import us.otechu.client.DrawData;
+import us.otechu.client.StrokeData;
+import us.otechu.common.Utils;
+import us.otechu.common.WireMessage;
+
+/**
+ * One named drawing session: its own canvas, players and turn order.
+ * Rooms share nothing but the server's worker threads, and each locks only its own monitors,
+ * so a busy room never holds up another. The canvas of a room is rendered on the one room worker
+ * it was given, so the rooms are spread over the workers instead of contending for a single thread.
+ * A room that stays empty is hibernated, keeping its canvas compressed off the heap until someone joins again.
+ * Tile sync clients only get the ops that land in their viewport, and the tiles they missed once they look there.
+ * Besides its players, a room can have hundreds of read-only spectators. They take no turns, aren't in the player list,
+ * and get a snapshot when they join, then everything else through a {@link SpectatorFeed}.
+ * On a relay server a room is a {@link RoomMirror} of the same room on the primary, kept for the relay's spectators.
+ * What players do goes through the server's {@link MessageBus} and is applied as it comes back, in the bus's order,
+ * so servers sharing a bus keep the same player list, turns and canvas while each only holds its own players.
+ */
+public class Room {
+    /** Max number of players in a room */
+    public static final int MAX_CLIENTS = 4;
+    /** Max number of spectators in a room, on top of its players */
+    public static final int MAX_SPECTATORS = 1000;
+    /** The room clients join when they don't name one */
+    public static final String DEFAULT_ROOM = "main";
+
+    /** Tells clients to clear their canvas, shared so it's encoded once */
+    private static final WireMessage CLEAR_MESSAGE = WireMessage.text("CLEAR");
+
+    /** Largest area sent as one LOADIMG snapshot, to clients without tile sync */
+    public static final int MAX_SNAPSHOT_SIZE = 4096;
+
+    private final DrawingServer server;
+    private final String name;
+
+    // the canvas, only ever drawn on by the room worker
+    private final CanvasRenderer renderer;
+
+    // encoded canvas for READY and CLEAR, re-encoded only after the canvas changes
+    private final SnapshotCache snapshots;
+    // a blank canvas never changes, so it's encoded once for every room
+    private final String blankCanvasBase64;
+    // per tile versions, so clients that support it only get the parts of the canvas they're missing
+    private final TileGrid tiles;
+    // encodes the tiles a client is sent in parallel, shared by every room
+    private final ForkJoinPool tileEncoders;
+    // where loaded images are decoded, off the room's lock
+    private final Executor imageDecoders;
+
+    // durable copy of the canvas, null unless the server was started with --data-dir
+    private Journal journal;
+    // keeps the room in step with the primary, null unless the server is a relay
+    private RoomMirror mirror;
+    // the primary's player list, which a mirrored room shows instead of its own
+    private volatile String mirroredUserList;
+
+    // every op since the last clear or keyframe, for late joiners
+    // also locked while an op is applied and passed on, so joiners never miss or repeat one
+    private final OpLog opLog = new OpLog();
+
+    // measures text ops and tracks strokes in progress, to work out which viewports ops land in
+    // both only used with the op log locked
+    private final Graphics2D metrics = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB).createGraphics();
+    private final Map<Integer, OpenStroke> openStrokes = new HashMap<>();
+
+    // the players connected to this server, who are sent the room's messages
+    private final List<ClientHandler> clients = new CopyOnWriteArrayList<>();
+    // every player in the room, on this server or another one on the bus, in turn order
+    // only changed by applying events, so it's the same on every server
+    private final List<Player> roster = new CopyOnWriteArrayList<>();
+    // players on this server whose JOIN hasn't come back through the bus yet, by session
+    private final Map<Long, Player> pendingJoins = new ConcurrentHashMap<>();
+    // the spectators, who get what the players are sent on the spectator thread's schedule
+    private final SpectatorFeed spectators = new SpectatorFeed();
+    // spectators in the room, including those that haven't synced yet
+    private volatile int spectatorCount = 0;
+    // the names of the spectators on this server
+    private final Set<String> spectatorNames = Collections.synchronizedSet(new HashSet<>());
+
+    // the index in the roster of the player whose turn it is
+    // -1 means no one is playing
+    private int turnIndex = -1;
+
+    // the seq of the last event applied, and whether the room saw every one before it or a keyframe of them
+    private long appliedSeq = 0;
+    private boolean complete = false;
+
+    // true while an image event is being decoded and sent, and the events after it that came meanwhile
+    private boolean loadingImage = false;
+    private final Deque<RoomEvent> held = new ArrayDeque<>();
+
+    // when the last player left, for picking which empty room to drop
+    private volatile long emptySince = System.currentTimeMillis();
+    // true from hibernating until the next player joins
+    private volatile boolean hibernated = false;
+
+    /**
+     * A player as every server on the bus sees it.
+     */
+    private static class Player {
+        final String name;
+        // the server it's connected to and its session there
+        final String node;
+        final long session;
+        // the client if it's connected to this server, otherwise null
+        final ClientHandler local;
+        boolean ready = false;
+
+        Player(String name, String node, long session, ClientHandler local) {
+            this.name = name;
+            this.node = node;
+            this.session = session;
+            this.local = local;
+        }
+    }
+
+    /**
+     * Style and last point of a stroke in progress, to restart it for clients that missed some of it.
+     */
+    private static class OpenStroke {
+        final Color colour;
+        final int thickness;
+        int lastX, lastY;
+
+        OpenStroke(StrokeData begin) {
+            this.colour = Color.decode(begin.colourHex);
+            this.thickness = begin.thickness;
+            this.lastX = begin.points[0];
+            this.lastY = begin.points[1];
+        }
+
+        /**
+         * Moves on through a batch of points.
+         *
+         * @return the area the batch draws over
+         */
+        Rectangle advance(int[] points) {
+            Rectangle area = new Rectangle(lastX, lastY, 0, 0);
+            for (int i = 0; i + 1 < points.length; i += 2) {
+                area.add(points[i], points[i + 1]);
+            }
+            lastX = points[points.length - 2];
+            lastY = points[points.length - 1];
+            return padded(area);
+        }
+
+        /** Grows an area by the pen width, plus a pixel for antialiasing */
+        Rectangle padded(Rectangle area) {
+            int pad = (thickness + 1) / 2 + 1;
+            area.grow(pad, pad);
+            return area;
+        }
+    }
+
+    /**
+     * Creates a room with a blank canvas.
+     *
+     * @param server            the server the room belongs to
+     * @param name              the room name
+     * @param worker            the room worker its canvas is rendered on
+     * @param encoders          the threads snapshots are encoded on
+     * @param tileEncoders      the pool tiles are encoded on
+     * @param blankCanvasBase64 the encoded blank canvas
+     */
+    public Room(DrawingServer server, String name, Executor worker, ScheduledExecutorService encoders,
+            ForkJoinPool tileEncoders, String blankCanvasBase64) {
+        this.server = server;
+        this.name = name;
+        this.tileEncoders = tileEncoders;
+        this.imageDecoders = encoders;
+        this.blankCanvasBase64 = blankCanvasBase64;
+        renderer = new CanvasRenderer(server.getCanvasWidth(), server.getCanvasHeight(), worker);
+        tiles = renderer.getTiles();
+        snapshots = new SnapshotCache(this::encodeSnapshot, encoders);
+        snapshots.markCleared(blankCanvasBase64);
+        opLog.reset(snapshots.getVersion(), true);
+    }
+
+    /**
+     * Checks if a room name can be used, and as a directory name for its journal.
+     *
+     * @param name the room name
+     * @return true if it's 1 to 32 letters, digits, dashes or underscores
+     */
+    public static boolean isValidName(String name) {
+        return name.matches("[A-Za-z0-9_-]{1,32}");
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The part of a canvas covered by LOADIMG snapshots: all of it, unless it's too big to encode as one image.
+     *
+     * @return the area from the top left corner
+     */
+    public static Rectangle getSnapshotArea(int canvasWidth, int canvasHeight) {
+        return new Rectangle(0, 0, Math.min(canvasWidth, MAX_SNAPSHOT_SIZE), Math.min(canvasHeight, MAX_SNAPSHOT_SIZE));
+    }
+
+    /**
+     * Adds a spectator to the room, or reserves a place for a player whose JOIN is about to be published,
+     * unless it's full or the name is taken. The player is let in once the JOIN comes back through the bus,
+     * if no other server's player took the place or the name first.
+     *
+     * @param handler   the client joining
+     * @param username  the name it asked for
+     * @param spectator true to join as a spectator, who doesn't take turns
+     * @return null if it joined or is waiting to, otherwise the reply to send: FULL or NAMEINUSE
+     */
+    public synchronized String join(ClientHandler handler, String username, boolean spectator) {
+        if (spectator ? spectatorCount >= MAX_SPECTATORS : roster.size() + pendingJoins.size() >= MAX_CLIENTS) {
+            return "FULL";
+        }
+        if (username.isEmpty() || isPlayerName(username)
+                || (spectator && spectatorNames.contains(username.toLowerCase()))) {
+            return "NAMEINUSE";
+        }
+        handler.room = this;
+        if (spectator) {
+            handler.username = username;
+            spectatorNames.add(username.toLowerCase());
+            // not fed anything until it syncs on READY
+            handler.markSpectator();
+            spectatorCount++;
+        } else {
+            pendingJoins.put(handler.getSession(),
+                    new Player(username, server.getBus().getNodeId(), handler.getSession(), handler));
+        }
+        wakeIfHibernated();
+        return null;
+    }
+
+    /**
+     * @return true if a player on any server has the name, or a player on this one is waiting to join with it
+     */
+    private boolean isPlayerName(String username) {
+        for (Player p : roster) {
+            if (p.name.equalsIgnoreCase(username)) {
+                return true;
+            }
+        }
+        for (Player p : pendingJoins.values()) {
+            if (p.name.equalsIgnoreCase(username)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Restores a hibernating canvas while the joining client loads, rather than on its READY.
+     */
+    private void wakeIfHibernated() {
+        if (hibernated) {
+            hibernated = false;
+            long start = System.currentTimeMillis();
+            renderer.wake().thenAccept(restored -> {
+                if (restored) {
+                    log("Woke canvas in " + (System.currentTimeMillis() - start) + " ms");
+                }
+            });
+            if (mirror != null) {
+                // catch up on what the primary drew while we weren't watching
+                mirror.start();
+            }
+        }
+    }
+
+    /**
+     * Frees the memory an empty room holds: the canvas is compressed off the heap,
+     * and the encoded snapshot, tiles and op history are dropped. Does nothing if someone is in the room.
+     */
+    public synchronized void hibernate() {
+        if (!isEmpty() || hibernated) {
+            return;
+        }
+        hibernated = true;
+        if (mirror != null) {
+            // nobody here to mirror for, it resyncs when someone joins
+            mirror.stop();
+        }
+        // checkpoint first, so it doesn't wake the canvas up again later
+        checkpointIfChanged();
+        synchronized (opLog) {
+            // nothing to replay from any more, joiners get a snapshot
+            opLog.reset(snapshots.getVersion(), opLog.isBaseBlank() && opLog.size() == 0);
+            snapshots.release();
+        }
+        tiles.dropEncoded();
+        long start = System.currentTimeMillis();
+        renderer.hibernate().thenAccept(bytes -> {
+            if (bytes >= 0) {
+                log("Hibernated canvas to " + bytes + " bytes off the heap in "
+                        + (System.currentTimeMillis() - start) + " ms");
+            }
+        });
+    }
+
+    /**
+     * @return true if the room's canvas is hibernating
+     */
+    public boolean isHibernated() {
+        return hibernated;
+    }
+
+    /**
+     * @return true if nobody is in the room: no players on any server, and nobody watching on this one
+     */
+    public boolean isEmpty() {
+        return roster.isEmpty() && pendingJoins.isEmpty() && spectatorCount == 0;
+    }
+
+    /**
+     * @return how long the room has been empty in milliseconds, or 0 if it isn't
+     */
+    public long getIdleMillis() {
+        return isEmpty() ? System.currentTimeMillis() - emptySince : 0;
+    }
+
+    /**
+     * @return the number of spectators watching
+     */
+    public int getSpectatorCount() {
+        return spectatorCount;
+    }
+
+    /**
+     * Clears the room's canvas by filling it with white.
+     */
+    public void clearServerCanvas() {
+        synchronized (opLog) {
+            // fill the entire region white
+            renderer.clear();
+            snapshots.markCleared(blankCanvasBase64);
+            opLog.reset(snapshots.getVersion(), true);
+            // everyone gets the blank canvas, nothing they missed matters any more
+            for (ClientHandler client : clients) {
+                client.getView().reset();
+            }
+            if (journal != null) {
+                journal.appendClear();
+            }
+        }
+    }
+
+    /**
+     * Clears the canvas and has everyone clear theirs, in its place among the ops.
+     * Clients that agreed to it get a CLEAR of a few bytes, others the blank canvas snapshot.
+     */
+    public void publishClear() {
+        synchronized (opLog) {
+            clearServerCanvas();
+            broadcast(CLEAR_MESSAGE);
+        }
+    }
+
+    /**
+     * Makes the room a mirror of the same room on the primary, and starts mirroring.
+     * Must be called before anyone joins the room.
+     *
+     * @param mirror the mirror, made for this room
+     */
+    public void mirrorFrom(RoomMirror mirror) {
+        this.mirror = mirror;
+        mirror.start();
+    }
+
+    /**
+     * Shows the primary's player list instead of our own, in a mirrored room.
+     *
+     * @param line the USERLIST line from the primary
+     */
+    public void mirrorUserList(String line) {
+        mirroredUserList = line;
+        broadcastMessage(line);
+    }
+
+    /**
+     * Makes the canvas durable: restores it from the checkpoint and journal in a directory,
+     * then journals every change from now on. Must be called before anyone joins the room.
+     *
+     * @param dir    the room's data directory
+     * @param writer the threads journals are written on
+     */
+    public void enableJournal(Path dir, Executor writer) throws IOException {
+        long start = System.currentTimeMillis();
+        Journal recovering = new Journal(dir);
+        long replayed = recovering.recover(new Journal.Replayer() {
+            @Override
+            public void tile(int x, int y, int width, int height, int[] pixels) {
+                renderer.restoreTile(x, y, width, height, pixels);
+            }
+
+            @Override
+            public void op(WireMessage message) {
+                if (message.isDraw()) {
+                    applyDrawAction(message.draw);
+                } else if (message.isStroke()) {
+                    applyStroke(message.stroke);
+                }
+            }
+
+            @Override
+            public void clear() {
+                clearServerCanvas();
+            }
+
+            @Override
+            public void image(byte[] bytes) {
+                applyLoadImageAction(bytes);
+            }
+        });
+        // the restored canvas has no op history, joiners get snapshots of it
+        snapshots.markDirty();
+        opLog.reset(snapshots.getVersion(), false);
+
+        recovering.start(takeCheckpoint(renderer.copy().join()), writer);
+        journal = recovering;
+        log("Recovered canvas from " + dir + " (" + replayed + " journal records) in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Queues a checkpoint if anything was journaled since the last one.
+     */
+    public void checkpointIfChanged() {
+        if (journal != null && journal.getRecordsSinceCheckpoint() > 0) {
+            // copied in the same order as the records journaled before it
+            synchronized (opLog) {
+                CompletableFuture<CanvasRenderer.CanvasCopy> copy = renderer.copy();
+                journal.checkpoint(() -> takeCheckpoint(copy.join()));
+            }
+        }
+    }
+
+    /**
+     * Checkpoints and closes the journal, when the room is dropped. The canvas stays on disk.
+     */
+    public void close() {
+        if (mirror != null) {
+            mirror.stop();
+        }
+        if (journal != null) {
+            checkpointIfChanged();
+            journal.close();
+        }
+    }
+
+    /**
+     * Copies the raw pixels of every tile that isn't blank.
+     *
+     * @param copy a copy of the canvas
+     */
+    private Journal.Checkpoint takeCheckpoint(CanvasRenderer.CanvasCopy copy) {
+        Journal.Checkpoint checkpoint = new Journal.Checkpoint(server.getCanvasWidth(), server.getCanvasHeight());
+        for (int i = 0; i < copy.tileVersions.length; i++) {
+            BufferedImage tile = copy.canvas.getTile(i);
+            if (copy.tileVersions[i] != 0 && tile != null) {
+                Rectangle r = tiles.getTileBounds(i);
+                int[] pixels = (int[]) tile.getRaster().getDataElements(0, 0, r.width, r.height, null);
+                checkpoint.addTile(r.x, r.y, r.width, r.height, pixels);
+            }
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Takes a keyframe of the room as of the last event it applied, for the bus hub to replay instead of the events
+     * up to it. The canvas is copied in its place among the ops, then encoded off the room's lock.
+     *
+     * @param node    this server's bus id
+     * @param encoder where the tiles are encoded
+     * @return the KEYFRAME event, or null if the room missed some of its events and can't take one
+     */
+    public CompletableFuture<RoomEvent> takeKeyframe(String node, Executor encoder) {
+        RoomKeyframe keyframe = new RoomKeyframe();
+        long seq;
+        CompletableFuture<CanvasRenderer.CanvasCopy> copy;
+        synchronized (this) {
+            if (!complete) {
+                return null;
+            }
+            seq = appliedSeq;
+            for (Player p : roster) {
+                RoomKeyframe.Player player = new RoomKeyframe.Player();
+                player.name = p.name;
+                player.node = p.node;
+                player.session = p.session;
+                player.ready = p.ready;
+                keyframe.players.add(player);
+            }
+            keyframe.turnIndex = turnIndex;
+            synchronized (opLog) {
+                copy = renderer.copy();
+                openStrokes.forEach((id, open) -> {
+                    RoomKeyframe.Stroke stroke = new RoomKeyframe.Stroke();
+                    stroke.id = id;
+                    stroke.colourHex = DrawData.colorToHex(open.colour);
+                    stroke.thickness = open.thickness;
+                    stroke.x = open.lastX;
+                    stroke.y = open.lastY;
+                    keyframe.strokes.add(stroke);
+                });
+            }
+        }
+        return copy.thenApplyAsync(c -> {
+            for (int i = 0; i < c.tileVersions.length; i++) {
+                BufferedImage tile = c.canvas.getTile(i);
+                if (c.tileVersions[i] != 0 && tile != null) {
+                    Rectangle r = tiles.getTileBounds(i);
+                    keyframe.addTile(r.x, r.y, r.width, r.height,
+                            (int[]) tile.getRaster().getDataElements(0, 0, r.width, r.height, null));
+                }
+            }
+            RoomEvent event = new RoomEvent(name, RoomEvent.Type.KEYFRAME, node, 0, "keyframe",
+                    WireMessage.text(keyframe.encode()));
+            event.seq = seq;
+            return event;
+        }, encoder);
+    }
+
+    /**
+     * Starts the room from a keyframe, the first thing a server catching up on the bus gets of a room
+     * whose earlier events were replaced by it.
+     */
+    private void applyKeyframe(RoomEvent event) {
+        if (appliedSeq != 0) {
+            return; // only ever replayed to a room that has nothing yet
+        }
+        RoomKeyframe keyframe;
+        List<int[]> pixels = new ArrayList<>();
+        try {
+            keyframe = RoomKeyframe.parse(event.message.text);
+            for (RoomKeyframe.Tile tile : keyframe.tiles) {
+                pixels.add(tile.decode());
+            }
+        } catch (IOException e) {
+            log("Couldn't start from the bus keyframe: " + e.getMessage());
+            return;
+        }
+        for (RoomKeyframe.Player p : keyframe.players) {
+            Player player = new Player(p.name, p.node, p.session, null);
+            player.ready = p.ready;
+            roster.add(player);
+        }
+        turnIndex = keyframe.turnIndex;
+        synchronized (opLog) {
+            for (int i = 0; i < keyframe.tiles.size(); i++) {
+                RoomKeyframe.Tile tile = keyframe.tiles.get(i);
+                renderer.restoreTile(tile.x, tile.y, tile.width, tile.height, pixels.get(i));
+            }
+            for (RoomKeyframe.Stroke stroke : keyframe.strokes) {
+                StrokeData begin = StrokeData.begin(stroke.id, stroke.x, stroke.y,
+                        Color.decode(stroke.colourHex), stroke.thickness);
+                renderer.resumeStroke(begin);
+                openStrokes.put(stroke.id, new OpenStroke(begin));
+            }
+            // like a restored canvas, there's no op history, joiners get snapshots of it
+            snapshots.markDirty();
+            opLog.reset(snapshots.getVersion(), false);
+        }
+        complete = true;
+        log("Started from the bus keyframe at " + event.seq + " (" + roster.size() + " players, "
+                + keyframe.tiles.size() + " tiles)");
+    }
+
+    /**
+     * Applies a drawing action to the canvas.
+     *
+     * @param data the drawing action
+     */
+    public void applyDrawAction(DrawData data) {
+        synchronized (opLog) {
+            // queued for the render thread, in the same order as the version it's given
+            renderer.draw(data);
+            snapshots.markDirty();
+        }
+    }
+
+    /**
+     * Applies part of a pencil stroke to the canvas.
+     *
+     * @param data the stroke message
+     */
+    public void applyStroke(StrokeData data) {
+        synchronized (opLog) {
+            renderer.stroke(data);
+            if (data.phase != StrokeData.Phase.END) {
+                snapshots.markDirty();
+            }
+        }
+    }
+
+    /**
+     * Applies a drawing action, logs it and passes it on to the other ready clients,
+     * all in one step so a joining client either gets it in its sync or live.
+     *
+     * @param sender the client who drew it
+     * @param data   the drawing action
+     */
+    public void publishDraw(ClientHandler sender, DrawData data) {
+        synchronized (opLog) {
+            applyDrawAction(data);
+            WireMessage message = WireMessage.draw(data);
+            logOp(message);
+            sendToOthers(sender, message, Utils.getBounds(metrics, data));
+        }
+    }
+
+    /**
+     * Applies part of a pencil stroke, logs it and passes it on to the other ready clients.
+     *
+     * @param sender the client drawing the stroke
+     * @param data   the stroke message
+     */
+    public void publishStroke(ClientHandler sender, StrokeData data) {
+        synchronized (opLog) {
+            applyStroke(data);
+            WireMessage message = WireMessage.stroke(data);
+            logOp(message);
+            sendStrokeToOthers(sender, data, message);
+        }
+    }
+
+    /**
+     * Passes part of a stroke on to the other ready clients that can see it.
+     * Clients that missed some of the stroke get it restarted at the point it had reached before the new points.
+     */
+    private void sendStrokeToOthers(ClientHandler sender, StrokeData data, WireMessage message) {
+        Rectangle area = null;
+        OpenStroke open = openStrokes.get(data.id);
+        int fromX = 0, fromY = 0;
+        switch (data.phase) {
+            case BEGIN:
+                open = new OpenStroke(data);
+                openStrokes.put(data.id, open);
+                area = open.padded(new Rectangle(open.lastX, open.lastY, 0, 0));
+                break;
+            case POINTS:
+                if (open != null && data.points.length >= 2) {
+                    fromX = open.lastX;
+                    fromY = open.lastY;
+                    area = open.advance(data.points);
+                }
+                break;
+            case END:
+                openStrokes.remove(data.id);
+                break;
+        }
+
+        spectators.append(message);
+        WireMessage restart = null;
+        for (ClientHandler client : clients) {
+            if (client == sender || !client.getIsReady()) {
+                continue;
+            }
+            ClientView view = client.getView();
+            if (area != null && !view.sees(area)) {
+                view.defer(tiles, area);
+                view.missStroke(data.id);
+                continue;
+            }
+            // a stroke that isn't open here (e.g. its END came first) can't be restarted
+            if (view.forgetStroke(data.id) && data.phase == StrokeData.Phase.POINTS && open != null) {
+                if (restart == null) {
+                    restart = WireMessage.stroke(StrokeData.begin(data.id, fromX, fromY, open.colour, open.thickness));
+                }
+                client.send(restart);
+            }
+            if (area != null) {
+                view.drawn(tiles, area);
+            }
+            client.send(message);
+        }
+    }
+
+    /**
+     * Appends an op that was just applied, and rebases the log onto the latest keyframe once it gets long.
+     */
+    private void logOp(WireMessage message) {
+        opLog.append(snapshots.getVersion(), message);
+        if (journal != null) {
+            journal.append(message);
+        }
+        if (opLog.size() > OpLog.MAX_REPLAY_OPS) {
+            SnapshotCache.Snapshot keyframe = snapshots.peek();
+            if (keyframe != null) {
+                opLog.rebase(keyframe.version);
+            }
+        }
+    }
+
+    /**
+     * Applies a load image action to the canvas.
+     *
+     * @param bytes the image file
+     * @return the area the image covers, or null if it couldn't be decoded
+     */
+    public Rectangle applyLoadImageAction(byte[] bytes) {
+        BufferedImage loaded = decodeImage(bytes);
+        return loaded != null ? applyLoadedImage(loaded, bytes) : null;
+    }
+
+    /**
+     * Decodes an image file, scaled down to fit the canvas. Slow for a large image, so it's done without any lock.
+     *
+     * @return the image, or null if it couldn't be decoded
+     */
+    private BufferedImage decodeImage(byte[] bytes) {
+        try {
+            return Utils.readImage(new ByteArrayInputStream(bytes), server.getCanvasWidth(), server.getCanvasHeight());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Puts a decoded image on the canvas.
+     *
+     * @param loaded the decoded image
+     * @param bytes  its file, for the journal
+     * @return the area the image covers
+     */
+    private Rectangle applyLoadedImage(BufferedImage loaded, byte[] bytes) {
+        synchronized (opLog) {
+            renderer.image(loaded);
+            snapshots.markDirty();
+            // images aren't in the op log, joiners need a snapshot taken after this
+            opLog.reset(snapshots.getVersion(), false);
+            if (journal != null) {
+                journal.appendImage(bytes);
+            }
+            return new Rectangle(0, 0, loaded.getWidth(), loaded.getHeight());
+        }
+    }
+
+    /**
+     * Loads the image of an IMAGE event. It's decoded on the snapshot encoders, then put on the canvas and sent
+     * in its place among the room's events: events that come meanwhile are held, and applied in order after it.
+     * Nothing waits on the room's lock while the image is decoded and its tiles encoded,
+     * and the bus goes on delivering other rooms' events.
+     */
+    private void loadImage(RoomEvent event, ClientHandler sender) {
+        loadingImage = true;
+        CompletableFuture.supplyAsync(() -> decodeImage(event.image), imageDecoders).thenAccept(loaded -> {
+            Rectangle area;
+            synchronized (this) {
+                area = loaded != null ? applyLoadedImage(loaded, event.image) : null;
+                applied(event);
+            }
+            sendLoadedImage(sender, event.image, null, area);
+            log("User " + event.user + " loaded an image.");
+        }).whenComplete((done, e) -> {
+            if (e != null) {
+                e.printStackTrace();
+            }
+            applyHeld();
+        });
+    }
+
+    /**
+     * Applies the events held while an image was loading, until they run out or another image starts loading.
+     */
+    private synchronized void applyHeld() {
+        loadingImage = false;
+        while (!loadingImage && !held.isEmpty()) {
+            apply(held.poll());
+        }
+    }
+
+    /**
+     * Encodes a consistent copy of the canvas, for the snapshot cache.
+     *
+     * @return the encoded canvas and the version it was copied at
+     */
+    private SnapshotCache.Snapshot encodeSnapshot() {
+        long version;
+        CompletableFuture<CanvasRenderer.CanvasCopy> copy;
+        synchronized (opLog) {
+            version = snapshots.getVersion();
+            copy = renderer.copy();
+        }
+        Rectangle area = getSnapshotArea(server.getCanvasWidth(), server.getCanvasHeight());
+        return new SnapshotCache.Snapshot(version, server.encodeCanvasToBase64(copy.join().canvas.toImage(area)));
+    }
+
+    /**
+     * Returns the canvas as a base64 PNG, from the cache when the canvas hasn't changed.
+     *
+     * @return the base64 encoded canvas
+     */
+    public String getCanvasSnapshot() {
+        return snapshots.get().base64;
+    }
+
+    /**
+     * Returns the LOADIMG message for the current canvas, shared with every client it's sent to.
+     *
+     * @return the message
+     */
+    public WireMessage getCanvasLoadMessage() {
+        return snapshots.get().getLoadMessage();
+    }
+
+    /**
+     * Brings a client that just sent READY up to date with the canvas, and marks it ready for live ops.
+     * A client with a blank canvas gets the op log replayed if that's smaller than a snapshot,
+     * otherwise the latest keyframe plus the ops after it. Tile sync clients get their missing tiles instead of a snapshot.
+     *
+     * @param client     the client to sync
+     * @param knownTiles the tile versions the client reported, or null if its canvas is blank
+     */
+    public void syncCanvas(ClientHandler client, long[] knownTiles) {
+        boolean binary = client.isBinaryProtocol();
+        SnapshotCache.Snapshot keyframe = snapshots.peek();
+        synchronized (opLog) {
+            client.markReady();
+            if (knownTiles == null) {
+                long replayCost = opLog.isBaseBlank() && opLog.size() <= OpLog.MAX_REPLAY_OPS
+                        ? opLog.bytesAfter(opLog.getBaseVersion(), binary) : Long.MAX_VALUE;
+                boolean keyframeUsable = keyframe != null && keyframe.version >= opLog.getBaseVersion()
+                        && opLog.countAfter(keyframe.version) <= OpLog.MAX_REPLAY_OPS;
+                long keyframeCost = keyframeUsable
+                        ? keyframe.base64.length() + opLog.bytesAfter(keyframe.version, binary) : Long.MAX_VALUE;
+
+                if (replayCost != Long.MAX_VALUE && replayCost <= keyframeCost) {
+                    sendOps(client, opLog.after(opLog.getBaseVersion()));
+                    log("Replayed " + opLog.size() + " ops (" + replayCost + " bytes) to " + client.username);
+                    return;
+                }
+                if (keyframeUsable && !client.usesTileSync()) {
+                    client.send(keyframe.getLoadMessage());
+                    sendOps(client, opLog.after(keyframe.version));
+                    return;
+                }
+            }
+        }
+
+        if (client.usesTileSync()) {
+            sendTiles(client, knownTiles);
+            return;
+        }
+
+        // no usable keyframe, wait for a fresh one, reusing the cached encoding when nothing changed
+        SnapshotCache.Snapshot fresh = snapshots.get();
+        synchronized (opLog) {
+            client.send(fresh.getLoadMessage());
+            // ops applied while it was encoded were sent live before it, so send them again after it
+            if (fresh.version >= opLog.getBaseVersion()) {
+                sendOps(client, opLog.after(fresh.version));
+            }
+        }
+    }
+
+    /**
+     * Brings a spectator that just sent READY up to date, then starts feeding it.
+     * Spectators never get the op log replayed, which would cost the room an op per op per joiner:
+     * tile sync spectators get the tiles they're missing, copied at the point they join the feed,
+     * and others the cached snapshot that every spectator shares, plus the ops after it.
+     *
+     * @param client     the spectator to sync
+     * @param knownTiles the tile versions it reported, or null if its canvas is blank
+     */
+    public void syncSpectator(ClientHandler client, long[] knownTiles) {
+        if (client.usesTileSync()) {
+            CompletableFuture<CanvasRenderer.CanvasCopy> pending;
+            List<WireMessage> restarts = new ArrayList<>();
+            synchronized (opLog) {
+                pending = renderer.copy();
+                // strokes in progress continue from where the copy has them
+                openStrokes.forEach((id, open) -> restarts.add(WireMessage.stroke(
+                        StrokeData.begin(id, open.lastX, open.lastY, open.colour, open.thickness))));
+                spectators.subscribe(client);
+                client.markReady();
+            }
+            CanvasRenderer.CanvasCopy copy = pending.join();
+            List<Integer> changed = TileGrid.changedSince(copy.tileVersions, knownTiles);
+            for (WireMessage tile : tiles.getTileMessages(changed, copy, tileEncoders)) {
+                client.send(tile);
+            }
+            sendOps(client, restarts);
+            spectators.synced(client);
+            return;
+        }
+
+        while (true) {
+            SnapshotCache.Snapshot fresh = snapshots.get();
+            synchronized (opLog) {
+                if (fresh.version >= opLog.getBaseVersion()) {
+                    client.send(fresh.getLoadMessage());
+                    sendOps(client, opLog.after(fresh.version));
+                    spectators.subscribe(client);
+                    spectators.synced(client);
+                    client.markReady();
+                    return;
+                }
+            }
+            // cleared or loaded over while it was encoded, so the ops after it are gone; take the next one
+        }
+    }
+
+    /**
+     * Sends a spectator that just joined the player list, since spectators joining don't broadcast it.
+     *
+     * @param client the spectator
+     */
+    public void sendUserList(ClientHandler client) {
+        client.sendMessage(getUserListMessage());
+    }
+
+    private void sendOps(ClientHandler client, List<WireMessage> ops) {
+        for (WireMessage op : ops) {
+            client.send(op);
+        }
+    }
+
+    /**
+     * Sends a client the canvas tiles that differ from the versions it has.
+     *
+     * @param client the client to sync
+     * @param known  the client's tile versions, or null if its canvas is blank
+     */
+    public void sendTiles(ClientHandler client, long[] known) {
+        CanvasRenderer.CanvasCopy copy = renderer.copy().join();
+        List<Integer> changed = TileGrid.changedSince(copy.tileVersions, known);
+        List<Integer> visible = new ArrayList<>();
+        synchronized (opLog) {
+            // the rest are sent when the client looks at them
+            ClientView view = client.getView();
+            for (int index : changed) {
+                if (view.sees(tiles.getTileBounds(index))) {
+                    visible.add(index);
+                } else {
+                    view.defer(index);
+                }
+            }
+        }
+        for (WireMessage tile : tiles.getTileMessages(visible, copy, tileEncoders)) {
+            client.send(tile);
+        }
+        log("Sent " + visible.size() + " of " + tiles.getTileCount() + " tiles to " + client.username
+                + " (" + (changed.size() - visible.size()) + " out of view)");
+    }
+
+    /**
+     * Moves a tile sync client's viewport, and sends it the tiles it missed that came into view.
+     * The copy is taken with the op log locked but joined and encoded after it's released, like a sync,
+     * so ops aren't held up by it. Ops sent over those tiles in the meantime would be painted over
+     * by the copy on the client, so those few tiles are copied again with the log locked.
+     * Only the revealed tiles are copied, and encoded tiles are shared with every client,
+     * so this costs about what the client can see.
+     *
+     * @param client   the client
+     * @param viewport the area of the canvas it shows
+     */
+    public void moveView(ClientHandler client, Rectangle viewport) {
+        ClientView view = client.getView();
+        List<Integer> revealed;
+        CompletableFuture<CanvasRenderer.CanvasCopy> pending;
+        synchronized (opLog) {
+            revealed = view.moveTo(viewport, tiles);
+            // a client that isn't ready yet gets the tiles in view when it syncs
+            if (revealed.isEmpty() || !client.getIsReady()) {
+                return;
+            }
+            pending = renderer.copy();
+            view.startSending(revealed);
+        }
+        List<WireMessage> encoded = tiles.getTileMessages(revealed, pending.join(), tileEncoders);
+        synchronized (opLog) {
+            List<Integer> overdrawn = view.finishSending();
+            for (int i = 0; i < encoded.size(); i++) {
+                if (!overdrawn.contains(revealed.get(i))) {
+                    client.send(encoded.get(i));
+                }
+            }
+            if (!overdrawn.isEmpty()) {
+                CanvasRenderer.CanvasCopy copy = renderer.copy().join();
+                for (WireMessage tile : tiles.getTileMessages(overdrawn, copy, tileEncoders)) {
+                    client.send(tile);
+                }
+            }
+        }
+    }
+
+    /**
+     * Shares an image loaded onto the canvas. Clients using tile sync get just the tiles it covers,
+     * others get the whole LOADIMG line, only encoded if there are any. The sender already shows the image,
+     * unless it uses the text protocol which has always echoed it back.
+     *
+     * @param sender the client who loaded the image
+     * @param image  the image file
+     * @param line   its LOADIMG line if there already is one, otherwise null
+     * @param area   the area the image covers, or null if the server couldn't decode it
+     */
+    public void sendLoadedImage(ClientHandler sender, byte[] image, WireMessage line, Rectangle area) {
+        List<Integer> coveredIndexes = area != null ? tiles.tilesIn(area) : List.of();
+        List<WireMessage> covered = List.of();
+        if (area != null) {
+            // taken after the image was queued, so it's on the copy
+            CanvasRenderer.CanvasCopy copy = renderer.copy().join();
+            covered = tiles.getTileMessages(coveredIndexes, copy, tileEncoders);
+        }
+        // anyone who joins after this point syncs with the image already on the canvas
+        boolean wholeWanted = spectators.reaches(SpectatorFeed.Audience.NO_TILE_SYNC);
+        for (ClientHandler client : clients) {
+            wholeWanted |= !client.usesTileSync();
+        }
+        WireMessage whole = line;
+        if (whole == null && wholeWanted) {
+            whole = WireMessage.text("LOADIMG " + Base64.getEncoder().encodeToString(image));
+        }
+        synchronized (opLog) {
+            if (whole != null) {
+                spectators.append(whole, SpectatorFeed.Audience.NO_TILE_SYNC);
+            }
+            for (WireMessage tile : covered) {
+                spectators.append(tile, SpectatorFeed.Audience.TILE_SYNC);
+            }
+            for (ClientHandler client : clients) {
+                if (!client.usesTileSync()) {
+                    if (whole != null) {
+                        client.send(whole);
+                    }
+                } else {
+                    ClientView view = client.getView();
+                    for (int i = 0; i < covered.size(); i++) {
+                        int index = coveredIndexes.get(i);
+                        // the sender already shows it, which a tile it's being sent mustn't paint over either
+                        view.drawn(index);
+                        if (client == sender) {
+                            continue;
+                        }
+                        if (view.sees(tiles.getTileBounds(index))) {
+                            client.send(covered.get(i));
+                        } else {
+                            view.defer(index);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Broadcasts the current players list to everyone in the room as well as the turn index.
+     */
+    public synchronized void broadcastUserList() {
+        broadcastMessage(getUserListMessage());
+    }
+
+    /**
+     * @return the USERLIST message: the players, the turn index and the next turn index
+     */
+    private synchronized String getUserListMessage() {
+        if (mirroredUserList != null) {
+            return mirroredUserList;
+        }
+        // create the list of usernames
+        List<String> names = new ArrayList<>();
+        for (Player p : roster) {
+            names.add(p.name);
+        }
+        String nameString = String.join(",", names);
+
+        // current turn index
+        int current = turnIndex; // could be -1
+
+        // next index
+        int next = -1;
+        if (current != -1 && !roster.isEmpty()) {
+            int size = roster.size();
+            // search for next available player
+            for (int i = 1; i <= size; i++) {
+                int candidate = (current + i) % size;
+                if (roster.get(candidate).ready) {
+                    next = candidate;
+                    break;
+                }
+            }
+        }
+
+        return "USERLIST " + nameString + "|" + current + "|" + next;
+    }
+
+    /**
+     * Notifies the player at turnIndex that it is their turn, if it's on this server.
+     */
+    public synchronized void setClientTurn() {
+        if (turnIndex < 0 || turnIndex >= roster.size()) {
+            turnIndex = -1;
+            return;
+        }
+        Player current = roster.get(turnIndex);
+        if (current.local != null) {
+            current.local.sendMessage("TURN");
+        }
+        broadcastMessage("LOG It's " + current.name + " turn!");
+        log("Current turn: " + current.name);
+    }
+
+    /**
+     * Update to next player's turn.
+     */
+    public synchronized void updateTurn() {
+        // no players? no turns.
+        if (roster.isEmpty()) {
+            turnIndex = -1;
+            return;
+        }
+
+        // ensure its within bounds
+        if (turnIndex < 0 || turnIndex >= roster.size()) {
+            turnIndex = 0;
+        }
+
+        // move to next player
+        turnIndex = (turnIndex + 1) % roster.size();
+
+        // find fully connected player
+        int size = roster.size();
+        for (int i = 0; i < size; i++) {
+            int candidate = (turnIndex + i) % size;
+            if (roster.get(candidate).ready) {
+                turnIndex = candidate;
+                setClientTurn(); // notify its their turn
+                broadcastUserList(); // update player list
+                return;
+            }
+        }
+
+        // if we get here, no ready players exist
+        turnIndex = -1;
+        broadcastUserList(); // no valid turn holder
+    }
+
+    /**
+     * @return the player whose turn it is, or null if nobody's
+     */
+    private synchronized Player getCurrentPlayer() {
+        // return null if turnIndex is invalid
+        if (turnIndex < 0 || turnIndex >= roster.size()) {
+            return null;
+        }
+        return roster.get(turnIndex);
+    }
+
+    /**
+     * Checks if it's a client's turn, as far as this server has applied the room's events.
+     * The event it sends is checked again when it's applied, in case the turn moved on in between.
+     *
+     * @param handler a player on this server
+     * @return true if it's the player's turn
+     */
+    public boolean isTurnOf(ClientHandler handler) {
+        Player current = getCurrentPlayer();
+        return current != null && current.local == handler;
+    }
+
+    /**
+     * @return true if the event is from the player whose turn it is
+     */
+    private boolean isTurnOf(RoomEvent event) {
+        Player current = getCurrentPlayer();
+        return current != null && event.isFrom(current.node, current.session);
+    }
+
+    /**
+     * @return the index in the roster of the player who sent an event, or -1 if it isn't in the room
+     */
+    private int indexOf(RoomEvent event) {
+        for (int i = 0; i < roster.size(); i++) {
+            if (event.isFrom(roster.get(i).node, roster.get(i).session)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Applies an event delivered by the bus. Every server applies the room's events in the same order,
+     * so checks like whose turn it is come out the same everywhere, and only the player's own server
+     * has anything to send it. Ops, images and clears are checked against the turn again here,
+     * since it may have moved on while they were on the bus.
+     * Events that come while an image is loading are held, and applied once it's been sent.
+     *
+     * @param event the event
+     */
+    public synchronized void apply(RoomEvent event) {
+        if (loadingImage) {
+            held.add(event);
+            return;
+        }
+        int index = indexOf(event);
+        Player player = index >= 0 ? roster.get(index) : null;
+        ClientHandler sender = player != null ? player.local : null;
+        switch (event.type) {
+            case JOIN:
+                applyJoin(event);
+                break;
+            case READY:
+                if (player != null) {
+                    player.ready = true;
+                    // recheck if theres no current turn holder
+                    if (getCurrentPlayer() == null) {
+                        updateTurn();
+                    } else {
+                        // still broadcast incase order changed
+                        broadcastUserList();
+                    }
+                }
+                break;
+            case LEAVE:
+                if (player != null) {
+                    applyLeave(index);
+                }
+                break;
+            case ENDTURN:
+                if (isTurnOf(event)) {
+                    log("Player " + event.user + " ended their turn.");
+                    updateTurn();
+                }
+                break;
+            case OP:
+                if (isTurnOf(event)) {
+                    if (event.message.isDraw()) {
+                        publishDraw(sender, event.message.draw);
+                    } else {
+                        publishStroke(sender, event.message.stroke);
+                    }
+                }
+                break;
+            case CLEAR:
+                if (isTurnOf(event)) {
+                    publishClear();
+                    String logMsg = event.user + " cleared the canvas.";
+                    log(logMsg);
+                    broadcastMessage("LOG " + logMsg);
+                }
+                break;
+            case IMAGE:
+                if (isTurnOf(event)) {
+                    // counted as applied once it's on the canvas
+                    loadImage(event, sender);
+                    return;
+                }
+                break;
+            case CHAT:
+                if (player != null) {
+                    broadcastMessage("LOG " + event.user + ": " + event.message.text);
+                }
+                break;
+            case KEYFRAME:
+                applyKeyframe(event);
+                break;
+        }
+        applied(event);
+    }
+
+    private void applied(RoomEvent event) {
+        if (appliedSeq == 0 && event.seq == 1) {
+            complete = true;
+        }
+        appliedSeq = event.seq;
+    }
+
+    /**
+     * Lets a player in, unless another server's player took the place or the name first.
+     * The player's own server tells it either way.
+     */
+    private void applyJoin(RoomEvent event) {
+        Player joining = pendingJoins.remove(event.session);
+        if (joining != null && !joining.node.equals(event.node)) {
+            // another server's session with the same number
+            pendingJoins.put(event.session, joining);
+            joining = null;
+        }
+        String refused = roster.size() >= MAX_CLIENTS ? "FULL" : null;
+        for (Player p : roster) {
+            if (p.name.equalsIgnoreCase(event.user)) {
+                refused = "NAMEINUSE";
+            }
+        }
+        if (refused != null) {
+            if (joining != null) {
+                joining.local.joinRefused(refused);
+            }
+            return;
+        }
+
+        if (joining == null) {
+            joining = new Player(event.user, event.node, event.session, null);
+        }
+        roster.add(joining);
+        wakeIfHibernated();
+        if (joining.local != null) {
+            joining.local.username = joining.name;
+            clients.add(joining.local);
+            joining.local.joined();
+        }
+        broadcastUserList();
+        log("New player joined: " + joining.name);
+        broadcastMessage("LOG " + joining.name + " has joined the game!");
+    }
+
+    /**
+     * Removes a player from the roster, and updates turnIndex if necessary.
+     */
+    private void applyLeave(int removedIndex) {
+        Player removed = roster.remove(removedIndex);
+        if (removed.local != null) {
+            clients.remove(removed.local);
+        }
+        broadcastMessage("LOG " + removed.name + " has left the game.");
+
+        if (roster.isEmpty()) {
+            turnIndex = -1;
+            if (isEmpty()) {
+                emptySince = System.currentTimeMillis();
+            }
+            log("No clients connected");
+        } else {
+            // if the removed player was the turn holder
+            if (removedIndex == turnIndex) {
+                // we'll pick the next available or -1 if none
+                turnIndex = -1;
+                updateTurn();
+            } else if (removedIndex < turnIndex) {
+                // if a player before the current turn was removed, shift turnIndex back by 1
+                turnIndex--;
+            }
+        }
+
+        broadcastUserList(); // broadcast updated players list
+    }
+
+    /**
+     * Removes a client from the room on this server. A spectator is gone right away; a player stops
+     * being sent anything, and leaves the roster when its LEAVE comes back through the bus.
+     *
+     * @param handler the client handler to remove
+     */
+    public synchronized void leave(ClientHandler handler) {
+        if (handler.isSpectator()) {
+            // nobody else hears about spectators coming and going
+            spectators.unsubscribe(handler);
+            if (spectatorNames.remove(handler.username.toLowerCase())) {
+                spectatorCount--;
+                if (isEmpty()) {
+                    emptySince = System.currentTimeMillis();
+                }
+            }
+            return;
+        }
+        clients.remove(handler);
+    }
+
+    /**
+     * Send a drawing event to all ready clients except the sender, if it lands in their viewport.
+     * Clients that aren't ready yet get it in their sync instead,
+     * and clients looking elsewhere get the tiles it changed when they look there.
+     *
+     * @param sender  the client who sent it
+     * @param message the message to send, encoded by each client in its own protocol
+     * @param area    the area it draws over, or null to send it to everyone
+     */
+    private void sendToOthers(ClientHandler sender, WireMessage message, Rectangle area) {
+        spectators.append(message);
+        for (ClientHandler client : clients) {
+            if (client != sender && client.getIsReady()) {
+                if (area == null || client.getView().sees(area)) {
+                    client.getView().drawn(tiles, area);
+                    client.send(message);
+                } else {
+                    client.getView().defer(tiles, area);
+                }
+            }
+        }
+    }
+
+    /**
+     * Broadcasts a message to everyone in the room.
+     *
+     * @param msg the message to send
+     */
+    public void broadcastMessage(String msg) {
+        broadcast(WireMessage.text(msg));
+    }
+
+    /**
+     * Broadcasts a message to everyone in the room, the spectators on their next flush.
+     * It's encoded at most once per protocol, and every client writes the same bytes.
+     *
+     * @param message the message to send
+     */
+    public void broadcast(WireMessage message) {
+        for (ClientHandler c : clients) {
+            c.send(message);
+        }
+        spectators.append(message);
+    }
+
+    /**
+     * Sends the spectators what was queued for them since the last flush. Called by the spectator thread.
+     */
+    public void flushSpectators() {
+        spectators.flush();
+    }
+
+    /**
+     * Logs a message to the server console, tagged with the room name.
+     *
+     * @param message the message to print
+     */
+    public void log(String message) {
+        server.log("[" + name + "] " + message);
+    }
+}
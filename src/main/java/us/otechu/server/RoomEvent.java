@@ -0,0 +1,148 @@
+package us.otechu.server;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import com.google.gson.Gson;
+
+import us.otechu.client.DrawData;
+import us.otechu.common.BinaryProtocol;
+import us.otechu.common.WireMessage;
+
+/**
+ * Something a player did in a room, as published on the {@link MessageBus}.
+ * Every server applies a room's events in the order the bus gives them, so they all agree
+ * on the player list, whose turn it is and what's on the canvas.
+ * A player is identified by the server it's connected to and its session there, its name is just for showing.
+ */
+public class RoomEvent {
+    public enum Type {
+        /** A player asks to join, the first server to apply it decides for everyone */
+        JOIN,
+        /** A player finished loading the canvas and can take turns */
+        READY,
+        /** A player left or its server went away */
+        LEAVE,
+        /** A player passed the turn on */
+        ENDTURN,
+        /** A DRAW or STROKE message */
+        OP,
+        /** The turn holder cleared the canvas */
+        CLEAR,
+        /** The turn holder loaded an image, the payload is the image file */
+        IMAGE,
+        /** A chat message */
+        CHAT,
+        /**
+         * The room as it was after the event with this seq, as a {@link RoomKeyframe}. Never published,
+         * the bus hub replays it to servers that join later in place of the events up to it
+         */
+        KEYFRAME
+    }
+
+    private static final Gson gson = new Gson();
+
+    /** Position in the room's event stream, set by the bus */
+    public long seq;
+    public final String room;
+    public final Type type;
+    /** The bus id of the server the player is connected to */
+    public final String node;
+    /** The player's session on that server */
+    public final long session;
+    /** The player's name */
+    public final String user;
+    /** The message for OP, the text for CHAT, the keyframe for KEYFRAME, otherwise null */
+    public final WireMessage message;
+    /** The image file for IMAGE, otherwise null */
+    public final byte[] image;
+
+    public RoomEvent(String room, Type type, String node, long session, String user, WireMessage message) {
+        this(room, type, node, session, user, message, null);
+    }
+
+    private RoomEvent(String room, Type type, String node, long session, String user, WireMessage message,
+            byte[] image) {
+        this.room = room;
+        this.type = type;
+        this.node = node;
+        this.session = session;
+        this.user = user;
+        this.message = message;
+        this.image = image;
+    }
+
+    /**
+     * An image a player loaded. The file is passed on as it is, only base64 encoded on a {@link TcpBus}.
+     *
+     * @param image the image file
+     */
+    public static RoomEvent image(String room, String node, long session, String user, byte[] image) {
+        return new RoomEvent(room, Type.IMAGE, node, session, user, null, image);
+    }
+
+    /**
+     * @return true if this event is from the given player
+     */
+    public boolean isFrom(String node, long session) {
+        return this.node.equals(node) && this.session == session;
+    }
+
+    /**
+     * Encodes the event as one line, without the trailing newline.
+     * Drawing actions are encoded as their DRAW or STROKE text line, and images in base64. Chat comes from clients
+     * as it is, so it's URL encoded like the name, or a line break in it would end the event early.
+     */
+    public String encode() {
+        String payload = "";
+        if (image != null) {
+            payload = Base64.getEncoder().encodeToString(image);
+        } else if (message != null) {
+            byte[] line = message.getBytes(false);
+            payload = new String(line, 0, line.length - 1, StandardCharsets.UTF_8);
+            if (type == Type.CHAT) {
+                payload = URLEncoder.encode(payload, StandardCharsets.UTF_8);
+            }
+        }
+        return seq + " " + room + " " + type + " " + node + " " + session + " "
+                + URLEncoder.encode(user, StandardCharsets.UTF_8) + " " + payload;
+    }
+
+    /**
+     * Parses a line made by {@link #encode}.
+     *
+     * @return the event
+     * @throws IllegalArgumentException if the line is malformed
+     */
+    public static RoomEvent parse(String line) {
+        String[] parts = line.split(" ", 7);
+        if (parts.length < 7) {
+            throw new IllegalArgumentException("Bad event: " + line);
+        }
+        Type type = Type.valueOf(parts[2]);
+        String payload = parts[6];
+        WireMessage message = null;
+        byte[] image = null;
+        if (type == Type.OP) {
+            if (payload.startsWith("DRAW ")) {
+                message = WireMessage.draw(gson.fromJson(payload.substring("DRAW ".length()), DrawData.class));
+            } else if (payload.startsWith("STROKE ")) {
+                message = WireMessage.stroke(BinaryProtocol.parseStrokeJson(payload.substring("STROKE ".length())));
+            } else {
+                throw new IllegalArgumentException("Bad op: " + payload);
+            }
+        } else if (type == Type.IMAGE) {
+            image = Base64.getDecoder().decode(payload);
+        } else if (type == Type.CHAT) {
+            message = WireMessage.text(URLDecoder.decode(payload, StandardCharsets.UTF_8));
+        } else if (type == Type.KEYFRAME) {
+            message = WireMessage.text(payload);
+        }
+        RoomEvent event = new RoomEvent(parts[1], type, parts[3], Long.parseLong(parts[4]),
+                URLDecoder.decode(parts[5], StandardCharsets.UTF_8), message, image);
+        event.seq = Long.parseLong(parts[0]);
+        return event;
+    }
+}
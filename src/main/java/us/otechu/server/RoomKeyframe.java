@@ -0,0 +1,101 @@
+package us.otechu.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import us.otechu.common.TileCodec;
+
+/**
+ * A room as it was after one of its events: the players in turn order, whose turn it was, the strokes in progress
+ * and the drawn tiles. The {@link BusHub} replays it to servers that join the bus later, in place of
+ * every event up to it, so a room's history stays bounded however long it runs.
+ * Sent on the bus as JSON, with the tiles encoded by {@link TileCodec}.
+ */
+class RoomKeyframe {
+    private static final Gson gson = new Gson();
+
+    static class Player {
+        String name;
+        String node;
+        long session;
+        boolean ready;
+    }
+
+    /** Where a stroke in progress had got to, so its next points can be drawn */
+    static class Stroke {
+        int id;
+        String colourHex;
+        int thickness;
+        int x, y;
+    }
+
+    static class Tile {
+        int x, y, width, height;
+        // TileCodec encoded, then base64
+        String pixels;
+
+        /**
+         * @return the tile's packed RGB pixels, row by row
+         * @throws IOException if they're malformed
+         */
+        int[] decode() throws IOException {
+            byte[] bytes;
+            try {
+                bytes = Base64.getDecoder().decode(pixels);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Bad keyframe tile");
+            }
+            return (int[]) TileCodec.decode(bytes, 0, bytes.length, width, height).getRaster()
+                    .getDataElements(0, 0, width, height, null);
+        }
+    }
+
+    List<Player> players = new ArrayList<>();
+    int turnIndex = -1;
+    List<Stroke> strokes = new ArrayList<>();
+    List<Tile> tiles = new ArrayList<>();
+
+    /**
+     * Adds a drawn tile.
+     *
+     * @param pixels its packed RGB pixels, row by row
+     */
+    void addTile(int x, int y, int width, int height, int[] pixels) {
+        Tile tile = new Tile();
+        tile.x = x;
+        tile.y = y;
+        tile.width = width;
+        tile.height = height;
+        tile.pixels = Base64.getEncoder().encodeToString(TileCodec.encode(pixels, 0, width, width, height));
+        tiles.add(tile);
+    }
+
+    /**
+     * @return the keyframe as one line of JSON
+     */
+    String encode() {
+        return gson.toJson(this);
+    }
+
+    /**
+     * Parses a line made by {@link #encode}.
+     *
+     * @throws IOException if it's malformed
+     */
+    static RoomKeyframe parse(String json) throws IOException {
+        try {
+            RoomKeyframe keyframe = gson.fromJson(json, RoomKeyframe.class);
+            if (keyframe == null || keyframe.players == null || keyframe.strokes == null || keyframe.tiles == null) {
+                throw new IOException("Incomplete keyframe");
+            }
+            return keyframe;
+        } catch (JsonParseException e) {
+            throw new IOException("Bad keyframe: " + e.getMessage());
+        }
+    }
+}
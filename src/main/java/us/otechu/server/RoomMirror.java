@@ -0,0 +1,172 @@
+package us.otechu.server;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.Gson;
+
+import us.otechu.client.DrawData;
+import us.otechu.common.BinaryProtocol;
+import us.otechu.common.WireMessage;
+
+/**
+ * Keeps a relay's copy of a room in step with the same room on the primary server.
+ * It joins the primary as one spectator and applies everything it's sent to the local room:
+ * ops are logged and drawn on the local canvas like a player's, images and snapshots are loaded onto it,
+ * and the rest is broadcast. The local room's spectators are then served from here, so the primary
+ * sends the room to one connection per relay however many watch through it.
+ * If the primary goes away the mirror keeps trying to reconnect until it's stopped,
+ * which happens when the room hibernates or is dropped.
+ */
+public class RoomMirror {
+    /** How long to wait before reconnecting to the primary */
+    private static final long RECONNECT_DELAY_SECONDS = 5;
+
+    private final Room room;
+    private final String host;
+    private final int port;
+    private final int canvasWidth, canvasHeight;
+    private final ScheduledExecutorService reconnects;
+
+    // the connection to the primary, null while stopped
+    private Upstream upstream;
+    private boolean stopped = true;
+    // added to the name when the primary already has a spectator with it
+    private volatile int attempt = 0;
+
+    /**
+     * @param room         the local room to keep in step
+     * @param host         the primary's host
+     * @param port         the primary's port
+     * @param canvasWidth  the local canvas width, which must match the primary's
+     * @param canvasHeight the local canvas height
+     * @param reconnects   runs the reconnect attempts
+     */
+    public RoomMirror(Room room, String host, int port, int canvasWidth, int canvasHeight,
+            ScheduledExecutorService reconnects) {
+        this.room = room;
+        this.host = host;
+        this.port = port;
+        this.canvasWidth = canvasWidth;
+        this.canvasHeight = canvasHeight;
+        this.reconnects = reconnects;
+    }
+
+    /**
+     * Starts mirroring, if it isn't already.
+     */
+    public synchronized void start() {
+        if (stopped) {
+            stopped = false;
+            connect();
+        }
+    }
+
+    /**
+     * Stops mirroring and disconnects from the primary. The local canvas is left as it was.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (upstream != null) {
+            upstream.close();
+            upstream = null;
+        }
+    }
+
+    /**
+     * Connects to the primary and joins the room there, retrying later if it can't.
+     */
+    private synchronized void connect() {
+        if (stopped || upstream != null) {
+            return;
+        }
+        try {
+            Upstream connection = new Upstream(host, port);
+            upstream = connection;
+            connection.start(message -> handle(connection, message), () -> reconnectLater(connection),
+                    "Mirror Thread " + room.getName());
+            join(connection);
+        } catch (IOException e) {
+            room.log("Couldn't reach primary " + host + ":" + port + ": " + e.getMessage());
+            reconnects.schedule(this::connect, RECONNECT_DELAY_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private void join(Upstream connection) {
+        String name = "relay-" + Integer.toHexString(System.identityHashCode(this)) + (attempt > 0 ? "-" + attempt : "");
+        connection.send(WireMessage.text("JOINV " + BinaryProtocol.CAPABILITY + "," + BinaryProtocol.CLEAR_CAPABILITY + ","
+                + BinaryProtocol.SPECTATE_CAPABILITY + " #" + room.getName() + " " + name));
+    }
+
+    /**
+     * Runs when a connection to the primary ends, and reconnects unless it was stopped or replaced.
+     */
+    private synchronized void reconnectLater(Upstream ended) {
+        if (upstream != ended) {
+            return;
+        }
+        upstream = null;
+        if (!stopped) {
+            room.log("Lost primary " + host + ":" + port + ", reconnecting in " + RECONNECT_DELAY_SECONDS + "s");
+            reconnects.schedule(this::connect, RECONNECT_DELAY_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Applies one message from the primary to the local room. Runs on the connection's reader thread, so in order.
+     */
+    private void handle(Upstream connection, WireMessage message) {
+        if (message.isDraw()) {
+            room.publishDraw(null, message.draw);
+            return;
+        }
+        if (message.isStroke()) {
+            room.publishStroke(null, message.stroke);
+            return;
+        }
+        String line = message.text;
+        if (line.startsWith("DRAW ")) {
+            // shapes the binary protocol has no tag for still come as text
+            room.publishDraw(null, new Gson().fromJson(line.substring("DRAW ".length()), DrawData.class));
+        } else if (line.startsWith("STROKE ")) {
+            room.publishStroke(null, BinaryProtocol.parseStrokeJson(line.substring("STROKE ".length())));
+        } else if (line.startsWith("CANVAS ")) {
+            String[] size = line.split(" ");
+            if (Integer.parseInt(size[1]) != canvasWidth || Integer.parseInt(size[2]) != canvasHeight) {
+                room.log("Primary canvas is " + size[1] + "x" + size[2] + " but ours is " + canvasWidth + "x"
+                        + canvasHeight + ", start the relay with the same --canvas");
+                stop();
+            }
+        } else if (line.startsWith("JOINED ")) {
+            // the sync may replay ops the canvas already has, or leave out parts of it, so start again from blank
+            room.clearServerCanvas();
+            room.broadcast(room.getCanvasLoadMessage());
+            connection.send(WireMessage.text("READY"));
+            room.log("Mirroring from primary " + host + ":" + port);
+        } else if (line.equals("NAMEINUSE")) {
+            attempt++;
+            join(connection);
+        } else if (line.equals("FULL") || line.equals("BADROOM")) {
+            room.log("Primary refused to mirror the room: " + line);
+        } else if (line.equals("CLEAR")) {
+            room.publishClear();
+        } else if (line.startsWith("LOADIMG ")) {
+            // a snapshot, a clear or an image; local tile sync clients get just the tiles it covers
+            byte[] image;
+            try {
+                image = Base64.getDecoder().decode(line.substring("LOADIMG ".length()));
+            } catch (IllegalArgumentException e) {
+                return;
+            }
+            Rectangle area = room.applyLoadImageAction(image);
+            room.sendLoadedImage(null, image, message, area);
+        } else if (line.startsWith("USERLIST ")) {
+            room.mirrorUserList(line);
+        } else if (line.startsWith("LOG ")) {
+            room.broadcast(message);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package us.otechu.server;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import us.otechu.common.WireMessage;
+
+/**
+ * Caches the encoded canvas sent to clients on READY and CLEAR.
+ * Every change to the canvas bumps a version number. Shortly after a change the canvas is
+ * re-encoded on a background thread, so joining clients normally get the bytes straight from the cache,
+ * and a burst of joins on a changed canvas shares a single encode.
+ */
+public class SnapshotCache {
+    /** How long to wait after a change before re-encoding, so a stroke doesn't trigger an encode per batch */
+    private static final long REFRESH_DELAY_MS = 500;
+
+    /**
+     * An encoded canvas and the version it was taken at.
+     */
+    public static class Snapshot {
+        public final long version;
+        public final String base64;
+        private WireMessage loadMessage;
+
+        Snapshot(long version, String base64) {
+            this.version = version;
+            this.base64 = base64;
+        }
+
+        /**
+         * @return the LOADIMG message for this snapshot, built once and shared by every client it's sent to
+         */
+        public synchronized WireMessage getLoadMessage() {
+            if (loadMessage == null) {
+                loadMessage = WireMessage.text("LOADIMG " + base64);
+            }
+            return loadMessage;
+        }
+    }
+
+    private final Supplier<Snapshot> encoder;
+    private final AtomicLong version = new AtomicLong();
+    private volatile Snapshot latest;
+
+    // the encode currently running, shared by everyone waiting for it
+    private CompletableFuture<Snapshot> inFlight;
+    private boolean refreshScheduled = false;
+
+    private final ScheduledExecutorService executor;
+
+    /**
+     * @param encoder  encodes the current canvas to a base64 PNG, with the version it was taken at
+     * @param executor the background threads the encodes run on, which may be shared with other caches
+     */
+    public SnapshotCache(Supplier<Snapshot> encoder, ScheduledExecutorService executor) {
+        this.encoder = encoder;
+        this.executor = executor;
+    }
+
+    /**
+     * @return the current canvas version
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Records a change to the canvas and schedules a background re-encode.
+     */
+    public void markDirty() {
+        version.incrementAndGet();
+        scheduleRefresh();
+    }
+
+    /**
+     * Records that the canvas was wiped, with the already known encoding of a blank canvas.
+     *
+     * @param blankBase64 the encoded blank canvas
+     */
+    public void markCleared(String blankBase64) {
+        latest = new Snapshot(version.incrementAndGet(), blankBase64);
+    }
+
+    /**
+     * Forgets the cached encoding, to free memory while the canvas is hibernating.
+     * The next {@link #get()} encodes the canvas again.
+     */
+    public void release() {
+        latest = null;
+    }
+
+    /**
+     * Returns the most recent encoding without waiting for a new one, which may be behind the canvas.
+     *
+     * @return the latest snapshot, or null if there is none yet
+     */
+    public Snapshot peek() {
+        return latest;
+    }
+
+    /**
+     * Returns the encoded canvas at its current version, encoding it only if the cache is stale.
+     *
+     * @return the snapshot
+     */
+    public Snapshot get() {
+        long wanted = version.get();
+        while (true) {
+            Snapshot s = latest;
+            if (s != null && s.version >= wanted) {
+                return s;
+            }
+            s = encode().join();
+            if (s.version >= wanted) {
+                return s;
+            }
+            // that encode started before the change we need, go again
+        }
+    }
+
+    /**
+     * Starts an encode, or joins the one already running.
+     */
+    private synchronized CompletableFuture<Snapshot> encode() {
+        if (inFlight == null) {
+            CompletableFuture<Snapshot> future = CompletableFuture.supplyAsync(() -> {
+                Snapshot s = encoder.get();
+                Snapshot current = latest;
+                if (current == null || current.version < s.version) {
+                    latest = s;
+                }
+                return s;
+            }, executor);
+            inFlight = future;
+            future.whenComplete((s, e) -> {
+                synchronized (this) {
+                    if (inFlight == future) {
+                        inFlight = null;
+                    }
+                }
+            });
+        }
+        return inFlight;
+    }
+
+    private synchronized void scheduleRefresh() {
+        if (refreshScheduled) {
+            return;
+        }
+        refreshScheduled = true;
+        executor.schedule(() -> {
+            synchronized (this) {
+                refreshScheduled = false;
+            }
+            Snapshot s = latest;
+            if (s == null || s.version < version.get()) {
+                encode();
+            }
+        }, REFRESH_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+}
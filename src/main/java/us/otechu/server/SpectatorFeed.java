@@ -0,0 +1,206 @@
+package us.otechu.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import us.otechu.common.WireMessage;
+
+/**
+ * Everything a room's spectators are sent, fanned out on a timer instead of as it happens.
+ * Players queue the ops and broadcasts here in one append, whatever the number of spectators,
+ * so watching never adds to the players' draw latency. Every {@link #FLUSH_INTERVAL_MS} the spectator thread
+ * joins up the pencil points queued since the last flush and sends the same messages to every spectator.
+ * Spectators that just synced are brought up to date from where their sync left off, without conflation.
+ */
+public class SpectatorFeed {
+    /** How often queued messages are sent to the spectators */
+    public static final long FLUSH_INTERVAL_MS = 100;
+
+    /** Which spectators a message is for, when tile sync spectators get something else */
+    public enum Audience { ALL, TILE_SYNC, NO_TILE_SYNC }
+
+    private static class Entry {
+        final WireMessage message;
+        final Audience audience;
+
+        Entry(WireMessage message, Audience audience) {
+            this.message = message;
+            this.audience = audience;
+        }
+
+        boolean isFor(ClientHandler client) {
+            return SpectatorFeed.isFor(audience, client);
+        }
+    }
+
+    private static class Subscriber {
+        // the first entry it hasn't been sent
+        long next;
+        // true until its sync is queued, it's sent nothing before that
+        boolean syncing = true;
+
+        Subscriber(long next) {
+            this.next = next;
+        }
+    }
+
+    // entries not yet sent to every subscriber, the first one is number firstEntry
+    private final List<Entry> entries = new ArrayList<>();
+    private long firstEntry = 0;
+    // every subscriber that was up to date at the last flush has been sent everything before this
+    private long flushedTo = 0;
+    private final Map<ClientHandler, Subscriber> subscribers = new LinkedHashMap<>();
+
+    /**
+     * Queues a message for every spectator.
+     *
+     * @param message the message
+     */
+    public void append(WireMessage message) {
+        append(message, Audience.ALL);
+    }
+
+    /**
+     * Queues a message for some of the spectators. Dropped if nobody is watching.
+     *
+     * @param message  the message
+     * @param audience who it's for
+     */
+    public synchronized void append(WireMessage message, Audience audience) {
+        if (!subscribers.isEmpty()) {
+            entries.add(new Entry(message, audience));
+        }
+    }
+
+    /**
+     * Adds a spectator, which gets everything queued from now on once it's marked {@link #synced}.
+     * Called at the point in the room's history its sync is taken from.
+     *
+     * @param client the spectator
+     */
+    public synchronized void subscribe(ClientHandler client) {
+        if (subscribers.isEmpty()) {
+            // nothing queued is for anyone
+            firstEntry += entries.size();
+            entries.clear();
+            flushedTo = firstEntry;
+        }
+        subscribers.put(client, new Subscriber(end()));
+    }
+
+    /**
+     * Lets a spectator have its messages, once its sync has been queued.
+     *
+     * @param client the spectator
+     */
+    public synchronized void synced(ClientHandler client) {
+        Subscriber subscriber = subscribers.get(client);
+        if (subscriber != null) {
+            subscriber.syncing = false;
+        }
+    }
+
+    /**
+     * Removes a spectator.
+     *
+     * @param client the spectator
+     */
+    public synchronized void unsubscribe(ClientHandler client) {
+        subscribers.remove(client);
+    }
+
+    /**
+     * @param audience who a message would be for
+     * @return true if any spectator is in that audience
+     */
+    public synchronized boolean reaches(Audience audience) {
+        for (ClientHandler client : subscribers.keySet()) {
+            if (isFor(audience, client)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isFor(Audience audience, ClientHandler client) {
+        return audience == Audience.ALL || (audience == Audience.TILE_SYNC) == client.usesTileSync();
+    }
+
+    /** @return the number of spectators */
+    public synchronized int size() {
+        return subscribers.size();
+    }
+
+    /**
+     * Sends what was queued since the last flush. The messages are worked out with the feed locked,
+     * and handed to the spectators' outbound queues after, so appending is never held up by the fan out.
+     * Only called by the spectator thread.
+     */
+    public void flush() {
+        Map<ClientHandler, List<Entry>> sends = new LinkedHashMap<>();
+        synchronized (this) {
+            long end = end();
+            if (allUpToDate()) {
+                return;
+            }
+            List<Entry> batch = conflate(flushedTo, end);
+            long oldest = end;
+            for (Map.Entry<ClientHandler, Subscriber> e : subscribers.entrySet()) {
+                Subscriber subscriber = e.getValue();
+                if (!subscriber.syncing && subscriber.next < end) {
+                    sends.put(e.getKey(), subscriber.next == flushedTo
+                            ? batch : new ArrayList<>(entries.subList((int) (subscriber.next - firstEntry), entries.size())));
+                    subscriber.next = end;
+                }
+                oldest = Math.min(oldest, subscriber.next);
+            }
+            flushedTo = end;
+            // nobody needs the entries before the oldest subscriber's position any more
+            entries.subList(0, (int) (oldest - firstEntry)).clear();
+            firstEntry = oldest;
+        }
+        for (Map.Entry<ClientHandler, List<Entry>> e : sends.entrySet()) {
+            ClientHandler client = e.getKey();
+            for (Entry entry : e.getValue()) {
+                if (entry.isFor(client)) {
+                    client.send(entry.message);
+                }
+            }
+        }
+    }
+
+    private long end() {
+        return firstEntry + entries.size();
+    }
+
+    private boolean allUpToDate() {
+        for (Subscriber subscriber : subscribers.values()) {
+            if (!subscriber.syncing && subscriber.next < end()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Joins up the pencil points in a range of entries, the way a full outbound queue does.
+     */
+    private List<Entry> conflate(long from, long to) {
+        List<Entry> batch = new ArrayList<>();
+        for (int i = (int) (from - firstEntry); i < to - firstEntry; i++) {
+            Entry entry = entries.get(i);
+            if (!batch.isEmpty() && entry.audience == Audience.ALL) {
+                Entry tail = batch.get(batch.size() - 1);
+                WireMessage merged = tail.audience == Audience.ALL ? OutboundQueue.conflate(tail.message, entry.message) : null;
+                if (merged != null) {
+                    batch.set(batch.size() - 1, new Entry(merged, Audience.ALL));
+                    continue;
+                }
+            }
+            batch.add(entry);
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,127 @@
+package us.otechu.server;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A bus shared by servers over TCP, through a {@link BusHub} that sequences every event.
+ * Events, the ones this server publishes too, are delivered on the connection's reader thread in the order
+ * the hub sent them. Connecting replays the rooms' earlier events, so a server can be added while others are busy.
+ * The hub also asks for keyframes of rooms whose history gets long, which it replays instead of the events before them.
+ */
+public class TcpBus implements MessageBus {
+    private final String host;
+    private final int port;
+    private final String nodeId = UUID.randomUUID().toString().substring(0, 8);
+    private Consumer<RoomEvent> listener;
+    private Function<String, CompletableFuture<RoomEvent>> keyframes = room -> null;
+    private Socket socket;
+    private OutputStream out;
+
+    /**
+     * @param host the hub's host
+     * @param port the hub's port
+     */
+    public TcpBus(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void setListener(Consumer<RoomEvent> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets what takes a room's keyframe when the hub asks for one. Must be called before connecting.
+     *
+     * @param keyframes takes the named room's keyframe, or returns null if this server can't
+     */
+    public void setKeyframeSource(Function<String, CompletableFuture<RoomEvent>> keyframes) {
+        this.keyframes = keyframes;
+    }
+
+    /**
+     * Connects to the hub, and waits until the earlier events have been delivered.
+     *
+     * @param onLost runs if the connection to the hub ends
+     */
+    public void connect(Runnable onLost) throws IOException, InterruptedException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        out = new BufferedOutputStream(socket.getOutputStream());
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        send("HELLO " + nodeId);
+
+        CountDownLatch synced = new CountDownLatch(1);
+        Thread reader = new Thread(() -> {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("EVT ")) {
+                        try {
+                            listener.accept(RoomEvent.parse(line.substring("EVT ".length())));
+                        } catch (RuntimeException e) {
+                            // one bad event shouldn't cut the server off from the rest
+                            e.printStackTrace();
+                        }
+                    } else if (line.equals("SYNCED")) {
+                        synced.countDown();
+                    } else if (line.startsWith("TAKEKEYFRAME ")) {
+                        CompletableFuture<RoomEvent> keyframe = keyframes.apply(line.substring("TAKEKEYFRAME ".length()));
+                        if (keyframe != null) {
+                            // taken off this thread, the room's events keep coming meanwhile
+                            keyframe.whenComplete((event, e) -> {
+                                if (event != null) {
+                                    send("KEYFRAME " + event.encode());
+                                } else {
+                                    e.printStackTrace();
+                                }
+                            });
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // hub went away
+            }
+            synced.countDown();
+            onLost.run();
+        }, "Bus Reader Thread");
+        reader.setDaemon(true);
+        reader.start();
+        synced.await();
+    }
+
+    @Override
+    public void publish(RoomEvent event) {
+        send("PUB " + event.encode());
+    }
+
+    private synchronized void send(String line) {
+        try {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch (IOException e) {
+            // the reader notices the hub is gone
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
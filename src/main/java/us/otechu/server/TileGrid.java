@@ -0,0 +1,220 @@
+package us.otechu.server;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import us.otechu.common.TileCodec;
+import us.otechu.common.TileData;
+import us.otechu.common.TiledCanvas;
+import us.otechu.common.WireMessage;
+
+/**
+ * Splits the server canvas into fixed-size tiles and keeps a version per tile.
+ * A tile's version changes every time something is drawn over it and goes back to 0 (blank) on clear,
+ * so a client that reports the versions it has only needs the tiles that differ.
+ * Encoded tiles are cached until their tile changes again.
+ * Versions are changed by the render thread; tiles are encoded from copies of the canvas taken by it.
+ */
+public class TileGrid {
+    /** Width and height of a tile in pixels */
+    public static final int TILE_SIZE = TiledCanvas.TILE_SIZE;
+
+    private final int width, height;
+    private final int cols, rows;
+    private final long[] versions;
+    private final long[] encodedVersions;
+    private final WireMessage[] encoded;
+
+    // versions are unique across server restarts, so old client versions never match by accident
+    private long nextVersion = System.currentTimeMillis() << 16;
+
+    /**
+     * @param width  width of the canvas the tiles cover
+     * @param height height of the canvas the tiles cover
+     */
+    public TileGrid(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.cols = (width + TILE_SIZE - 1) / TILE_SIZE;
+        this.rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        this.versions = new long[cols * rows];
+        this.encodedVersions = new long[cols * rows];
+        this.encoded = new WireMessage[cols * rows];
+    }
+
+    public int getTileCount() {
+        return versions.length;
+    }
+
+    /**
+     * Marks every tile touched by an area as changed.
+     *
+     * @param area the changed area in canvas pixels, or null if unknown (marks everything)
+     */
+    public synchronized void markDirty(Rectangle area) {
+        Rectangle bounds = new Rectangle(0, 0, width, height);
+        Rectangle changed = area == null ? bounds : area.intersection(bounds);
+        if (changed.isEmpty()) {
+            return;
+        }
+        long version = ++nextVersion;
+        for (int index : tilesIn(changed)) {
+            versions[index] = version;
+        }
+    }
+
+    /**
+     * Resets every tile to blank.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < versions.length; i++) {
+            versions[i] = 0;
+            encoded[i] = null;
+        }
+    }
+
+    /**
+     * Forgets every encoded tile, to free memory while the canvas is hibernating.
+     */
+    public synchronized void dropEncoded() {
+        Arrays.fill(encoded, null);
+    }
+
+    /**
+     * @return a copy of the current tile versions
+     */
+    public synchronized long[] getVersions() {
+        return versions.clone();
+    }
+
+    /**
+     * Lists the tiles whose version differs from what a client has.
+     *
+     * @param versions the tile versions of the canvas to sync to
+     * @param known    the client's tile versions, or null for a blank canvas.
+     *                 Tiles past the end of the list are treated as unknown and always sent
+     * @return the indexes of the tiles to send
+     */
+    public static List<Integer> changedSince(long[] versions, long[] known) {
+        List<Integer> changed = new ArrayList<>();
+        for (int i = 0; i < versions.length; i++) {
+            long have = known == null ? 0 : i < known.length ? known[i] : -1;
+            if (versions[i] != have) {
+                changed.add(i);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Lists the tiles an area overlaps.
+     *
+     * @param area an area in canvas pixels
+     * @return the tile indexes
+     */
+    public List<Integer> tilesIn(Rectangle area) {
+        List<Integer> tiles = new ArrayList<>();
+        int firstCol = Math.max(0, area.x / TILE_SIZE);
+        int firstRow = Math.max(0, area.y / TILE_SIZE);
+        int lastCol = Math.min(cols - 1, (area.x + area.width - 1) / TILE_SIZE);
+        int lastRow = Math.min(rows - 1, (area.y + area.height - 1) / TILE_SIZE);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                tiles.add(row * cols + col);
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * @param index the tile index
+     * @return the area of the canvas the tile covers
+     */
+    public Rectangle getTileBounds(int index) {
+        int x = (index % cols) * TILE_SIZE;
+        int y = (index / cols) * TILE_SIZE;
+        return new Rectangle(x, y, Math.min(TILE_SIZE, width - x), Math.min(TILE_SIZE, height - y));
+    }
+
+    /**
+     * Builds the TILE message for a tile, with its pixels encoded by {@link TileCodec}. A blank tile has no pixels,
+     * which tells the client to drop its own, so it costs nothing to encode.
+     * The message is cached until the tile changes, so every client it's sent to shares its bytes.
+     * Tiles are encoded outside the lock, so several can be encoded at once.
+     *
+     * @param index the tile index
+     * @param copy  a copy of the canvas to encode the tile from
+     * @return the message
+     */
+    public WireMessage getTileMessage(int index, CanvasRenderer.CanvasCopy copy) {
+        long version = copy.tileVersions[index];
+        synchronized (this) {
+            if (encoded[index] != null && encodedVersions[index] == version) {
+                return encoded[index];
+            }
+        }
+        Rectangle r = getTileBounds(index);
+        // drawn on and then restored to blank, e.g. by a checkpoint, is as blank as never drawn on
+        BufferedImage tile = version == 0 ? null : copy.canvas.getTile(index);
+        byte[] pixels = tile == null ? null : TileCodec.encode(tile);
+        WireMessage message = WireMessage.tile(new TileData(r.x, r.y, r.width, r.height, version, pixels));
+        synchronized (this) {
+            // don't let an older copy replace a newer tile
+            if (encoded[index] == null || version >= encodedVersions[index]) {
+                encoded[index] = message;
+                encodedVersions[index] = version;
+            }
+        }
+        return message;
+    }
+
+    /**
+     * Builds the TILE messages for some tiles, encoding the ones that aren't cached in parallel.
+     *
+     * @param indexes  the tile indexes
+     * @param copy     a copy of the canvas to encode the tiles from
+     * @param encoders the pool the tiles are encoded on
+     * @return the messages, in the same order as the indexes
+     */
+    public List<WireMessage> getTileMessages(List<Integer> indexes, CanvasRenderer.CanvasCopy copy, ForkJoinPool encoders) {
+        List<WireMessage> messages = new ArrayList<>(indexes.size());
+        if (indexes.size() < 2) {
+            for (int index : indexes) {
+                messages.add(getTileMessage(index, copy));
+            }
+            return messages;
+        }
+        List<ForkJoinTask<WireMessage>> tasks = new ArrayList<>(indexes.size());
+        for (int index : indexes) {
+            tasks.add(encoders.submit(() -> getTileMessage(index, copy)));
+        }
+        for (ForkJoinTask<WireMessage> task : tasks) {
+            messages.add(task.join());
+        }
+        return messages;
+    }
+
+    /**
+     * Parses tile versions sent by a client, as comma separated numbers.
+     *
+     * @param list the list from the client
+     * @return the versions, or null if the list is malformed
+     */
+    public static long[] parseVersions(String list) {
+        String[] parts = list.split(",");
+        long[] known = new long[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                known[i] = Long.parseLong(parts[i].trim());
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return known;
+    }
+}
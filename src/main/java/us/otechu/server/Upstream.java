@@ -0,0 +1,92 @@
+package us.otechu.server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.function.Consumer;
+
+import us.otechu.common.BinaryProtocol;
+import us.otechu.common.MessageReader;
+import us.otechu.common.WireMessage;
+
+/**
+ * A connection from a relay to its primary server, speaking the same protocol as a client.
+ * Messages from the primary are read on the connection's own thread and handed on in order.
+ * The PROTO reply switches both directions to the agreed protocol, like on a client,
+ * and is handed on as a protocol message so it can be passed through to a proxied client.
+ */
+public class Upstream {
+    private final Socket socket;
+    private final MessageReader in;
+    private final OutputStream out;
+    private volatile boolean binary = false;
+
+    /**
+     * Connects to the primary. Nothing is read until {@link #start}.
+     *
+     * @param host the primary's host
+     * @param port the primary's port
+     */
+    public Upstream(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        in = new MessageReader(socket.getInputStream());
+        out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * Starts reading from the primary.
+     *
+     * @param handler receives every message from the primary
+     * @param onClose runs once the connection ends, from either side
+     * @param name    the reader thread's name
+     */
+    public void start(Consumer<WireMessage> handler, Runnable onClose, String name) {
+        Thread reader = new Thread(() -> {
+            try {
+                WireMessage message;
+                while ((message = in.read()) != null) {
+                    if (!binary && message.text != null && message.text.startsWith("PROTO")) {
+                        // everything after this line uses the agreed protocol
+                        message = WireMessage.protocol(message.text.substring(5).trim());
+                        binary = BinaryProtocol.hasCapability(message.capabilities, BinaryProtocol.CAPABILITY);
+                        in.setBinary(binary);
+                    }
+                    handler.accept(message);
+                }
+            } catch (IOException e) {
+                // primary went away or we closed it
+            } finally {
+                close();
+                onClose.run();
+            }
+        }, name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Sends a message to the primary in the agreed protocol.
+     *
+     * @param message the message to send
+     */
+    public synchronized void send(WireMessage message) {
+        try {
+            out.write(message.getBytes(binary));
+            out.flush();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * Closes the connection, which ends the reader and runs its close action.
+     */
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
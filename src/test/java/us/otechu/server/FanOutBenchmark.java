@@ -0,0 +1,169 @@
+package us.otechu.server;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import us.otechu.client.DrawData;
+import us.otechu.common.WireMessage;
+
+/**
+ * Measures a broadcast on the non-blocking server: one thread sends a burst of draws to 4, 64 and 512 connected
+ * sockets, the way a room relays a drawer's shapes. Prints the time and bytes allocated per recipient on the
+ * broadcasting thread, and how long until every socket has read the whole burst, after a warmup so the JIT has settled.
+ *
+ * Kept out of the jars with the other benchmarks in src/test. Run with:
+ * mvn test-compile, then java -cp target/classes:target/test-classes:(the gson jar) us.otechu.server.FanOutBenchmark
+ */
+public class FanOutBenchmark {
+    private static final int[] RECIPIENTS = { 4, 64, 512 };
+    private static final int MESSAGES = 1000;
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 10;
+
+    public static void main(String[] args) throws Exception {
+        int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        DrawingServer server = new DrawingServer() {
+            @Override
+            public void log(String message) {
+            }
+        };
+        server.setPort(port);
+        Thread serverThread = new Thread(() -> server.startNioServer(Math.max(1, Runtime.getRuntime().availableProcessors())),
+                "Benchmark Server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        // shapes rather than pencil segments, so nothing is conflated and every byte arrives
+        List<WireMessage> burst = new ArrayList<>(MESSAGES);
+        long burstBytes = 0;
+        for (int i = 0; i < MESSAGES; i++) {
+            WireMessage message = WireMessage.draw(new DrawData(i % 800, i % 600, i % 800 + 40, i % 600 + 30,
+                    Color.BLACK, 3, "rect", false));
+            burstBytes += message.getBytes(false).length;
+            burst.add(message);
+        }
+
+        System.out.printf("%-10s %14s %16s %14s%n", "recipients", "send ns/each", "alloc bytes/each", "delivered ms");
+        for (int recipients : RECIPIENTS) {
+            try (Readers readers = new Readers(port, recipients, server)) {
+                List<ClientHandler> handlers = new ArrayList<>(server.getClients());
+                for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                    round(burst, burstBytes, handlers, readers);
+                }
+                long sendNanos = 0, allocated = 0, deliverNanos = 0;
+                for (int i = 0; i < ROUNDS; i++) {
+                    long[] result = round(burst, burstBytes, handlers, readers);
+                    sendNanos += result[0];
+                    allocated += result[1];
+                    deliverNanos += result[2];
+                }
+                long sends = (long) ROUNDS * MESSAGES * recipients;
+                System.out.printf("%-10d %14.1f %16.1f %14.2f%n", recipients, (double) sendNanos / sends,
+                        (double) allocated / sends, deliverNanos / 1e6 / ROUNDS);
+            }
+            // let the server see every socket close before the next size connects
+            while (!server.getClients().isEmpty()) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    /**
+     * Sends the burst to every handler and waits for the readers to receive all of it.
+     *
+     * @return the time spent sending, the bytes the sending thread allocated, and the time until it was all read
+     */
+    private static long[] round(List<WireMessage> burst, long burstBytes, List<ClientHandler> handlers, Readers readers)
+            throws InterruptedException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long expected = readers.received.get() + burstBytes * handlers.size();
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (WireMessage message : burst) {
+            for (ClientHandler handler : handlers) {
+                handler.send(message);
+            }
+        }
+        long sendNanos = System.nanoTime() - start;
+        long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        while (readers.received.get() < expected) {
+            Thread.onSpinWait();
+        }
+        return new long[] { sendNanos, allocated, System.nanoTime() - start };
+    }
+
+    /**
+     * Connected sockets, all read by one thread that only counts the bytes.
+     */
+    private static class Readers implements AutoCloseable {
+        final AtomicLong received = new AtomicLong();
+        private final Selector selector;
+        private final List<SocketChannel> channels = new ArrayList<>();
+        private final Thread thread;
+
+        Readers(int port, int count, DrawingServer server) throws IOException, InterruptedException {
+            selector = Selector.open();
+            for (int i = 0; i < count; i++) {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ);
+                channels.add(channel);
+            }
+            thread = new Thread(this::read, "Benchmark Reader");
+            thread.setDaemon(true);
+            thread.start();
+            while (server.getClients().size() < count) {
+                Thread.sleep(10);
+            }
+            // anything sent on connect shouldn't count towards the first round
+            long seen;
+            do {
+                seen = received.get();
+                Thread.sleep(200);
+            } while (received.get() != seen);
+        }
+
+        private void read() {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+            try {
+                while (selector.isOpen()) {
+                    selector.select();
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        int n;
+                        while ((n = ((SocketChannel) key.channel()).read(buffer)) > 0) {
+                            received.addAndGet(n);
+                            buffer.clear();
+                        }
+                        if (n < 0) {
+                            key.cancel();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+            } catch (IOException | RuntimeException e) {
+                // closed
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            selector.close();
+            for (SocketChannel channel : channels) {
+                channel.close();
+            }
+        }
+    }
+}
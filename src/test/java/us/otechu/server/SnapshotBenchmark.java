@@ -0,0 +1,212 @@
+package us.otechu.server;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import us.otechu.common.TileCodec;
+import us.otechu.common.TiledCanvas;
+
+/**
+ * Compares the two ways tiles are sent: base64 PNG lines and {@link TileCodec} frames.
+ * Encodes and decodes every tile of a blank, a sketched on and a photo filled canvas with both,
+ * after a warmup so the JIT has settled, and prints the time per canvas and the bytes sent.
+ *
+ * Kept out of the jars with the other benchmarks in src/test. Run with:
+ * mvn test-compile, then java -cp target/classes:target/test-classes us.otechu.server.SnapshotBenchmark [width height]
+ */
+public class SnapshotBenchmark {
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int ROUNDS = 10;
+
+    /** What one codec does with one canvas, per round */
+    private interface Codec {
+        Object encode(BufferedImage tile) throws IOException;
+
+        int size(Object encoded);
+
+        BufferedImage decode(Object encoded, int width, int height) throws IOException;
+    }
+
+    private static final Codec PNG = new Codec() {
+        @Override
+        public Object encode(BufferedImage tile) throws IOException {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ImageIO.write(tile, "png", baos);
+            return Base64.getEncoder().encodeToString(baos.toByteArray());
+        }
+
+        @Override
+        public int size(Object encoded) {
+            return ((String) encoded).length();
+        }
+
+        @Override
+        public BufferedImage decode(Object encoded, int width, int height) throws IOException {
+            return ImageIO.read(new ByteArrayInputStream(Base64.getDecoder().decode((String) encoded)));
+        }
+    };
+
+    private static final Codec QOI = new Codec() {
+        @Override
+        public Object encode(BufferedImage tile) {
+            return TileCodec.encode(tile);
+        }
+
+        @Override
+        public int size(Object encoded) {
+            return ((byte[]) encoded).length;
+        }
+
+        @Override
+        public BufferedImage decode(Object encoded, int width, int height) throws IOException {
+            byte[] bytes = (byte[]) encoded;
+            return TileCodec.decode(bytes, 0, bytes.length, width, height);
+        }
+    };
+
+    public static void main(String[] args) throws IOException {
+        int width = args.length >= 2 ? Integer.parseInt(args[0]) : 1920;
+        int height = args.length >= 2 ? Integer.parseInt(args[1]) : 1080;
+        ImageIO.setUseCache(false);
+
+        System.out.printf("%-8s %-5s %12s %12s %12s%n", "canvas", "codec", "encode ms", "decode ms", "KB sent");
+        for (String kind : new String[] { "blank", "sketchy", "photo" }) {
+            List<BufferedImage> tiles = tiles(canvas(kind, width, height));
+            run(kind, "png", PNG, tiles);
+            run(kind, "qoi", QOI, tiles);
+        }
+    }
+
+    private static void run(String kind, String name, Codec codec, List<BufferedImage> tiles) throws IOException {
+        verify(codec, tiles);
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            round(codec, tiles);
+        }
+        long encodeNanos = 0, decodeNanos = 0;
+        long bytes = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long[] result = round(codec, tiles);
+            encodeNanos += result[0];
+            decodeNanos += result[1];
+            bytes = result[2];
+        }
+        System.out.printf("%-8s %-5s %12.2f %12.2f %12d%n", kind, name, encodeNanos / 1e6 / ROUNDS,
+                decodeNanos / 1e6 / ROUNDS, bytes / 1024);
+    }
+
+    /**
+     * Checks every tile comes back pixel for pixel.
+     */
+    private static void verify(Codec codec, List<BufferedImage> tiles) throws IOException {
+        for (BufferedImage tile : tiles) {
+            int w = tile.getWidth(), h = tile.getHeight();
+            BufferedImage decoded = codec.decode(codec.encode(tile), w, h);
+            if (!Arrays.equals(tile.getRGB(0, 0, w, h, null, 0, w), decoded.getRGB(0, 0, w, h, null, 0, w))) {
+                throw new IllegalStateException("Tile didn't survive the round trip");
+            }
+        }
+    }
+
+    /**
+     * Encodes every tile, then decodes them all again.
+     *
+     * @return the encode and decode times, and the encoded size
+     */
+    private static long[] round(Codec codec, List<BufferedImage> tiles) throws IOException {
+        List<Object> encoded = new ArrayList<>(tiles.size());
+        long start = System.nanoTime();
+        for (BufferedImage tile : tiles) {
+            encoded.add(codec.encode(tile));
+        }
+        long encodeNanos = System.nanoTime() - start;
+
+        long bytes = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < tiles.size(); i++) {
+            BufferedImage tile = tiles.get(i);
+            codec.decode(encoded.get(i), tile.getWidth(), tile.getHeight());
+        }
+        long decodeNanos = System.nanoTime() - start;
+        for (Object e : encoded) {
+            bytes += codec.size(e);
+        }
+        return new long[] { encodeNanos, decodeNanos, bytes };
+    }
+
+    /**
+     * Splits a canvas into its tiles, every one of them drawn on, the way a full sync sends them.
+     */
+    private static List<BufferedImage> tiles(TiledCanvas canvas) {
+        List<BufferedImage> tiles = new ArrayList<>();
+        for (int i = 0; i < canvas.getTileCount(); i++) {
+            BufferedImage tile = canvas.getTile(i);
+            tiles.add(tile != null ? tile : canvas.toImage(canvas.getTileBounds(i)));
+        }
+        return tiles;
+    }
+
+    private static TiledCanvas canvas(String kind, int width, int height) {
+        TiledCanvas canvas = new TiledCanvas(width, height);
+        Random random = new Random(42);
+        switch (kind) {
+            case "sketchy": {
+                // a few dozen pencil and shape strokes on white
+                BufferedImage sketch = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                Graphics2D g = sketch.createGraphics();
+                g.setColor(TiledCanvas.BACKGROUND);
+                g.fillRect(0, 0, width, height);
+                g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                for (int i = 0; i < 40; i++) {
+                    g.setColor(new Color(random.nextInt(0xFFFFFF)));
+                    g.setStroke(new BasicStroke(1 + random.nextInt(6), BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+                    int x = random.nextInt(width), y = random.nextInt(height);
+                    for (int j = 0; j < 30; j++) {
+                        int nx = Math.max(0, Math.min(width, x + random.nextInt(81) - 40));
+                        int ny = Math.max(0, Math.min(height, y + random.nextInt(81) - 40));
+                        g.drawLine(x, y, nx, ny);
+                        x = nx;
+                        y = ny;
+                    }
+                    g.drawOval(random.nextInt(width), random.nextInt(height), 20 + random.nextInt(200), 20 + random.nextInt(200));
+                }
+                g.dispose();
+                canvas.drawImage(sketch, 0, 0);
+                break;
+            }
+            case "photo": {
+                // smooth colour gradients with sensor-like noise, like a loaded photo
+                BufferedImage photo = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        int r = clamp(128 + (int) (100 * Math.sin(x / 180.0)) + random.nextInt(9) - 4);
+                        int g = clamp(128 + (int) (100 * Math.cos(y / 140.0)) + random.nextInt(9) - 4);
+                        int b = clamp((x + y) * 255 / (width + height) + random.nextInt(9) - 4);
+                        photo.setRGB(x, y, r << 16 | g << 8 | b);
+                    }
+                }
+                canvas.drawImage(photo, 0, 0);
+                break;
+            }
+            default:
+                // blank, the tiles are made from the background colour
+        }
+        return canvas;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}